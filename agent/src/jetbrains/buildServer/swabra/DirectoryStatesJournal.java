@@ -0,0 +1,330 @@
+package jetbrains.buildServer.swabra;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.zip.CRC32;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Persists monitored directories states as a base file with all the records plus an append-only journal of the changes
+ * made since the base file was written, so a state change doesn't rewrite all the records.
+ *
+ * Journal records are checksummed, a record torn by a crash and everything after it are ignored on replay.
+ * Appended records reach the operating system immediately, so they survive the agent process crash, but they are forced
+ * to the disk only on sync, so the changes made during one build phase cost a single fsync.
+ * Compaction writes the records to a temporary file, forces it to the disk and renames it to the compacted file, then
+ * deletes the journal and renames the compacted file over the base file. The journal is never replayed over the new base
+ * file: it may undo the changes made only in memory, e.g. removed states. A crash before the compacted file appears
+ * leaves the old base file and the journal, after it recover() deletes the journal and completes the compaction.
+ */
+class DirectoryStatesJournal {
+  static final String JOURNAL_SUFFIX = ".journal";
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final String COMPACTED_SUFFIX = ".new";
+
+  private static final char PUT = 'P';
+  private static final char REMOVE = 'R';
+  private static final Charset CHARSET = Charset.forName("UTF-8");
+
+  interface Replayer {
+    void put(@NotNull String record);
+    void remove(@NotNull String key);
+  }
+
+  @NotNull
+  private final File myBaseFile;
+  @NotNull
+  private final File myJournalFile;
+  @NotNull
+  private final SwabraLogger myLogger;
+  private int myRecordsCount;
+  @Nullable
+  private FileOutputStream myOutput;
+  private boolean mySyncPending;
+
+  DirectoryStatesJournal(@NotNull File baseFile, @NotNull SwabraLogger logger) {
+    myBaseFile = baseFile;
+    myJournalFile = new File(baseFile.getPath() + JOURNAL_SUFFIX);
+    myLogger = logger;
+  }
+
+  @NotNull
+  File getJournalFile() {
+    return myJournalFile;
+  }
+
+  /**
+   * @return number of records appended since the last compaction
+   */
+  int getRecordsCount() {
+    return myRecordsCount;
+  }
+
+  /**
+   * @return text of the base file, both the base file and the journal are UTF-8
+   */
+  @NotNull
+  String readBase() throws IOException {
+    return FileUtil.readText(myBaseFile, CHARSET.name());
+  }
+
+  /**
+   * Replays the journal records, the base file must be read by the caller before
+   * @return false if the journal is damaged and must be compacted
+   */
+  boolean replay(@NotNull Replayer replayer) {
+    myRecordsCount = 0;
+    if (!myJournalFile.isFile()) {
+      return true;
+    }
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(myJournalFile), CHARSET));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!replay(line, replayer)) {
+          myLogger.warn("Damaged record #" + (myRecordsCount + 1) + " in directories states journal " + myJournalFile.getAbsolutePath() + ", ignoring the rest of it");
+          return false;
+        }
+        ++myRecordsCount;
+      }
+      return true;
+    } catch (IOException e) {
+      myLogger.warn("Error reading directories states journal " + myJournalFile.getAbsolutePath() + getMessage(e));
+      myLogger.exception(e);
+      return false;
+    } finally {
+      close(reader);
+    }
+  }
+
+  private static boolean replay(@NotNull String line, @NotNull Replayer replayer) {
+    // <operation> <checksum> <payload>
+    if (line.length() < 11 || line.charAt(1) != ' ' || line.charAt(10) != ' ') {
+      return false;
+    }
+    final char operation = line.charAt(0);
+    final String payload = line.substring(11);
+    final long checksum;
+    try {
+      checksum = Long.parseLong(line.substring(2, 10), 16);
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    if (checksum != getChecksum(operation, payload)) {
+      return false;
+    }
+    switch (operation) {
+      case PUT:
+        replayer.put(payload);
+        return true;
+      case REMOVE:
+        replayer.remove(payload);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * @return number of bytes written
+   */
+  long appendPut(@NotNull String record) throws IOException {
+    return append(PUT, record);
+  }
+
+  /**
+   * @return number of bytes written
+   */
+  long appendRemove(@NotNull String key) throws IOException {
+    return append(REMOVE, key);
+  }
+
+  private long append(char operation, @NotNull String payload) throws IOException {
+    final byte[] bytes = (operation + " " + String.format("%08x", getChecksum(operation, payload)) + " " + payload + "\n").getBytes(CHARSET);
+    try {
+      if (myOutput == null) {
+        myOutput = new FileOutputStream(myJournalFile, true);
+      }
+      myOutput.write(bytes);
+    } catch (IOException e) {
+      closeOutput();
+      throw e;
+    }
+    mySyncPending = true;
+    ++myRecordsCount;
+    return bytes.length;
+  }
+
+  /**
+   * Forces the records appended since the last sync to the disk
+   */
+  void sync() throws IOException {
+    if (myOutput == null || !mySyncPending) return;
+    try {
+      myOutput.getFD().sync();
+      mySyncPending = false;
+    } catch (IOException e) {
+      closeOutput();
+      throw e;
+    }
+  }
+
+  /**
+   * Forces the appended records to the disk and closes the journal, it's reopened by the next append
+   */
+  void close() throws IOException {
+    try {
+      sync();
+    } finally {
+      closeOutput();
+    }
+  }
+
+  private void closeOutput() {
+    close(myOutput);
+    myOutput = null;
+    mySyncPending = false;
+  }
+
+  /**
+   * Completes the compaction interrupted by a crash, must be called before reading the base file
+   */
+  void recover() {
+    deleteFile(getTempFile());
+    final File compacted = getCompactedFile();
+    if (!compacted.exists()) return;
+    // the compacted file is complete and supersedes both the base file and the journal
+    if (myJournalFile.exists() && !FileUtil.delete(myJournalFile)) {
+      myLogger.warn("Error deleting directories states journal " + myJournalFile.getAbsolutePath() + ", ignoring the compacted file");
+      deleteFile(compacted);
+      return;
+    }
+    try {
+      replaceBaseFile(compacted);
+    } catch (IOException e) {
+      myLogger.warn("Error replacing directories states file " + myBaseFile.getAbsolutePath() + getMessage(e));
+      myLogger.exception(e);
+    }
+  }
+
+  /**
+   * Replaces the base file with the records and deletes the journal, both files are deleted if there are no records
+   * @return size of the base file
+   */
+  long compact(@NotNull Collection<String> records) throws IOException {
+    // the journal is superseded by the records
+    closeOutput();
+    final File temp = getTempFile();
+    final FileOutputStream out = new FileOutputStream(temp);
+    try {
+      final BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+      for (String record : records) {
+        writer.write(record);
+        writer.newLine();
+      }
+      writer.flush();
+      out.getFD().sync();
+    } catch (IOException e) {
+      close(out);
+      FileUtil.delete(temp);
+      throw e;
+    }
+    out.close();
+    final File compacted = getCompactedFile();
+    try {
+      move(temp, compacted);
+    } catch (IOException e) {
+      FileUtil.delete(temp);
+      throw e;
+    }
+    syncDirectory(myBaseFile.getParentFile());
+    // from now on recover() completes the compaction
+    if (myJournalFile.exists() && !FileUtil.delete(myJournalFile)) {
+      // the old base file and the journal are still consistent
+      FileUtil.delete(compacted);
+      throw new IOException("Failed to delete " + myJournalFile.getAbsolutePath());
+    }
+    myRecordsCount = 0;
+    replaceBaseFile(compacted);
+    return myBaseFile.length();
+  }
+
+  private void replaceBaseFile(@NotNull File compacted) throws IOException {
+    if (compacted.length() == 0) {
+      deleteFile(myBaseFile);
+      deleteFile(compacted);
+    } else {
+      move(compacted, myBaseFile);
+    }
+    syncDirectory(myBaseFile.getParentFile());
+  }
+
+  @NotNull
+  private File getTempFile() {
+    return new File(myBaseFile.getPath() + TEMP_SUFFIX);
+  }
+
+  @NotNull
+  private File getCompactedFile() {
+    return new File(myBaseFile.getPath() + COMPACTED_SUFFIX);
+  }
+
+  private static void move(@NotNull File from, @NotNull File to) throws IOException {
+    try {
+      Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void deleteFile(@NotNull File file) {
+    if (file.exists() && !FileUtil.delete(file)) {
+      myLogger.warn("Error deleting directories states file " + file.getAbsolutePath());
+    }
+  }
+
+  /**
+   * Makes the rename durable where the platform allows opening a directory, e.g. not on Windows
+   */
+  private static void syncDirectory(@Nullable File dir) {
+    if (dir == null) return;
+    try {
+      final FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException ignored) {
+    }
+  }
+
+  private static long getChecksum(char operation, @NotNull String payload) {
+    final CRC32 crc = new CRC32();
+    crc.update(operation);
+    crc.update(payload.getBytes(CHARSET));
+    return crc.getValue();
+  }
+
+  @NotNull
+  private static String getMessage(@NotNull IOException e) {
+    return e.getMessage() == null ? "" : ": " + e.getMessage();
+  }
+
+  private static void close(@Nullable Closeable closeable) {
+    if (closeable == null) return;
+    try {
+      closeable.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -0,0 +1,135 @@
+package jetbrains.buildServer.swabra;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.*;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Latency histogram of a Swabra phase exposed via JMX.
+ *
+ * Attributes are Count, TotalTimeMs, RecentCount, RecentTimeMs and cumulative buckets
+ * le_&lt;bound&gt;ms and le_inf, the same way Prometheus histograms are exported.
+ */
+class PhaseLatencyHistogram implements DynamicMBean {
+  static final long[] BOUNDS_MILLIS = {1, 4, 16, 64, 256, 1024, 4096, 16384, 65536, 262144};
+
+  private static final String COUNT = "Count";
+  private static final String TOTAL_TIME = "TotalTimeMs";
+  private static final String RECENT_COUNT = "RecentCount";
+  private static final String RECENT_TIME = "RecentTimeMs";
+  private static final String BUCKET_PREFIX = "le_";
+  private static final String INFINITE_BUCKET = BUCKET_PREFIX + "inf";
+
+  @NotNull
+  private final PhaseStatistics.Phase myPhase;
+  @NotNull
+  private final WindowedCounter myCount;
+  @NotNull
+  private final WindowedCounter myTime;
+  /**
+   * Non-cumulative bucket counts, the last one is for values above all the bounds
+   */
+  @NotNull
+  private final AtomicLongArray myBuckets = new AtomicLongArray(BOUNDS_MILLIS.length + 1);
+
+  PhaseLatencyHistogram(@NotNull PhaseStatistics.Phase phase, int windowMinutes) {
+    myPhase = phase;
+    myCount = new WindowedCounter(windowMinutes);
+    myTime = new WindowedCounter(windowMinutes);
+  }
+
+  @NotNull
+  PhaseStatistics.Phase getPhase() {
+    return myPhase;
+  }
+
+  void add(long nanos) {
+    final long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    myCount.add(1);
+    myTime.add(millis);
+    myBuckets.incrementAndGet(getBucket(millis));
+  }
+
+  private static int getBucket(long millis) {
+    for (int i = 0; i < BOUNDS_MILLIS.length; ++i) {
+      if (millis <= BOUNDS_MILLIS[i]) {
+        return i;
+      }
+    }
+    return BOUNDS_MILLIS.length;
+  }
+
+  /**
+   * @return number of values less than or equal to the bound of the bucket, bucket with index
+   * BOUNDS_MILLIS.length contains all the values
+   */
+  long getCumulativeCount(int bucket) {
+    long result = 0;
+    for (int i = 0; i <= bucket; ++i) {
+      result += myBuckets.get(i);
+    }
+    return result;
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    if (COUNT.equals(attribute)) return myCount.getTotal();
+    if (TOTAL_TIME.equals(attribute)) return myTime.getTotal();
+    if (RECENT_COUNT.equals(attribute)) return myCount.getRecent();
+    if (RECENT_TIME.equals(attribute)) return myTime.getRecent();
+    if (INFINITE_BUCKET.equals(attribute)) return getCumulativeCount(BOUNDS_MILLIS.length);
+    for (int i = 0; i < BOUNDS_MILLIS.length; ++i) {
+      if (getBucketName(i).equals(attribute)) return getCumulativeCount(i);
+    }
+    throw new AttributeNotFoundException(attribute);
+  }
+
+  public AttributeList getAttributes(String[] attributes) {
+    final AttributeList result = new AttributeList();
+    for (String attribute : attributes) {
+      try {
+        result.add(new Attribute(attribute, getAttribute(attribute)));
+      } catch (AttributeNotFoundException ignored) {
+      }
+    }
+    return result;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read-only");
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    final List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+    attributes.add(createAttributeInfo(COUNT, "Number of phase runs"));
+    attributes.add(createAttributeInfo(TOTAL_TIME, "Total phase time in milliseconds"));
+    attributes.add(createAttributeInfo(RECENT_COUNT, "Number of phase runs in the recent window"));
+    attributes.add(createAttributeInfo(RECENT_TIME, "Phase time in the recent window in milliseconds"));
+    for (int i = 0; i < BOUNDS_MILLIS.length; ++i) {
+      attributes.add(createAttributeInfo(getBucketName(i), "Number of phase runs which took up to " + BOUNDS_MILLIS[i] + "ms"));
+    }
+    attributes.add(createAttributeInfo(INFINITE_BUCKET, "Number of phase runs"));
+    return new MBeanInfo(getClass().getName(), "Swabra " + myPhase.getKey() + " phase latency",
+                         attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+  }
+
+  @NotNull
+  private static String getBucketName(int bucket) {
+    return BUCKET_PREFIX + BOUNDS_MILLIS[bucket] + "ms";
+  }
+
+  @NotNull
+  private static MBeanAttributeInfo createAttributeInfo(@NotNull String name, @NotNull String description) {
+    return new MBeanAttributeInfo(name, Long.class.getName(), description, true, false, false);
+  }
+}
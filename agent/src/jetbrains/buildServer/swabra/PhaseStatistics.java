@@ -0,0 +1,126 @@
+package jetbrains.buildServer.swabra;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Time, entries and bytes of Swabra phases for one monitored directory.
+ *
+ * Published as build statistic values swabra.&lt;phase&gt;.&lt;metric&gt;:&lt;directory&gt;, where metric is one of
+ * timeMs, entries, bytes and entriesPerSecond and directory is relative to the checkout directory
+ * ("." for the checkout directory itself). Deletion time includes locked files resolution time,
+ * comparison time includes reading the snapshot.
+ */
+public class PhaseStatistics {
+  /**
+   * Publish phases statistics as build statistic values, agent-wide {@link SwabraMetrics} are recorded regardless of it
+   */
+  public static final String STATISTICS_PROPERTY = "teamcity.swabra.statistics";
+
+  public static enum Phase {
+    SNAPSHOT_WRITE("snapshotWrite"),
+    SCAN("scan"),
+    COMPARISON("comparison"),
+    DELETION("deletion"),
+    LOCKED_FILES_RESOLUTION("lockedFilesResolution"),
+    STATE_PERSISTENCE("statePersistence");
+
+    @NotNull
+    private final String myKey;
+
+    Phase(@NotNull String key) {
+      myKey = key;
+    }
+
+    @NotNull
+    public String getKey() {
+      return myKey;
+    }
+  }
+
+  private static final int TIME = 0;
+  private static final int ENTRIES = 1;
+  private static final int BYTES = 2;
+  private static final int COUNTERS = 3;
+
+  @NotNull
+  private final String myDirectoryId;
+  /**
+   * Phases may be recorded by the deletion workers concurrently
+   */
+  @NotNull
+  private final AtomicLongArray myCounters = new AtomicLongArray(Phase.values().length * COUNTERS);
+
+  public PhaseStatistics(@NotNull String directoryId) {
+    myDirectoryId = directoryId;
+  }
+
+  @NotNull
+  public static PhaseStatistics create(@NotNull File dir, @Nullable File checkoutDir) {
+    return new PhaseStatistics(getDirectoryId(dir, checkoutDir));
+  }
+
+  public static boolean isPublishingEnabled() {
+    return TeamCityProperties.getBoolean(STATISTICS_PROPERTY);
+  }
+
+  @NotNull
+  static String getDirectoryId(@NotNull File dir, @Nullable File checkoutDir) {
+    if (checkoutDir == null || !FileUtil.isAncestor(checkoutDir, dir, false)) {
+      return SwabraUtil.unifyPath(dir.getAbsolutePath(), '/');
+    }
+    final String relativePath = FileUtil.getRelativePath(checkoutDir, dir);
+    return relativePath == null || relativePath.isEmpty() ? "." : SwabraUtil.unifyPath(relativePath, '/');
+  }
+
+  public void add(@NotNull Phase phase, long nanos, long entries, long bytes) {
+    final int index = phase.ordinal() * COUNTERS;
+    myCounters.addAndGet(index + TIME, nanos);
+    myCounters.addAndGet(index + ENTRIES, entries);
+    myCounters.addAndGet(index + BYTES, bytes);
+  }
+
+  public long getTime(@NotNull Phase phase) {
+    return myCounters.get(phase.ordinal() * COUNTERS + TIME);
+  }
+
+  public long getEntries(@NotNull Phase phase) {
+    return myCounters.get(phase.ordinal() * COUNTERS + ENTRIES);
+  }
+
+  public long getBytes(@NotNull Phase phase) {
+    return myCounters.get(phase.ordinal() * COUNTERS + BYTES);
+  }
+
+  /**
+   * Publishes the recorded phases
+   */
+  public void publish(@NotNull SwabraLogger logger) {
+    for (Phase phase : Phase.values()) {
+      final long time = getTime(phase);
+      final long entries = getEntries(phase);
+      final long bytes = getBytes(phase);
+      if (time == 0 && entries == 0) {
+        continue;
+      }
+      logger.buildStatisticValue(getKey(phase, "timeMs"), TimeUnit.NANOSECONDS.toMillis(time));
+      logger.buildStatisticValue(getKey(phase, "entries"), entries);
+      if (bytes > 0) {
+        logger.buildStatisticValue(getKey(phase, "bytes"), bytes);
+      }
+      if (time > 0 && entries > 0) {
+        logger.buildStatisticValue(getKey(phase, "entriesPerSecond"), entries * TimeUnit.SECONDS.toNanos(1) / time);
+      }
+    }
+  }
+
+  @NotNull
+  private String getKey(@NotNull Phase phase, @NotNull String metric) {
+    return "swabra." + phase.getKey() + "." + metric + ":" + myDirectoryId;
+  }
+}
@@ -0,0 +1,116 @@
+package jetbrains.buildServer.swabra;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Sizes and last use times of the snapshots of the monitored directories which have a saved state.
+ *
+ * Snapshots are kept for the directories in pending and dirty states until the next build in the directory,
+ * so on agents with many checkout directories they may take a lot of disk space. When the total size exceeds the budget
+ * the least recently used snapshots are evicted, their directories get unknown state.
+ */
+class SnapshotsIndex {
+  /**
+   * Disk budget for snapshot files in megabytes, 0 for no limit
+   */
+  static final String MAX_SIZE_PROPERTY = "teamcity.swabra.snapshots.maxSizeMb";
+
+  private final ConcurrentMap<String, Entry> myEntries = new ConcurrentHashMap<String, Entry>();
+
+  /**
+   * @return budget in bytes, 0 for no limit
+   */
+  static long getBudget() {
+    return Math.max(0, TeamCityProperties.getInteger(MAX_SIZE_PROPERTY, 0)) * 1024L * 1024L;
+  }
+
+  /**
+   * Records the size of the directory snapshot, forgets the directory if there is no snapshot
+   * @param checkoutDir checkout directory of the build which saved the directory state
+   */
+  void update(@NotNull String dir, @NotNull String checkoutDir, @NotNull File snapshot, long lastUse) {
+    final long size = snapshot.length();
+    if (size == 0) {
+      myEntries.remove(dir);
+    } else {
+      update(dir, checkoutDir, size, lastUse);
+    }
+  }
+
+  void update(@NotNull String dir, @NotNull String checkoutDir, long size, long lastUse) {
+    myEntries.put(dir, new Entry(checkoutDir, size, lastUse));
+  }
+
+  void touch(@NotNull String dir, long now) {
+    final Entry entry = myEntries.get(dir);
+    if (entry != null) {
+      entry.lastUse = now;
+    }
+  }
+
+  void remove(@NotNull String dir) {
+    myEntries.remove(dir);
+  }
+
+  long getSize(@NotNull String dir) {
+    final Entry entry = myEntries.get(dir);
+    return entry == null ? 0 : entry.size;
+  }
+
+  long getTotalSize() {
+    long total = 0;
+    for (Entry entry : myEntries.values()) {
+      total += entry.size;
+    }
+    return total;
+  }
+
+  /**
+   * @param keptCheckoutDir checkout directory which directories snapshots must not be evicted, e.g. the one of the running
+   *                        build, as its snapshots are needed for the cleanup when the build finishes
+   * @return directories which snapshots must be evicted to fit the budget, the least recently used first
+   */
+  @NotNull
+  List<String> selectEvicted(long budget, @Nullable String keptCheckoutDir) {
+    final List<Map.Entry<String, Entry>> entries = new ArrayList<Map.Entry<String, Entry>>(myEntries.entrySet());
+    long total = 0;
+    for (Map.Entry<String, Entry> entry : entries) {
+      total += entry.getValue().size;
+    }
+    if (total <= budget) return Collections.emptyList();
+
+    Collections.sort(entries, new Comparator<Map.Entry<String, Entry>>() {
+      public int compare(Map.Entry<String, Entry> o1, Map.Entry<String, Entry> o2) {
+        final long lastUse1 = o1.getValue().lastUse;
+        final long lastUse2 = o2.getValue().lastUse;
+        return lastUse1 < lastUse2 ? -1 : (lastUse1 == lastUse2 ? 0 : 1);
+      }
+    });
+    final List<String> evicted = new ArrayList<String>();
+    for (Map.Entry<String, Entry> entry : entries) {
+      if (total <= budget) break;
+      if (entry.getValue().checkoutDir.equals(keptCheckoutDir)) continue;
+      evicted.add(entry.getKey());
+      total -= entry.getValue().size;
+    }
+    return evicted;
+  }
+
+  private static final class Entry {
+    @NotNull private final String checkoutDir;
+    private final long size;
+    private volatile long lastUse;
+
+    private Entry(@NotNull String checkoutDir, long size, long lastUse) {
+      this.checkoutDir = checkoutDir;
+      this.size = size;
+      this.lastUse = lastUse;
+    }
+  }
+}
@@ -11,12 +11,16 @@ package jetbrains.buildServer.swabra;
 import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import jetbrains.buildServer.TeamCityRuntimeException;
 import jetbrains.buildServer.Used;
 import jetbrains.buildServer.agent.*;
 import jetbrains.buildServer.agent.impl.directories.DirectoryMapDirectoriesCleaner;
 import jetbrains.buildServer.agent.impl.operationModes.AgentOperationModeHolder;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.swabra.processes.LockedFileResolver;
 import jetbrains.buildServer.swabra.processes.WmicProcessDetailsProvider;
 import jetbrains.buildServer.swabra.snapshots.*;
@@ -35,6 +39,10 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
   public static final String DEBUG_MODE = "swabra.debug.mode";
 
   public static final String CACHE_KEY = "swabra";
+  /**
+   * Directory in the Swabra cache where changes journals keep their sync directories
+   */
+  private static final String CHANGES_JOURNALS_DIR = "journals";
   public static final String TEST_LOG = "swabra.test.log";
 
   private final SwabraLogger myLogger;
@@ -60,6 +68,14 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
 
   private AtomicBoolean myBuildInterrupted = new AtomicBoolean(false);
 
+  /**
+   * Journals of changes made in the directories since their snapshots were saved, closed when the snapshot is used,
+   * replaced or removed
+   */
+  private final Map<File, ChangesJournal> myChangesJournals = new ConcurrentHashMap<File, ChangesJournal>();
+
+  private TrashBin myTrashBin;
+
   public Swabra(@NotNull final EventDispatcher<AgentLifeCycleListener> agentDispatcher,
                 @NotNull final SwabraLogger logger,
                 @NotNull final SwabraPropertiesProcessor propertiesProcessor,
@@ -94,6 +110,30 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
     myPropertiesProcessor = propertiesProcessor;
     myToolsRegistry = toolsRegistry;
     myLockingProcessesProviderFactory = lockingProcessesProviderFactory;
+    myPropertiesProcessor.addSnapshotEvictionListener(new SwabraPropertiesProcessor.SnapshotEvictionListener() {
+      public void snapshotEvicted(@NotNull File dir) {
+        closeChangesJournals(dir, false);
+      }
+    });
+  }
+
+  @Override
+  public void agentStarted(@NotNull BuildAgent agent) {
+    // sync directories left by the journals of the previous agent run
+    FileUtil.delete(getChangesJournalsDir());
+  }
+
+  @Override
+  public void agentShutdown() {
+    closeChangesJournals();
+    if (myTrashBin != null) {
+      myTrashBin.shutdown();
+    }
+  }
+
+  @Override
+  public void checkoutDirectoryRemoved(@NotNull File checkoutDir) {
+    closeChangesJournals(checkoutDir, true);
   }
 
   @NotNull
@@ -118,7 +158,9 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
 
     if (!mySettings.isSwabraEnabled()) {
       myLogger.message("Swabra cleanup is disabled", false);
+      closeChangesJournals();
       myPropertiesProcessor.deleteRecords(mySettings.getCheckoutDir());
+      myPropertiesProcessor.flush();
       return;
     }
 
@@ -135,6 +177,7 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
       }
 
     } finally {
+      myPropertiesProcessor.flush();
       myLogger.activityFinished();
     }
   }
@@ -181,6 +224,7 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
     try {
       collectFiles(mySettings.getRules().getPaths());
     } finally {
+      myPropertiesProcessor.flush();
       myLogger.activityFinished();
     }
   }
@@ -357,7 +401,59 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
 
   private void collectFiles(@NotNull File dir, @Nullable FilesCollector.CollectionResultHandler handler) {
     final FilesCollector filesCollector = initFilesCollector(dir);
-    filesCollector.collect(myPropertiesProcessor.getSnapshotFile(dir), dir, handler);
+    final ChangesJournal journal = myChangesJournals.remove(dir);
+    final PhaseStatistics statistics = PhaseStatistics.create(dir, mySettings.getCheckoutDir());
+    filesCollector.setStatistics(statistics);
+    myPropertiesProcessor.setStatistics(statistics);
+    try {
+      filesCollector.collect(myPropertiesProcessor.getSnapshotFile(dir), dir, getChangesJournal(dir, journal), handler);
+    } finally {
+      if (journal != null) journal.close();
+      myPropertiesProcessor.setStatistics(null);
+      recordStatistics(statistics);
+    }
+  }
+
+  @Nullable
+  private ChangesJournal getChangesJournal(@NotNull File dir, @Nullable ChangesJournal journal) {
+    if (journal == null) {
+      return null;
+    }
+    if (!journal.isApplicable(mySettings.getRules().getRulesForPath(dir))) {
+      myLogger.debug("Not using changes journal for " + dir + ", monitoring rules changed");
+      return null;
+    }
+    if (!journal.sync()) {
+      myLogger.debug("Not using changes journal for " + dir + ", full scan will be performed");
+      return null;
+    }
+    return journal;
+  }
+
+  private void closeChangesJournals() {
+    for (ChangesJournal journal : myChangesJournals.values()) {
+      journal.close();
+    }
+    myChangesJournals.clear();
+  }
+
+  /**
+   * Closes the journals of the directory and, if withSubdirectories is set, of the directories under it
+   */
+  private void closeChangesJournals(@NotNull File dir, boolean withSubdirectories) {
+    for (Iterator<Map.Entry<File, ChangesJournal>> it = myChangesJournals.entrySet().iterator(); it.hasNext(); ) {
+      final Map.Entry<File, ChangesJournal> entry = it.next();
+      final File monitoredDir = entry.getKey();
+      if (SwabraUtil.unifyPath(monitoredDir).equals(SwabraUtil.unifyPath(dir)) || withSubdirectories && FileUtil.isAncestor(dir, monitoredDir, true)) {
+        it.remove();
+        entry.getValue().close();
+      }
+    }
+  }
+
+  @NotNull
+  private File getChangesJournalsDir() {
+    return new File(myPropertiesProcessor.getCacheDir(), CHANGES_JOURNALS_DIR);
   }
 
   private FilesCollector initFilesCollector(@NotNull File dir) {
@@ -372,9 +468,33 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
     } else {
       processor = new FilesCollectionRulesAwareProcessor(myLogger, myLockedFileResolver, dir, mySettings, myBuildInterrupted);
     }
+    if (TeamCityProperties.getBoolean(TrashBin.TRASH_PROPERTY)) {
+      final TrashBin trashBin = getTrashBin(dir);
+      if (trashBin != null) {
+        final int pending = trashBin.getPendingDeletionsCount();
+        if (pending > 0) {
+          myLogger.debug(pending + " entries are still being deleted from trash, they are outside " + dir + " and don't affect its cleanup");
+        }
+        trashBin.retryFailedDeletions(myLockedFileResolver);
+      }
+      processor.setTrashBin(trashBin);
+    }
     return new FilesCollector(processor, myLogger, mySettings);
   }
 
+  @Nullable
+  private TrashBin getTrashBin(@NotNull File dir) {
+    if (myTrashBin == null) {
+      myTrashBin = new TrashBin(new File(myPropertiesProcessor.getCacheDir(), "trash"), myLogger);
+    }
+    if (FileUtil.isAncestor(dir, myTrashBin.getTrashDir(), false)) {
+      // directories moved to the trash would be detected as new ones
+      myLogger.debug("Not using trash for " + dir + ", trash directory is inside it");
+      return null;
+    }
+    return myTrashBin;
+  }
+
   private void makeSnapshots(@NotNull Collection<File> dirs) {
     if (!mySettings.isCleanupEnabled()) return;
     if (mySnapshotSaved) return;
@@ -387,15 +507,40 @@ public final class Swabra extends AgentLifeCycleAdapter implements PositionAware
         makeSnapshot(dir);
       }
     } finally {
+      myPropertiesProcessor.flush();
       myLogger.activityFinished();
     }
   }
 
   private void makeSnapshot(@NotNull File dir) {
-    if (!new SnapshotGenerator(dir, myLogger, mySettings.getRules()).generateSnapshot(myPropertiesProcessor.getSnapshotFile(dir))) {
-      mySettings.setCleanupEnabled(false);
-    } else {
-      myPropertiesProcessor.markPending(dir, mySettings.getCheckoutDir(), mySettings.isStrict(), myRunningBuild.getBuildTypeId());
+    final ChangesJournal previousJournal = myChangesJournals.remove(dir);
+    if (previousJournal != null) previousJournal.close();
+    // start watching before the snapshot, so the changes made during its generation are recorded
+    final ChangesJournal journal = TeamCityProperties.getBoolean(ChangesJournal.WATCH_CHANGES_PROPERTY)
+                                   ? ChangesJournal.start(dir, mySettings.getRules(), getChangesJournalsDir(), myLogger)
+                                   : null;
+    final PhaseStatistics statistics = PhaseStatistics.create(dir, mySettings.getCheckoutDir());
+    final SnapshotGenerator generator = new SnapshotGenerator(dir, myLogger, mySettings.getRules());
+    generator.setStatistics(statistics);
+    myPropertiesProcessor.setStatistics(statistics);
+    try {
+      if (!generator.generateSnapshot(myPropertiesProcessor.getSnapshotFile(dir))) {
+        if (journal != null) journal.close();
+        mySettings.setCleanupEnabled(false);
+      } else {
+        if (journal != null) myChangesJournals.put(dir, journal);
+        myPropertiesProcessor.markPending(dir, mySettings.getCheckoutDir(), mySettings.isStrict(), myRunningBuild.getBuildTypeId());
+      }
+    } finally {
+      myPropertiesProcessor.setStatistics(null);
+      recordStatistics(statistics);
+    }
+  }
+
+  private void recordStatistics(@NotNull PhaseStatistics statistics) {
+    SwabraMetrics.getInstance().record(statistics);
+    if (PhaseStatistics.isPublishingEnabled()) {
+      statistics.publish(myLogger);
     }
   }
 
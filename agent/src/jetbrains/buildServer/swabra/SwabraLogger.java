@@ -2,8 +2,11 @@
 
 package jetbrains.buildServer.swabra;
 
+import java.util.HashMap;
+import java.util.Map;
 import jetbrains.buildServer.BuildProblemData;
 import jetbrains.buildServer.agent.BuildProgressLogger;
+import jetbrains.buildServer.messages.serviceMessages.ServiceMessage;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
@@ -42,6 +45,16 @@ public final class SwabraLogger {
     if (myBuildLogger != null) myBuildLogger.error(message);
   }
 
+  public void buildStatisticValue(@NotNull String key, long value) {
+    CLASS_LOGGER.debug("Statistic value " + key + " = " + value);
+    if (myBuildLogger == null) return;
+
+    final Map<String, String> attributes = new HashMap<String, String>();
+    attributes.put("key", key);
+    attributes.put("value", String.valueOf(value));
+    myBuildLogger.message(ServiceMessage.asString("buildStatisticValue", attributes));
+  }
+
   public void debug(@NotNull final String message) {
     CLASS_LOGGER.debug(message);
   }
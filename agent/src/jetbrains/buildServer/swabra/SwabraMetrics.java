@@ -0,0 +1,199 @@
+package jetbrains.buildServer.swabra;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Agent-wide Swabra performance counters.
+ *
+ * Registered in the platform MBean server as jetbrains.buildServer.swabra:type=Metrics,
+ * phase latencies are registered as jetbrains.buildServer.swabra:type=PhaseLatency,phase=&lt;phase&gt;.
+ * Counters are shared by all the builds and monitored directories of the agent, so there is a single instance.
+ */
+public class SwabraMetrics implements SwabraMetricsMBean {
+  private static final Logger LOG = Logger.getLogger(SwabraMetrics.class);
+
+  static final String DOMAIN = "jetbrains.buildServer.swabra";
+  static final int RECENT_WINDOW_MINUTES = 15;
+
+  private static final SwabraMetrics INSTANCE = new SwabraMetrics();
+
+  private final WindowedCounter myScans = new WindowedCounter(RECENT_WINDOW_MINUTES);
+  private final WindowedCounter myEntriesVisited = new WindowedCounter(RECENT_WINDOW_MINUTES);
+  private final WindowedCounter myStatCalls = new WindowedCounter(RECENT_WINDOW_MINUTES);
+  private final WindowedCounter myDeletions = new WindowedCounter(RECENT_WINDOW_MINUTES);
+  private final WindowedCounter myLockResolutions = new WindowedCounter(RECENT_WINDOW_MINUTES);
+  private final WindowedCounter myProcessToolRuns = new WindowedCounter(RECENT_WINDOW_MINUTES);
+  private final WindowedCounter mySnapshotBytesWritten = new WindowedCounter(RECENT_WINDOW_MINUTES);
+  private final WindowedCounter mySnapshotBytesRead = new WindowedCounter(RECENT_WINDOW_MINUTES);
+
+  private final Map<PhaseStatistics.Phase, PhaseLatencyHistogram> myLatencies =
+    new EnumMap<PhaseStatistics.Phase, PhaseLatencyHistogram>(PhaseStatistics.Phase.class);
+
+  SwabraMetrics() {
+    for (PhaseStatistics.Phase phase : PhaseStatistics.Phase.values()) {
+      myLatencies.put(phase, new PhaseLatencyHistogram(phase, RECENT_WINDOW_MINUTES));
+    }
+  }
+
+  @NotNull
+  public static SwabraMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Registers the counters in the platform MBean server, counters registered by the previously loaded plugin are replaced
+   */
+  public void register() {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      registerReplacing(server, this, getObjectName());
+      for (PhaseLatencyHistogram histogram : myLatencies.values()) {
+        registerReplacing(server, histogram, getObjectName(histogram.getPhase()));
+      }
+    } catch (JMException e) {
+      LOG.warn("Failed to register Swabra metrics MBean: " + e.getMessage(), e);
+    }
+  }
+
+  public void unregister() {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      unregister(server, getObjectName());
+      for (PhaseStatistics.Phase phase : myLatencies.keySet()) {
+        unregister(server, getObjectName(phase));
+      }
+    } catch (JMException e) {
+      LOG.warn("Failed to unregister Swabra metrics MBean: " + e.getMessage(), e);
+    }
+  }
+
+  private static void registerReplacing(@NotNull MBeanServer server, @NotNull Object mbean, @NotNull ObjectName name) throws JMException {
+    unregister(server, name);
+    server.registerMBean(mbean, name);
+  }
+
+  private static void unregister(@NotNull MBeanServer server, @NotNull ObjectName name) throws JMException {
+    if (server.isRegistered(name)) {
+      server.unregisterMBean(name);
+    }
+  }
+
+  @NotNull
+  static ObjectName getObjectName() throws JMException {
+    return new ObjectName(DOMAIN + ":type=Metrics");
+  }
+
+  @NotNull
+  static ObjectName getObjectName(@NotNull PhaseStatistics.Phase phase) throws JMException {
+    return new ObjectName(DOMAIN + ":type=PhaseLatency,phase=" + phase.getKey());
+  }
+
+  /**
+   * Adds the phases recorded for a monitored directory
+   */
+  public void record(@NotNull PhaseStatistics statistics) {
+    for (PhaseStatistics.Phase phase : PhaseStatistics.Phase.values()) {
+      final long time = statistics.getTime(phase);
+      if (time > 0 || statistics.getEntries(phase) > 0) {
+        myLatencies.get(phase).add(time);
+      }
+    }
+    final long snapshotEntries = statistics.getEntries(PhaseStatistics.Phase.SNAPSHOT_WRITE);
+    final long scanEntries = statistics.getEntries(PhaseStatistics.Phase.SCAN);
+    if (snapshotEntries > 0) myScans.add(1);
+    if (scanEntries > 0) myScans.add(1);
+    myEntriesVisited.add(snapshotEntries + scanEntries);
+    myDeletions.add(statistics.getEntries(PhaseStatistics.Phase.DELETION));
+    myLockResolutions.add(statistics.getEntries(PhaseStatistics.Phase.LOCKED_FILES_RESOLUTION));
+    mySnapshotBytesWritten.add(statistics.getBytes(PhaseStatistics.Phase.SNAPSHOT_WRITE));
+    mySnapshotBytesRead.add(statistics.getBytes(PhaseStatistics.Phase.COMPARISON));
+  }
+
+  public void statCalls(int count) {
+    myStatCalls.add(count);
+  }
+
+  public void processToolStarted() {
+    myProcessToolRuns.add(1);
+  }
+
+  @NotNull
+  PhaseLatencyHistogram getLatency(@NotNull PhaseStatistics.Phase phase) {
+    return myLatencies.get(phase);
+  }
+
+  public int getRecentWindowMinutes() {
+    return RECENT_WINDOW_MINUTES;
+  }
+
+  public long getScans() {
+    return myScans.getTotal();
+  }
+
+  public long getRecentScans() {
+    return myScans.getRecent();
+  }
+
+  public long getEntriesVisited() {
+    return myEntriesVisited.getTotal();
+  }
+
+  public long getRecentEntriesVisited() {
+    return myEntriesVisited.getRecent();
+  }
+
+  public long getStatCalls() {
+    return myStatCalls.getTotal();
+  }
+
+  public long getRecentStatCalls() {
+    return myStatCalls.getRecent();
+  }
+
+  public long getDeletions() {
+    return myDeletions.getTotal();
+  }
+
+  public long getRecentDeletions() {
+    return myDeletions.getRecent();
+  }
+
+  public long getLockResolutions() {
+    return myLockResolutions.getTotal();
+  }
+
+  public long getRecentLockResolutions() {
+    return myLockResolutions.getRecent();
+  }
+
+  public long getProcessToolRuns() {
+    return myProcessToolRuns.getTotal();
+  }
+
+  public long getRecentProcessToolRuns() {
+    return myProcessToolRuns.getRecent();
+  }
+
+  public long getSnapshotBytesWritten() {
+    return mySnapshotBytesWritten.getTotal();
+  }
+
+  public long getRecentSnapshotBytesWritten() {
+    return mySnapshotBytesWritten.getRecent();
+  }
+
+  public long getSnapshotBytesRead() {
+    return mySnapshotBytesRead.getTotal();
+  }
+
+  public long getRecentSnapshotBytesRead() {
+    return mySnapshotBytesRead.getRecent();
+  }
+}
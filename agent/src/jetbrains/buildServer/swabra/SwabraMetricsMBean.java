@@ -0,0 +1,59 @@
+package jetbrains.buildServer.swabra;
+
+/**
+ * Agent-wide Swabra counters exposed via JMX. Each counter is available as a cumulative value
+ * since the agent start and as a value for the last {@link #getRecentWindowMinutes()} minutes.
+ */
+public interface SwabraMetricsMBean {
+  int getRecentWindowMinutes();
+
+  /**
+   * File system traversals: snapshot generations and files collections
+   */
+  long getScans();
+
+  long getRecentScans();
+
+  /**
+   * Entries returned by the file system traversals
+   */
+  long getEntriesVisited();
+
+  long getRecentEntriesVisited();
+
+  /**
+   * File attributes reads, including the entries skipped by the rules
+   */
+  long getStatCalls();
+
+  long getRecentStatCalls();
+
+  /**
+   * Deletions of newly created files and directories, including failed ones
+   */
+  long getDeletions();
+
+  long getRecentDeletions();
+
+  /**
+   * Locked files resolutions
+   */
+  long getLockResolutions();
+
+  long getRecentLockResolutions();
+
+  /**
+   * Runs of external tools like handle.exe or wmic
+   */
+  long getProcessToolRuns();
+
+  long getRecentProcessToolRuns();
+
+  long getSnapshotBytesWritten();
+
+  long getRecentSnapshotBytesWritten();
+
+  long getSnapshotBytesRead();
+
+  long getRecentSnapshotBytesRead();
+}
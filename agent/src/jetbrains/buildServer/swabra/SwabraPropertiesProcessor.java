@@ -4,6 +4,9 @@ package jetbrains.buildServer.swabra;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import jetbrains.buildServer.agent.AgentLifeCycleAdapter;
 import jetbrains.buildServer.agent.AgentLifeCycleListener;
@@ -12,8 +15,11 @@ import jetbrains.buildServer.agent.impl.directories.DirectoryMapAction;
 import jetbrains.buildServer.agent.impl.directories.DirectoryMapItem;
 import jetbrains.buildServer.agent.impl.directories.DirectoryMapPersistance;
 import jetbrains.buildServer.agent.impl.directories.DirectoryMapStructure;
+import jetbrains.buildServer.swabra.jfr.StatePersistenceEvent;
+import jetbrains.buildServer.swabra.jfr.SwabraEvents;
 import jetbrains.buildServer.util.EventDispatcher;
 import jetbrains.buildServer.util.FileUtil;
+import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -31,12 +37,59 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
 
   private static final String SNAPSHOT_SUFFIX = ".snapshot";
 
-  private final Map<String, DirInfo> myProperties;
+  /**
+   * Journal is compacted when it has more records than this number or than the number of states multiplied
+   * by JOURNAL_RECORDS_PER_STATE_TO_COMPACT
+   */
+  private static final int MIN_JOURNAL_RECORDS_TO_COMPACT = 256;
+  private static final int JOURNAL_RECORDS_PER_STATE_TO_COMPACT = 4;
+
+  private static final int DIRECTORY_LOCKS_COUNT = 32;
+
+  private static final int STALE_SNAPSHOTS_BATCH_SIZE = 100;
+
+  private final ConcurrentMap<String, DirInfo> myProperties;
   private final SwabraLogger myLogger;
   @NotNull private final DirectoryMapPersistance myPersist;
   private File myPropertiesFile;
 
+  /**
+   * Serializes changes of the same monitored directory: the state is changed in the map and appended to the journal
+   * under the directory lock, so the journal order matches the map for every directory
+   */
+  private final Object[] myDirectoryLocks;
+  /**
+   * Guards the journal and loading, held only for the journal append or sync, for compaction and for the first read
+   */
+  private final Object myJournalLock = new Object();
+  private DirectoryStatesJournal myJournal;
+  private volatile boolean myPropertiesRead;
+
+  /**
+   * Counted down when the directories states are reconciled with the checkout directories, snapshots of the removed
+   * states are deleted in background after that
+   */
   private CountDownLatch myCleanupFinishedSignal;
+  /**
+   * Snapshots not deleted yet by the startup cleanup, a snapshot is removed from here by the thread which deletes it
+   * or by the build which needs the snapshot file, under the lock of the snapshot path
+   */
+  private final Set<File> myStaleSnapshots = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+  private final SnapshotsIndex mySnapshotsIndex = new SnapshotsIndex();
+  private volatile boolean myStaleSnapshotsDeleted;
+  private volatile boolean myShutdown;
+  /**
+   * Cleanup of different monitored directories may run in different threads, so statistics are set per thread
+   */
+  private final ThreadLocal<PhaseStatistics> myStatistics = new ThreadLocal<PhaseStatistics>();
+  private final List<SnapshotEvictionListener> myEvictionListeners = new CopyOnWriteArrayList<SnapshotEvictionListener>();
+
+  /**
+   * Notified when a directory snapshot is evicted to keep the snapshots within the disk budget
+   */
+  public interface SnapshotEvictionListener {
+    void snapshotEvicted(@NotNull File dir);
+  }
 
   public SwabraPropertiesProcessor(@NotNull final EventDispatcher<AgentLifeCycleListener> agentDispatcher,
                                    @NotNull final SwabraLogger logger,
@@ -44,18 +97,37 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
     myPersist = persistance;
     agentDispatcher.addListener(this);
     myLogger = logger;
-    myProperties = new HashMap<String, DirInfo>();
+    myProperties = new ConcurrentHashMap<String, DirInfo>();
+    myDirectoryLocks = new Object[DIRECTORY_LOCKS_COUNT];
+    for (int i = 0; i < myDirectoryLocks.length; ++i) {
+      myDirectoryLocks[i] = new Object();
+    }
+  }
+
+  public void addSnapshotEvictionListener(@NotNull SnapshotEvictionListener listener) {
+    myEvictionListeners.add(listener);
+  }
+
+  /**
+   * Statistics to record directories states persistence time of the current thread to, null to stop recording
+   */
+  public void setStatistics(@Nullable PhaseStatistics statistics) {
+    if (statistics == null) {
+      myStatistics.remove();
+    } else {
+      myStatistics.set(statistics);
+    }
   }
 
   @Override
   public void afterAgentConfigurationLoaded(@NotNull BuildAgent agent) {
     myPropertiesFile = new File(agent.getConfiguration().getCacheDirectory(Swabra.CACHE_KEY), FILE_NAME);
+    myJournal = new DirectoryStatesJournal(myPropertiesFile, myLogger);
+    myPropertiesRead = false;
   }
 
   @Override
   public void agentStarted(@NotNull BuildAgent agent) {
-    myCleanupFinishedSignal = new CountDownLatch(1);
-
     final List<File> actualCheckoutDirs = new ArrayList<File>();
     myPersist.withDirectoriesMap(new DirectoryMapAction() {
       public void action(@NotNull final DirectoryMapStructure data) {
@@ -65,27 +137,70 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
         }
       }
     });
+    startCleanup(actualCheckoutDirs);
+  }
+
+  /**
+   * Reconciles the directories states with the actual checkout directories and deletes stale snapshots in background
+   */
+  void startCleanup(@NotNull final List<File> actualCheckoutDirs) {
+    myCleanupFinishedSignal = new CountDownLatch(1);
+    myStaleSnapshotsDeleted = false;
+    myShutdown = false;
+
     new Thread(new Runnable() {
       public void run() {
         cleanupPropertiesAndSnapshots(actualCheckoutDirs);
+        deleteStaleSnapshots();
       }
     }, "Swabra-cleanup-snapshots").start();
   }
 
+  @Override
+  public void agentShutdown() {
+    myShutdown = true;
+    if (myJournal == null) return;
+    synchronized (myJournalLock) {
+      try {
+        myJournal.close();
+      } catch (IOException e) {
+        myLogger.warn("Error saving directories states to " + myJournal.getJournalFile().getAbsolutePath() + getMessage(e));
+        myLogger.exception(e);
+      }
+    }
+  }
+
   @Override
   public void checkoutDirectoryRemoved(@NotNull File checkoutDir) {
     deleteRecord(checkoutDir);
     FileUtil.delete(getSnapshotFile(checkoutDir));
+    flush();
   }
 
-  public synchronized void deleteRecord(@NotNull File dir) {
-    readProperties(false);
-    myProperties.remove(unifyPath(dir));
-    writeProperties();
+  /**
+   * Forces the directories states changed since the last flush to the disk, called once per build phase
+   */
+  public void flush() {
+    if (myJournal == null) return;
+    synchronized (myJournalLock) {
+      try {
+        myJournal.sync();
+      } catch (IOException e) {
+        myLogger.warn("Error saving directories states to " + myJournal.getJournalFile().getAbsolutePath() + getMessage(e));
+        myLogger.exception(e);
+        // compaction forces all the states to the disk
+        compactProperties();
+      }
+    }
+  }
+
+  public void deleteRecord(@NotNull File dir) {
+    readProperties();
+    removeRecord(unifyPath(dir));
   }
 
-  public synchronized void deleteRecords(@NotNull File checkoutDir) {
-    readProperties(false);
+  public void deleteRecords(@NotNull File checkoutDir) {
+    readProperties();
 
     final ArrayList<String> propertiesToRemove = new ArrayList<String>();
     final ArrayList<File> snapshotsToRemove = new ArrayList<File>();
@@ -100,17 +215,34 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
       }
     }
     for (String s : propertiesToRemove) {
-      myProperties.remove(s);
+      removeRecord(s);
     }
 
-    writeProperties();
-
     for (File f : snapshotsToRemove) {
       FileUtil.delete(f);
     }
   }
 
-  private void readProperties(boolean preserveFile) {
+  private void removeRecord(@NotNull String key) {
+    synchronized (getDirectoryLock(key)) {
+      mySnapshotsIndex.remove(key);
+      if (myProperties.remove(key) != null) {
+        writeRecord(key, null);
+      }
+    }
+  }
+
+  @NotNull
+  private Object getDirectoryLock(@NotNull String key) {
+    return myDirectoryLocks[(key.hashCode() & Integer.MAX_VALUE) % myDirectoryLocks.length];
+  }
+
+  private void readProperties() {
+    awaitCleanup();
+    readPropertiesNoAwait();
+  }
+
+  private void awaitCleanup() {
     if (myCleanupFinishedSignal != null) {
       try {
         myCleanupFinishedSignal.await();
@@ -118,133 +250,228 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
         myLogger.warn("Thread interrupted");
       }
     }
-    readPropertiesNoAwait(preserveFile);
   }
 
-  private void readPropertiesNoAwait(boolean preserveFile) {
-    if (!myPropertiesFile.isFile()) {
-      myLogger.debug("Couldn't read directories states from " + myPropertiesFile.getAbsolutePath() + ", no file present");
+  /**
+   * Reads directories states from the base file and the journal once, after that the in-memory states are authoritative
+   */
+  private void readPropertiesNoAwait() {
+    if (myPropertiesRead) {
       return;
     }
-    BufferedReader reader = null;
-    try {
-      reader = new BufferedReader(new FileReader(myPropertiesFile));
-      String fileRecord = reader.readLine();
-      while (fileRecord != null) {
-        final String[] mapElem = fileRecord.split(KEY_VAL_SEPARATOR);
-        if (mapElem.length > 4 || mapElem.length < 2) {
-          myLogger.warn("Error reading directories states from " + myPropertiesFile.getAbsolutePath() + ", came across illegal record");
-          return;
-        }
-        final String dir = mapElem[0];
-        final String checkoutDir = mapElem.length == 2 ? dir : mapElem[2];
-        myProperties.put(dir, new DirInfo(mapElem[1], checkoutDir, mapElem.length == 4 ? mapElem[3] : null));
-        fileRecord = reader.readLine();
+    synchronized (myJournalLock) {
+      if (!myPropertiesRead) {
+        loadProperties();
+        myPropertiesRead = true;
+      }
+    }
+  }
+
+  private void loadProperties() {
+    myJournal.recover();
+    boolean intact = true;
+    if (myPropertiesFile.isFile()) {
+      intact = readBaseFile();
+    } else {
+      myLogger.debug("Couldn't read directories states from " + myPropertiesFile.getAbsolutePath() + ", no file present");
+    }
+    intact &= myJournal.replay(new DirectoryStatesJournal.Replayer() {
+      public void put(@NotNull String record) {
+        parseRecord(record);
       }
+
+      public void remove(@NotNull String key) {
+        myProperties.remove(key);
+      }
+    });
+    if (!intact) {
+      // records appended after the damaged one would be lost on the next replay
+      compactProperties();
+    }
+  }
+
+  /**
+   * Reads the base file skipping the records which don't pass verification
+   * @return false if some records were skipped and the file must be rewritten
+   */
+  private boolean readBaseFile() {
+    final String text;
+    try {
+      text = myJournal.readBase();
     } catch (IOException e) {
       myLogger.warn("Error reading directories states from " + myPropertiesFile.getAbsolutePath() + getMessage(e));
       myLogger.exception(e);
-    } finally {
-      if (reader != null) {
-        try {
-          reader.close();
-        } catch (IOException e) {
-          myLogger.warn("Error closing directories states file " + myPropertiesFile.getAbsolutePath() + getMessage(e));
-          myLogger.exception(e);
-        }
-      }
-      if (!preserveFile) {
-        deletePropertiesFile();
+      return false;
+    }
+    final String[] records = text.split("\r?\n");
+    // every record is followed by a line separator, so the last one is torn if the separator is missing
+    final int completeRecords = text.endsWith("\n") ? records.length : records.length - 1;
+    int skipped = records.length - completeRecords;
+    for (int i = 0; i < completeRecords; ++i) {
+      if (records[i].length() > 0 && !parseRecord(records[i])) {
+        ++skipped;
       }
     }
+    if (skipped > 0) {
+      myLogger.warn("Skipped " + skipped + " damaged record(s) while reading directories states from " + myPropertiesFile.getAbsolutePath());
+      return false;
+    }
+    return true;
+  }
+
+  private boolean parseRecord(@NotNull String record) {
+    final String[] mapElem = record.split(KEY_VAL_SEPARATOR);
+    if (mapElem.length > 4 || mapElem.length < 2 || mapElem[0].length() == 0 || !DirectoryState.isValid(mapElem[1])) {
+      return false;
+    }
+    final String dir = mapElem[0];
+    final String checkoutDir = mapElem.length == 2 ? dir : mapElem[2];
+    myProperties.put(dir, new DirInfo(mapElem[1], checkoutDir, mapElem.length == 4 ? mapElem[3] : null));
+    return true;
+  }
+
+  @NotNull
+  private static String formatRecord(@NotNull String dir, @NotNull DirInfo info) {
+    return dir + KEY_VAL_SEPARATOR + info.state + KEY_VAL_SEPARATOR + info.checkoutDir + KEY_VAL_SEPARATOR + info.buildTypeId;
   }
 
   private String getMessage(IOException e) {
     return e.getMessage() == null ? "" : ": " + e.getMessage();
   }
 
-  private void writeProperties() {
-    if (myProperties.isEmpty()) {
-      if (myPropertiesFile.isFile()) {
-        deletePropertiesFile();
+  /**
+   * Appends the directory state change to the journal, compacts the journal when it grows
+   * @param info new directory state, null if the directory record is removed
+   */
+  private void writeRecord(@NotNull String dir, @Nullable DirInfo info) {
+    synchronized (myJournalLock) {
+      if (myJournal.getRecordsCount() >= Math.max(MIN_JOURNAL_RECORDS_TO_COMPACT, myProperties.size() * JOURNAL_RECORDS_PER_STATE_TO_COMPACT)) {
+        compactProperties();
+        return;
+      }
+      final long start = System.nanoTime();
+      final StatePersistenceEvent event = SwabraEvents.isAvailable() ? StatePersistenceEvent.start(myJournal.getJournalFile()) : null;
+      long bytes = 0;
+      try {
+        bytes = info == null ? myJournal.appendRemove(dir) : myJournal.appendPut(formatRecord(dir, info));
+      } catch (IOException e) {
+        myLogger.warn("Error saving directory state to " + myJournal.getJournalFile().getAbsolutePath() + getMessage(e));
+        myLogger.exception(e);
+      }
+      final PhaseStatistics statistics = myStatistics.get();
+      if (statistics != null) {
+        statistics.add(PhaseStatistics.Phase.STATE_PERSISTENCE, System.nanoTime() - start, 1, bytes);
+      }
+      if (event != null) {
+        event.finish(1, bytes, bytes > 0);
+      }
+      if (bytes == 0) {
+        // the journal may end with a torn record now, rewrite all the states
+        compactProperties();
       }
-      return;
     }
-    BufferedWriter writer = null;
+  }
+
+  /**
+   * Writes all the directories states to the base file and deletes the journal, must be called under the journal lock
+   */
+  private void compactProperties() {
+    final long start = System.nanoTime();
+    final StatePersistenceEvent event = SwabraEvents.isAvailable() ? StatePersistenceEvent.start(myPropertiesFile) : null;
+    final List<String> records = new ArrayList<String>(myProperties.size());
+    for (Map.Entry<String, DirInfo> entry : myProperties.entrySet()) {
+      records.add(formatRecord(entry.getKey(), entry.getValue()));
+    }
+    long bytes = 0;
+    boolean success = false;
     try {
-      writer = new BufferedWriter(new FileWriter(myPropertiesFile));
-      for (Map.Entry<String, DirInfo> entry : myProperties.entrySet()) {
-          writer.write(String.format("%s%s%s%s%s%s%s%n"
-            , entry.getKey(), KEY_VAL_SEPARATOR
-            , entry.getValue().state, KEY_VAL_SEPARATOR
-            , entry.getValue().checkoutDir, KEY_VAL_SEPARATOR
-            , entry.getValue().buildTypeId)
-          );
-      }
+      bytes = myJournal.compact(records);
+      success = true;
     } catch (IOException e) {
       myLogger.warn("Error saving directories states to " + myPropertiesFile.getAbsolutePath() + getMessage(e));
       myLogger.exception(e);
-    } finally {
-      if (writer != null) {
-        try {
-          writer.close();
-        } catch (IOException e) {
-          myLogger.warn("Error closing directories states file " + myPropertiesFile.getAbsolutePath());
-          myLogger.exception(e);
-        }
-      }
     }
-  }
-
-  private void deletePropertiesFile() {
-    if (!FileUtil.delete(myPropertiesFile)) {
-      myLogger.warn("Error deleting directories states file " + myPropertiesFile.getAbsolutePath());
+    final PhaseStatistics statistics = myStatistics.get();
+    if (statistics != null) {
+      statistics.add(PhaseStatistics.Phase.STATE_PERSISTENCE, System.nanoTime() - start, records.size(), bytes);
+    }
+    if (event != null) {
+      event.finish(records.size(), bytes, success);
     }
   }
 
+  /**
+   * Removes the states of the directories which are not under the actual checkout directories and collects their
+   * snapshots for deletion, linear in the number of states and snapshots
+   */
   private void cleanupPropertiesAndSnapshots(final List<File> actualCheckoutDirs) {
     try {
-      readPropertiesNoAwait(false);
-
-      final Set<String> savedDirs = myProperties.keySet();
-      final List<File> snapshots = getSnapshotFiles();
-
-      if (savedDirs.isEmpty() && snapshots.isEmpty()) {
-        return;
-      }
-
-      final ArrayList<String> propertiesToRemove = new ArrayList<String>(savedDirs);
-      final ArrayList<File> snapshotsToRemove = new ArrayList<File>(snapshots);
+      readPropertiesNoAwait();
 
+      final Set<String> actualCheckoutDirPaths = new HashSet<String>();
       for (File checkoutDir : actualCheckoutDirs) {
-        if (!checkoutDir.isDirectory()) {
-          continue;
-        }
-        final String unifiedCheckoutDirPath = unifyPath(checkoutDir);
-        for (Map.Entry<String, DirInfo> entry : myProperties.entrySet()) {
-          final DirInfo info = entry.getValue();
-          final String monitoredDir = entry.getKey();
-          if (info.checkoutDir.equals(unifiedCheckoutDirPath)) {
-            propertiesToRemove.remove(unifyPath(monitoredDir));
-            snapshotsToRemove.remove(getSnapshotFile(new File(monitoredDir)));
-          }
+        if (checkoutDir.isDirectory()) {
+          actualCheckoutDirPaths.add(unifyPath(checkoutDir));
         }
       }
 
-      for (String s : propertiesToRemove) {
-        myProperties.remove(s);
+      final Set<File> actualSnapshots = new HashSet<File>();
+      boolean statesRemoved = false;
+      for (Iterator<Map.Entry<String, DirInfo>> it = myProperties.entrySet().iterator(); it.hasNext();) {
+        final Map.Entry<String, DirInfo> entry = it.next();
+        if (actualCheckoutDirPaths.contains(entry.getValue().checkoutDir)) {
+          final File snapshot = getSnapshotFileNoAwait(new File(entry.getKey()));
+          actualSnapshots.add(snapshot);
+          mySnapshotsIndex.update(entry.getKey(), entry.getValue().checkoutDir, snapshot, snapshot.lastModified());
+        } else {
+          it.remove();
+          statesRemoved = true;
+        }
       }
 
-      writeProperties();
+      synchronized (myJournalLock) {
+        if (statesRemoved || myJournal.getRecordsCount() > 0) {
+          compactProperties();
+        }
+      }
 
-      for (File f : snapshotsToRemove) {
-        FileUtil.delete(f);
+      for (File snapshot : getSnapshotFiles()) {
+        if (!actualSnapshots.contains(snapshot)) {
+          myStaleSnapshots.add(snapshot);
+        }
       }
     } finally {
       myCleanupFinishedSignal.countDown();
     }
   }
 
+  /**
+   * Deletes the stale snapshots in batches, builds don't wait for it
+   */
+  private void deleteStaleSnapshots() {
+    try {
+      final List<File> staleSnapshots = new ArrayList<File>(myStaleSnapshots);
+      for (int batchStart = 0; batchStart < staleSnapshots.size() && !myShutdown; batchStart += STALE_SNAPSHOTS_BATCH_SIZE) {
+        final int batchEnd = Math.min(batchStart + STALE_SNAPSHOTS_BATCH_SIZE, staleSnapshots.size());
+        for (File snapshot : staleSnapshots.subList(batchStart, batchEnd)) {
+          deleteIfStale(snapshot);
+        }
+        myLogger.debug("Deleted " + batchEnd + " of " + staleSnapshots.size() + " stale snapshots");
+      }
+    } finally {
+      myStaleSnapshotsDeleted = true;
+    }
+  }
+
+  private void deleteIfStale(@NotNull File snapshot) {
+    if (myStaleSnapshots.isEmpty()) return;
+    synchronized (getDirectoryLock(snapshot.getPath())) {
+      if (myStaleSnapshots.remove(snapshot)) {
+        FileUtil.delete(snapshot);
+      }
+    }
+  }
+
   private List<File> getSnapshotFiles() {
     return Arrays.asList(myPropertiesFile.getParentFile().listFiles(new FileFilter() {
       public boolean accept(File pathname) {
@@ -253,7 +480,25 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
     }));
   }
 
+  @NotNull
+  public File getCacheDir() {
+    return myPropertiesFile.getParentFile();
+  }
+
+  /**
+   * If the snapshot file is left from a removed directory state it's deleted, so it's not deleted later
+   * by the startup cleanup
+   */
   public File getSnapshotFile(File dir) {
+    awaitCleanup();
+    mySnapshotsIndex.touch(unifyPath(dir), System.currentTimeMillis());
+    final File snapshot = getSnapshotFileNoAwait(dir);
+    deleteIfStale(snapshot);
+    return snapshot;
+  }
+
+  @NotNull
+  private File getSnapshotFileNoAwait(@NotNull File dir) {
     return new File(myPropertiesFile.getParent(), Integer.toHexString(dir.hashCode()) + SNAPSHOT_SUFFIX);
   }
 
@@ -267,6 +512,13 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
 
     private static final List<DirectoryState> ourStates = Arrays.asList(UNKNOWN, CLEAN, STRICT_CLEAN, DIRTY, PENDING, STRICT_PENDING);
 
+    public static boolean isValid(@NotNull String str) {
+      for (final DirectoryState state : ourStates) {
+        if (state.getName().equals(str)) return true;
+      }
+      return false;
+    }
+
     public static DirectoryState getState(@Nullable String str) {
       if (str == null) return UNKNOWN;
       for (final DirectoryState state : ourStates) {
@@ -293,16 +545,52 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
     return DirectoryState.getState(info == null ? null: info.state);
   }
 
-  public synchronized String getPreviousBuildTypeId(File dir) {
+  public String getPreviousBuildTypeId(File dir) {
     final DirInfo info = myProperties.get(unifyPath(dir));
     return info == null ? null: info.buildTypeId;
   }
 
-  private synchronized void mark(@NotNull final File dir, @NotNull final File checkoutDir, @NotNull String state, @NotNull String buildTypeId) {
-    readProperties(false);
+  private void mark(@NotNull final File dir, @NotNull final File checkoutDir, @NotNull String state, @NotNull String buildTypeId) {
+    readProperties();
     myLogger.debug("Marking " + dir.getAbsolutePath() + " as " + state);
-    myProperties.put(unifyPath(dir), new DirInfo(state, unifyPath(checkoutDir), buildTypeId));
-    writeProperties();
+    final String key = unifyPath(dir);
+    final DirInfo info = new DirInfo(state, unifyPath(checkoutDir), buildTypeId);
+    synchronized (getDirectoryLock(key)) {
+      myProperties.put(key, info);
+      writeRecord(key, info);
+      mySnapshotsIndex.update(key, info.checkoutDir, getSnapshotFileNoAwait(dir), System.currentTimeMillis());
+    }
+    evictSnapshots(info.checkoutDir);
+  }
+
+  /**
+   * Evicts the least recently used snapshots if they exceed the budget, the evicted directories get unknown state
+   * @param keptCheckoutDir checkout directory of the running build, snapshots of all its directories are kept
+   */
+  private void evictSnapshots(@NotNull String keptCheckoutDir) {
+    final long budget = SnapshotsIndex.getBudget();
+    if (budget == 0) return;
+
+    for (String key : mySnapshotsIndex.selectEvicted(budget, keptCheckoutDir)) {
+      final long size;
+      synchronized (getDirectoryLock(key)) {
+        size = mySnapshotsIndex.getSize(key);
+        if (size == 0) {
+          // the state was removed or evicted after the selection
+          continue;
+        }
+        mySnapshotsIndex.remove(key);
+        if (myProperties.remove(key) != null) {
+          writeRecord(key, null);
+        }
+        FileUtil.delete(getSnapshotFileNoAwait(new File(key)));
+      }
+      myLogger.message("Evicted snapshot of " + key + " (" + StringUtil.formatFileSize(size) + ") to keep Swabra snapshots within "
+                       + StringUtil.formatFileSize(budget) + ", directory state is unknown now", true);
+      for (SnapshotEvictionListener listener : myEvictionListeners) {
+        listener.snapshotEvicted(new File(key));
+      }
+    }
   }
 
   public void markDirty(@NotNull final File dir, @NotNull final File checkoutDir, @NotNull String buildTypeId) {
@@ -319,7 +607,7 @@ public class SwabraPropertiesProcessor extends AgentLifeCycleAdapter {
 
   // for tests
   public boolean isInitialized(){
-    return myCleanupFinishedSignal.getCount()==0;
+    return myCleanupFinishedSignal.getCount()==0 && myStaleSnapshotsDeleted;
   }
 
   private static final class DirInfo {
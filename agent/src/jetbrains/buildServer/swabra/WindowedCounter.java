@@ -0,0 +1,68 @@
+package jetbrains.buildServer.swabra;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counter which keeps the total value and the value for the recent time window.
+ *
+ * The window is split into one minute slots, slot values are reset when the slot is reused,
+ * so the recent value covers from window - 1 to window minutes.
+ */
+final class WindowedCounter {
+  static final long SLOT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private final LongAdder myTotal = new LongAdder();
+  private final int mySlotsCount;
+  private final AtomicLongArray mySlots;
+  /**
+   * Minute each slot was last used for
+   */
+  private final AtomicLongArray mySlotMinutes;
+  private final Object myResetLock = new Object();
+
+  WindowedCounter(int windowMinutes) {
+    mySlotsCount = windowMinutes;
+    mySlots = new AtomicLongArray(windowMinutes);
+    mySlotMinutes = new AtomicLongArray(windowMinutes);
+  }
+
+  void add(long value) {
+    add(value, System.currentTimeMillis());
+  }
+
+  void add(long value, long now) {
+    myTotal.add(value);
+    final long minute = now / SLOT_MILLIS;
+    final int slot = (int)(minute % mySlotsCount);
+    if (mySlotMinutes.get(slot) != minute) {
+      synchronized (myResetLock) {
+        if (mySlotMinutes.get(slot) != minute) {
+          mySlots.set(slot, 0);
+          mySlotMinutes.set(slot, minute);
+        }
+      }
+    }
+    mySlots.addAndGet(slot, value);
+  }
+
+  long getTotal() {
+    return myTotal.sum();
+  }
+
+  long getRecent() {
+    return getRecent(System.currentTimeMillis());
+  }
+
+  long getRecent(long now) {
+    final long minute = now / SLOT_MILLIS;
+    long result = 0;
+    for (int i = 0; i < mySlotsCount; ++i) {
+      if (minute - mySlotMinutes.get(i) < mySlotsCount) {
+        result += mySlots.get(i);
+      }
+    }
+    return result;
+  }
+}
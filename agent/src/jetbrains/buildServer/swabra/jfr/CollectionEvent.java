@@ -0,0 +1,60 @@
+package jetbrains.buildServer.swabra.jfr;
+
+import java.io.File;
+import jdk.jfr.*;
+import org.jetbrains.annotations.NotNull;
+
+@Name("jetbrains.buildServer.swabra.Collection")
+@Label("Files Collection")
+@Category({"TeamCity", SwabraEvents.CATEGORY})
+@Description("Comparing monitored directory with its snapshot and deleting newly created files")
+@StackTrace(false)
+public class CollectionEvent extends Event {
+  @Label("Directory")
+  String directory;
+
+  @Label("Unchanged")
+  long unchanged;
+
+  @Label("Newly Created and Deleted")
+  long newAndDeleted;
+
+  @Label("Newly Created and Not Deleted")
+  long newAndNotDeleted;
+
+  @Label("Modified")
+  long modified;
+
+  @Label("Deleted")
+  long deleted;
+
+  @Label("Outcome")
+  String outcome;
+
+  @NotNull
+  public static CollectionEvent start(@NotNull File dir) {
+    final CollectionEvent event = new CollectionEvent();
+    event.directory = dir.getPath();
+    event.begin();
+    return event;
+  }
+
+  public void setCounts(long unchanged, long newAndDeleted, long newAndNotDeleted, long modified, long deleted) {
+    this.unchanged = unchanged;
+    this.newAndDeleted = newAndDeleted;
+    this.newAndNotDeleted = newAndNotDeleted;
+    this.modified = modified;
+    this.deleted = deleted;
+  }
+
+  /**
+   * @param outcome one of clean, dirty, lockedFiles, interrupted, error
+   */
+  public void finish(@NotNull String outcome) {
+    end();
+    if (shouldCommit()) {
+      this.outcome = outcome;
+      commit();
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package jetbrains.buildServer.swabra.jfr;
+
+import jdk.jfr.*;
+import org.jetbrains.annotations.NotNull;
+
+@Name("jetbrains.buildServer.swabra.DeletionBatch")
+@Label("Deletion Batch")
+@Category({"TeamCity", SwabraEvents.CATEGORY})
+@Description("Deleting newly created files and directories detected by one files collection, from the first deletion until all the deletion workers finish")
+@StackTrace(false)
+public class DeletionBatchEvent extends Event {
+  @Label("Directory")
+  String directory;
+
+  @Label("Workers")
+  int workers;
+
+  @Label("Entries")
+  long entries;
+
+  @Label("Not Deleted")
+  long notDeleted;
+
+  @Label("Outcome")
+  String outcome;
+
+  @NotNull
+  public static DeletionBatchEvent start(@NotNull String dir, int workers) {
+    final DeletionBatchEvent event = new DeletionBatchEvent();
+    event.directory = dir;
+    event.workers = workers;
+    event.begin();
+    return event;
+  }
+
+  public void finish(long entries, long notDeleted) {
+    end();
+    if (shouldCommit()) {
+      this.entries = entries;
+      this.notDeleted = notDeleted;
+      outcome = notDeleted == 0 ? "deleted" : "lockedFiles";
+      commit();
+    }
+  }
+}
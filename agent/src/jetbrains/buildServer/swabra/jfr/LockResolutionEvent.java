@@ -0,0 +1,38 @@
+package jetbrains.buildServer.swabra.jfr;
+
+import java.io.File;
+import jdk.jfr.*;
+import org.jetbrains.annotations.NotNull;
+
+@Name("jetbrains.buildServer.swabra.LockResolution")
+@Label("Locked File Resolution")
+@Category({"TeamCity", SwabraEvents.CATEGORY})
+@Description("Finding and killing processes locking a file which can't be deleted")
+@StackTrace(false)
+public class LockResolutionEvent extends Event {
+  @Label("Path")
+  String path;
+
+  @Label("Kill Locking Processes")
+  boolean kill;
+
+  @Label("Outcome")
+  String outcome;
+
+  @NotNull
+  public static LockResolutionEvent start(@NotNull File file, boolean kill) {
+    final LockResolutionEvent event = new LockResolutionEvent();
+    event.path = file.getPath();
+    event.kill = kill;
+    event.begin();
+    return event;
+  }
+
+  public void finish(boolean resolved) {
+    end();
+    if (shouldCommit()) {
+      outcome = resolved ? "resolved" : "unresolved";
+      commit();
+    }
+  }
+}
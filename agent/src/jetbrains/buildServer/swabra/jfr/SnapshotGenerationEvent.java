@@ -0,0 +1,43 @@
+package jetbrains.buildServer.swabra.jfr;
+
+import java.io.File;
+import jdk.jfr.*;
+import org.jetbrains.annotations.NotNull;
+
+@Name("jetbrains.buildServer.swabra.SnapshotGeneration")
+@Label("Snapshot Generation")
+@Category({"TeamCity", SwabraEvents.CATEGORY})
+@Description("Saving monitored directory state to a snapshot file")
+@StackTrace(false)
+public class SnapshotGenerationEvent extends Event {
+  @Label("Directory")
+  String directory;
+
+  @Label("Entries")
+  long entries;
+
+  @Label("Snapshot Size")
+  @DataAmount
+  long bytes;
+
+  @Label("Outcome")
+  String outcome;
+
+  @NotNull
+  public static SnapshotGenerationEvent start(@NotNull File dir) {
+    final SnapshotGenerationEvent event = new SnapshotGenerationEvent();
+    event.directory = dir.getPath();
+    event.begin();
+    return event;
+  }
+
+  public void finish(long entries, long bytes, boolean success) {
+    end();
+    if (shouldCommit()) {
+      this.entries = entries;
+      this.bytes = bytes;
+      outcome = success ? "saved" : "failed";
+      commit();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+package jetbrains.buildServer.swabra.jfr;
+
+import java.io.File;
+import jdk.jfr.*;
+import org.jetbrains.annotations.NotNull;
+
+@Name("jetbrains.buildServer.swabra.StatePersistence")
+@Label("Directories States Persistence")
+@Category({"TeamCity", SwabraEvents.CATEGORY})
+@Description("Saving monitored directories states to snapshot.map")
+@StackTrace(false)
+public class StatePersistenceEvent extends Event {
+  @Label("File")
+  String file;
+
+  @Label("Records")
+  long records;
+
+  @Label("Size")
+  @DataAmount
+  long bytes;
+
+  @Label("Outcome")
+  String outcome;
+
+  @NotNull
+  public static StatePersistenceEvent start(@NotNull File file) {
+    final StatePersistenceEvent event = new StatePersistenceEvent();
+    event.file = file.getPath();
+    event.begin();
+    return event;
+  }
+
+  public void finish(long records, long bytes, boolean success) {
+    end();
+    if (shouldCommit()) {
+      this.records = records;
+      this.bytes = bytes;
+      outcome = success ? "saved" : "failed";
+      commit();
+    }
+  }
+}
@@ -0,0 +1,30 @@
+package jetbrains.buildServer.swabra.jfr;
+
+/**
+ * Swabra events are recorded by Java Flight Recorder together with GC and I/O events.
+ *
+ * Event classes extend jdk.jfr.Event, which is missing in old Java 8 updates, so they must be used
+ * only if {@link #isAvailable()} returns true. Events cost almost nothing unless a recording is running.
+ */
+public final class SwabraEvents {
+  static final String CATEGORY = "Swabra";
+  private static final boolean AVAILABLE = isJfrAvailable();
+
+  private SwabraEvents() {
+  }
+
+  public static boolean isAvailable() {
+    return AVAILABLE;
+  }
+
+  private static boolean isJfrAvailable() {
+    try {
+      Class.forName("jdk.jfr.Event", false, SwabraEvents.class.getClassLoader());
+      return true;
+    } catch (ClassNotFoundException e) {
+      return false;
+    } catch (LinkageError e) {
+      return false;
+    }
+  }
+}
@@ -11,6 +11,7 @@ import jetbrains.buildServer.processes.KillProcessDetails;
 import jetbrains.buildServer.processes.ProcessFilter;
 import jetbrains.buildServer.processes.ProcessNode;
 import jetbrains.buildServer.processes.ProcessTreeTerminator;
+import jetbrains.buildServer.swabra.SwabraMetrics;
 import jetbrains.buildServer.swabra.SwabraSettings;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
@@ -132,6 +133,7 @@ public class LockedFileResolver {
   @Nullable
   private Collection<ProcessInfo> getLockingProcesses(@NotNull File f, @Nullable Listener listener) {
     try {
+      SwabraMetrics.getInstance().processToolStarted();
       return myProcessesProvider.getLockingProcesses(f);
     } catch (IOException e) {
       log(e.getMessage(), true, listener);
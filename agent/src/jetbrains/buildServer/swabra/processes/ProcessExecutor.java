@@ -5,6 +5,7 @@ package jetbrains.buildServer.swabra.processes;
 import com.intellij.execution.configurations.GeneralCommandLine;
 import jetbrains.buildServer.ExecResult;
 import jetbrains.buildServer.SimpleCommandLineProcessRunner;
+import jetbrains.buildServer.swabra.SwabraMetrics;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
@@ -28,6 +29,7 @@ public class ProcessExecutor {
   }
 
   private static ExecResult run(final GeneralCommandLine commandLine) {
+    SwabraMetrics.getInstance().processToolStarted();
     return SimpleCommandLineProcessRunner.runCommand(commandLine, new byte[0], new SimpleCommandLineProcessRunner.ProcessRunCallback() {
       @Override
       public void onProcessStarted(Process ps) {
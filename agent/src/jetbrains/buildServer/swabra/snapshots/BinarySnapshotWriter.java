@@ -0,0 +1,118 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.SubtreeSummary;
+import jetbrains.buildServer.swabra.snapshots.iteration.SubtreeSummaryBuilder;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.*;
+
+/**
+ * Writes snapshots in the binary format.
+ *
+ * Layout: magic, version byte, snapshot creation timestamp, root folder; then records, each record is
+ * a tag byte (directory or file), the number of leading bytes shared with the previous path of the same kind,
+ * the rest of the UTF-8 encoded path, length and the difference between the record and the previous record
+ * last modified times. The snapshot ends with the end record.
+ *
+ * Directory paths are relative to the root folder and end with the separator, file paths are names,
+ * the same way as in the text format. Previous file name is reset on each directory.
+ * Numbers are unsigned LEB128 varints, time differences are zigzag encoded.
+ *
+ * The end record is followed by the directory summaries: for each directory in the records order
+ * the 8 byte digest and the number of entries in its subtree, see SubtreeSummaryBuilder.
+ * The snapshot ends with the 8 byte offset of the summaries or 0 if they are omitted.
+ */
+class BinarySnapshotWriter implements SnapshotWriter {
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final byte[] EMPTY = new byte[0];
+
+  @NotNull
+  private final String myRootDirParent;
+  @NotNull
+  private final DataOutputStream myOut;
+  @NotNull
+  private final SubtreeSummaryBuilder mySummaries = new SubtreeSummaryBuilder();
+
+  private byte[] myPreviousDir = EMPTY;
+  private byte[] myPreviousFile = EMPTY;
+  private long myPreviousLastModified;
+
+  BinarySnapshotWriter(@NotNull File snapshot, @NotNull String rootDirParent, long timestamp) throws IOException {
+    myRootDirParent = rootDirParent;
+    myOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(snapshot), BUFFER_SIZE));
+    try {
+      myOut.write(BINARY_SNAPSHOT_MAGIC);
+      myOut.write(BINARY_SNAPSHOT_VERSION);
+      writeVarLong(timestamp);
+      final byte[] rootFolder = getSnapshotRootFolder(rootDirParent).getBytes(StandardCharsets.UTF_8);
+      writeVarLong(rootFolder.length);
+      myOut.write(rootFolder);
+    } catch (IOException e) {
+      myOut.close();
+      throw e;
+    }
+  }
+
+  public void write(@NotNull FileInfo file) throws IOException {
+    final byte[] path = getSnapshotEntryPath(file, myRootDirParent).getBytes(StandardCharsets.UTF_8);
+    if (file.isFile()) {
+      writePath(BINARY_FILE_RECORD, path, myPreviousFile);
+      myPreviousFile = path;
+    } else {
+      writePath(BINARY_DIRECTORY_RECORD, path, myPreviousDir);
+      myPreviousDir = path;
+      myPreviousFile = EMPTY;
+    }
+    writeVarLong(file.getLength());
+    writeVarLong(zigZag(file.getLastModified() - myPreviousLastModified));
+    myPreviousLastModified = file.getLastModified();
+    mySummaries.add(file);
+  }
+
+  public void finish() throws IOException {
+    myOut.write(BINARY_END_RECORD);
+    // DataOutputStream stops counting at Integer.MAX_VALUE, summaries of such huge snapshots are omitted
+    final long summariesOffset = myOut.size() < Integer.MAX_VALUE ? myOut.size() : 0;
+    if (summariesOffset > 0) {
+      mySummaries.finish();
+      for (int i = 0; i < mySummaries.getDirectoriesCount(); ++i) {
+        final SubtreeSummary summary = mySummaries.getSummary(i);
+        myOut.writeLong(summary.getDigest());
+        writeVarLong(summary.getEntriesCount());
+      }
+    }
+    myOut.writeLong(summariesOffset);
+    myOut.flush();
+  }
+
+  public void close() throws IOException {
+    myOut.close();
+  }
+
+  private void writePath(byte tag, @NotNull byte[] path, @NotNull byte[] previous) throws IOException {
+    final int max = Math.min(path.length, previous.length);
+    int shared = 0;
+    while (shared < max && path[shared] == previous[shared]) {
+      ++shared;
+    }
+    myOut.write(tag);
+    writeVarLong(shared);
+    writeVarLong(path.length - shared);
+    myOut.write(path, shared, path.length - shared);
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      myOut.write((int)((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    myOut.write((int)value);
+  }
+
+  private static long zigZag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+}
@@ -0,0 +1,359 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesTraversal;
+import jetbrains.buildServer.swabra.snapshots.iteration.SubtreeSummary;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the directories of the monitored directory and records the ones which entries were created,
+ * deleted or modified. During files collection subtrees without such directories are reported as unchanged,
+ * so they are skipped if the snapshot contains directory summaries.
+ *
+ * Subtrees excluded by the rules are not in the snapshot, so they are neither watched nor visited during registration.
+ * Watches are shared with the build tools (e.g. inotify watches limit) and on Windows they keep directory handles open,
+ * so at most WATCH_LIMIT_PROPERTY directories are watched, the journal is not used for larger directories.
+ *
+ * Watching starts before the snapshot is generated, so changes made during snapshot generation make the directories dirty.
+ * Journal becomes invalid and full scan is performed if the watch service overflows, fails, if watching
+ * a directory fails or if new directories exceed the watches limit.
+ *
+ * Entries created, deleted or renamed in a directory make their whole subtrees dirty: watches follow the directories,
+ * not the paths, so after a directory is renamed or replaced its descendants may keep the watches of other directories.
+ * Directories created during the build are watched too.
+ *
+ * Events are delivered asynchronously, so before the collection a marker file is created and deleted in a directory
+ * owned by the journal and watched by the same watch service, and the journal waits for its deletion event,
+ * all the preceding events are processed by that time. The marker is never created in the monitored directory,
+ * so builds don't see it.
+ */
+public class ChangesJournal implements FilesTraversal.CurrentSummaryProvider {
+  public static final String WATCH_CHANGES_PROPERTY = "teamcity.swabra.watch.changes";
+  public static final String SYNC_TIMEOUT_PROPERTY = "teamcity.swabra.watch.changes.syncTimeout";
+  /**
+   * Maximum number of directories watched by one journal
+   */
+  public static final String WATCH_LIMIT_PROPERTY = "teamcity.swabra.watch.changes.maxDirectories";
+
+  private static final int DEFAULT_WATCH_LIMIT = 5000;
+  private static final String SYNC_MARKER = "sync";
+
+  @NotNull
+  private final Path myRoot;
+  @NotNull
+  private final SwabraRules myRules;
+  @NotNull
+  private final List<String> myRulesForRoot;
+  @NotNull
+  private final Path mySyncDir;
+  @NotNull
+  private final SwabraLogger myLogger;
+  @NotNull
+  private final WatchService myWatchService;
+  @NotNull
+  private final Thread myThread;
+
+  private final Object myLock = new Object();
+  /**
+   * Paths of changed directories and all their ancestors
+   */
+  private final Set<String> myDirtySubtrees = new HashSet<String>();
+  /**
+   * Paths of created, deleted or renamed entries, all their descendants are dirty
+   */
+  private final Set<String> myDirtyRoots = new HashSet<String>();
+  private boolean myValid = true;
+  private int mySyncRequested;
+  private int mySyncReceived;
+  /**
+   * Registered directories count, changed only before the events thread starts and then by that thread
+   */
+  private int myWatchesCount;
+  private final int myWatchLimit;
+
+  private ChangesJournal(@NotNull Path root,
+                         @NotNull SwabraRules rules,
+                         @NotNull Path syncDir,
+                         @NotNull SwabraLogger logger,
+                         @NotNull WatchService watchService) {
+    myRoot = root;
+    myRules = rules;
+    myRulesForRoot = rules.getRulesForPath(root.toFile());
+    mySyncDir = syncDir;
+    myLogger = logger;
+    myWatchService = watchService;
+    myWatchLimit = TeamCityProperties.getInteger(WATCH_LIMIT_PROPERTY, DEFAULT_WATCH_LIMIT);
+    myThread = new Thread(new Runnable() {
+      public void run() {
+        processEvents();
+      }
+    }, "Swabra changes journal for " + root);
+    myThread.setDaemon(true);
+  }
+
+  /**
+   * @param rules monitoring rules, journal can't be used with other rules for the directory
+   * @param syncDirsParent directory owned by Swabra to create the journal sync directory in, not under the monitored one
+   * @return null if the directory can't be watched
+   */
+  @Nullable
+  public static ChangesJournal start(@NotNull File dir, @NotNull SwabraRules rules, @NotNull File syncDirsParent, @NotNull SwabraLogger logger) {
+    final Path root = dir.toPath();
+    WatchService watchService = null;
+    Path syncDir = null;
+    try {
+      watchService = root.getFileSystem().newWatchService();
+      if (watchService.getClass().getSimpleName().startsWith("Polling")) {
+        // events are detected with a delay, so it's impossible to sync
+        logger.debug("Not watching " + dir + " for changes, native file system events are not supported");
+        watchService.close();
+        return null;
+      }
+      syncDir = Files.createTempDirectory(Files.createDirectories(syncDirsParent.toPath()), "journal");
+      syncDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE);
+      final ChangesJournal journal = new ChangesJournal(root, rules, syncDir, logger, watchService);
+      final long start = System.currentTimeMillis();
+      if (!journal.registerTree(root)) {
+        logger.debug("Not watching " + dir + " for changes, it has more than " + journal.myWatchLimit + " directories to watch");
+        journal.close();
+        return null;
+      }
+      journal.myThread.start();
+      logger.debug("Watching " + journal.myWatchesCount + " directories under " + dir + " for changes, registration took " + (System.currentTimeMillis() - start) + "ms");
+      return journal;
+    } catch (IOException e) {
+      logger.debug("Not watching " + dir + " for changes, failed to register watches: " + e.getMessage());
+      closeQuietly(watchService);
+      deleteQuietly(syncDir);
+      return null;
+    } catch (UnsupportedOperationException e) {
+      logger.debug("Not watching " + dir + " for changes, file system doesn't support it");
+      closeQuietly(watchService);
+      deleteQuietly(syncDir);
+      return null;
+    }
+  }
+
+  public boolean isApplicable(@NotNull List<String> rules) {
+    return myRulesForRoot.equals(rules);
+  }
+
+  // for tests
+  int getWatchesCount() {
+    return myWatchesCount;
+  }
+
+  /**
+   * Waits for all the changes made so far to be recorded
+   * @return false if the journal is invalid and can't be used
+   */
+  public boolean sync() {
+    final int syncId;
+    synchronized (myLock) {
+      if (!myValid) {
+        return false;
+      }
+      syncId = ++mySyncRequested;
+    }
+    final Path marker = mySyncDir.resolve(SYNC_MARKER);
+    try {
+      Files.deleteIfExists(marker);
+      Files.createFile(marker);
+      Files.delete(marker);
+    } catch (IOException e) {
+      myLogger.debug("Failed to sync changes journal for " + myRoot + ": " + e.getMessage());
+      invalidate();
+      return false;
+    }
+    final long deadline = System.currentTimeMillis() + TeamCityProperties.getLong(SYNC_TIMEOUT_PROPERTY, 10000L);
+    synchronized (myLock) {
+      while (myValid && mySyncReceived < syncId) {
+        final long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+          myLogger.debug("Timed out waiting for changes journal events for " + myRoot);
+          myValid = false;
+          break;
+        }
+        try {
+          myLock.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          myValid = false;
+        }
+      }
+      if (myValid) {
+        myLogger.debug("Changes journal for " + myRoot + " contains " + myDirtySubtrees.size() + " changed directories and their parents");
+      }
+      return myValid;
+    }
+  }
+
+  @Nullable
+  public SubtreeSummary getCurrentSummary(@NotNull FileInfo dir, @NotNull SubtreeSummary snapshotSummary) {
+    synchronized (myLock) {
+      if (!myValid || myDirtySubtrees.contains(dir.getPath()) || isUnderDirtyRoot(Paths.get(dir.getPath()))) {
+        return null;
+      }
+      return snapshotSummary;
+    }
+  }
+
+  private boolean isUnderDirtyRoot(@NotNull Path dir) {
+    if (myDirtyRoots.isEmpty()) return false;
+    for (Path path = dir; path != null && path.startsWith(myRoot); path = path.getParent()) {
+      if (myDirtyRoots.contains(path.toString())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public void close() {
+    synchronized (myLock) {
+      myValid = false;
+    }
+    closeQuietly(myWatchService);
+    myThread.interrupt();
+    deleteQuietly(mySyncDir);
+  }
+
+  /**
+   * Watches the directory and its subdirectories which are not excluded by the rules
+   * @return false if the watches limit is reached
+   */
+  private boolean registerTree(@NotNull Path root) throws IOException {
+    final boolean[] limitReached = new boolean[1];
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+        if (!dir.equals(myRoot) && myRules.getSubtreeDecision(dir.toString()) == SwabraRules.SubtreeDecision.EXCLUDED) {
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        if (myWatchesCount >= myWatchLimit) {
+          limitReached[0] = true;
+          return FileVisitResult.TERMINATE;
+        }
+        try {
+          dir.register(myWatchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        } catch (NoSuchFileException e) {
+          // deleted concurrently, the parent records the deletion
+          return FileVisitResult.SKIP_SUBTREE;
+        }
+        ++myWatchesCount;
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+        if (e instanceof NoSuchFileException) {
+          // deleted concurrently, the parent is already watched
+          return FileVisitResult.CONTINUE;
+        }
+        throw e;
+      }
+    });
+    return !limitReached[0];
+  }
+
+  private void processEvents() {
+    try {
+      while (true) {
+        final WatchKey key = myWatchService.take();
+        final Path dir = (Path)key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == OVERFLOW) {
+            myLogger.debug("Changes journal for " + myRoot + " overflowed, full scan will be performed");
+            invalidate();
+            return;
+          }
+          processEvent(dir, event.kind(), (Path)event.context());
+        }
+        if (!key.reset()) {
+          // directory is deleted or became inaccessible, the parent records the deletion
+          markDirty(dir);
+        }
+      }
+    } catch (InterruptedException e) {
+      // closed
+    } catch (ClosedWatchServiceException e) {
+      // closed
+    } catch (Throwable e) {
+      myLogger.exception(e);
+      invalidate();
+    }
+  }
+
+  private void processEvent(@NotNull Path dir, @NotNull WatchEvent.Kind<?> kind, @Nullable Path name) {
+    if (dir.equals(mySyncDir)) {
+      if (kind == ENTRY_DELETE && name != null && SYNC_MARKER.equals(name.toString())) {
+        synchronized (myLock) {
+          ++mySyncReceived;
+          myLock.notifyAll();
+        }
+      }
+      return;
+    }
+    markDirty(dir);
+    if (name != null && (kind == ENTRY_CREATE || kind == ENTRY_DELETE)) {
+      final Path entry = dir.resolve(name);
+      synchronized (myLock) {
+        myDirtyRoots.add(entry.toString());
+      }
+      if (kind == ENTRY_CREATE && Files.isDirectory(entry, LinkOption.NOFOLLOW_LINKS)) {
+        try {
+          if (!registerTree(entry)) {
+            myLogger.debug("Changes journal for " + myRoot + " reached the limit of " + myWatchLimit + " watched directories, full scan will be performed");
+            invalidate();
+          }
+        } catch (IOException e) {
+          myLogger.debug("Changes journal for " + myRoot + " failed to watch new directory " + entry + ": " + e.getMessage());
+          invalidate();
+        }
+      }
+    }
+  }
+
+  private void markDirty(@NotNull Path dir) {
+    synchronized (myLock) {
+      for (Path path = dir; path != null && path.startsWith(myRoot); path = path.getParent()) {
+        if (!myDirtySubtrees.add(path.toString())) {
+          break;
+        }
+      }
+    }
+  }
+
+  private void invalidate() {
+    synchronized (myLock) {
+      myValid = false;
+      myLock.notifyAll();
+    }
+  }
+
+  private static void deleteQuietly(@Nullable Path dir) {
+    if (dir == null) return;
+    try {
+      Files.deleteIfExists(dir.resolve(SYNC_MARKER));
+      Files.deleteIfExists(dir);
+    } catch (IOException ignored) {
+    }
+  }
+
+  private static void closeQuietly(@Nullable WatchService watchService) {
+    if (watchService == null) return;
+    try {
+      watchService.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
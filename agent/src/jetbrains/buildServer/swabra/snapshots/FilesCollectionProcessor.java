@@ -4,16 +4,25 @@ package jetbrains.buildServer.swabra.snapshots;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import jetbrains.buildServer.agent.impl.directories.AbstractDirectoryCleanerCallback;
 import jetbrains.buildServer.agent.impl.directories.FileRemover;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.swabra.PhaseStatistics;
 import jetbrains.buildServer.swabra.Swabra;
 import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.jfr.DeletionBatchEvent;
+import jetbrains.buildServer.swabra.jfr.LockResolutionEvent;
+import jetbrains.buildServer.swabra.jfr.SwabraEvents;
 import jetbrains.buildServer.swabra.processes.LockedFileResolver;
 import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
 import jetbrains.buildServer.swabra.snapshots.iteration.FilesTraversal;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * User: vbedrosova
@@ -21,6 +30,16 @@ import org.jetbrains.annotations.NotNull;
  * Time: 14:35:09
  */
 public class FilesCollectionProcessor implements FilesTraversal.ComparisonProcessor {
+  /**
+   * Number of threads deleting newly created files while the comparison goes on,
+   * 0 (default) to delete files in the comparison thread
+   */
+  public static final String DELETION_WORKERS_PROPERTY = "teamcity.swabra.deletion.workers";
+  /**
+   * Maximum number of pending deletions, when the queue is full the comparison thread deletes files itself
+   */
+  public static final String DELETION_QUEUE_SIZE_PROPERTY = "teamcity.swabra.deletion.queueSize";
+
   @NotNull
   protected final SwabraLogger myLogger;
   private final LockedFileResolver myLockedFileResolver;
@@ -30,7 +49,7 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
 
   private int myDetectedUnchanged;
 
-  private int myDetectedNewAndDeleted;
+  private final AtomicInteger myDetectedNewAndDeleted = new AtomicInteger();
   private int myDetectedModified;
   private int myDetectedDeleted;
 
@@ -42,7 +61,32 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
 
   @NotNull private final AtomicBoolean myBuildInterrupted;
 
-  @NotNull private final FileRemover myFileRemover;
+  @NotNull private final ThreadLocal<FileRemover> myFileRemover = new ThreadLocal<FileRemover>() {
+    @Override
+    protected FileRemover initialValue() {
+      return new FileRemover(new AbstractDirectoryCleanerCallback());
+    }
+  };
+  /**
+   * Locked files resolution kills processes and may wait for them, so it's performed by one thread at a time
+   */
+  private final Object myLockedFilesLock = new Object();
+
+  private final int myDeletionWorkers;
+  @Nullable private ThreadPoolExecutor myDeletionExecutor;
+
+  @Nullable private TrashBin myTrashBin;
+
+  @Nullable private PhaseStatistics myStatistics;
+  @Nullable private SubtreesProfile mySubtreesProfile;
+  /**
+   * Started on the first deletion of the comparison
+   */
+  @Nullable private DeletionBatchEvent myDeletionBatchEvent;
+  /**
+   * Time spent by the comparison thread in processAdded, including the deletions it performs itself
+   */
+  private long myAddedProcessingTime;
 
   @NotNull private final String myDir;
 
@@ -59,10 +103,29 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
     myVerbose = verbose;
     myStrictDeletion = strict;
 
-    myUnableToDeleteFiles = new ArrayList<File>();
+    myUnableToDeleteFiles = Collections.synchronizedList(new ArrayList<File>());
 
     myDeletionListener = new DeletionListener();
-    myFileRemover = new FileRemover(new AbstractDirectoryCleanerCallback());
+    myDeletionWorkers = TeamCityProperties.getInteger(DELETION_WORKERS_PROPERTY, 0);
+  }
+
+  /**
+   * @param trashBin if specified, newly created directories are moved to it instead of being deleted in place
+   */
+  public void setTrashBin(@Nullable TrashBin trashBin) {
+    myTrashBin = trashBin;
+  }
+
+  public void setStatistics(@Nullable PhaseStatistics statistics) {
+    myStatistics = statistics;
+  }
+
+  void setSubtreesProfile(@Nullable SubtreesProfile profile) {
+    mySubtreesProfile = profile;
+  }
+
+  long getAddedProcessingTime() {
+    return myAddedProcessingTime;
   }
 
   public boolean willProcess(FileInfo info) throws InterruptedException {
@@ -78,6 +141,11 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
     myLogger.debug("Detected unchanged " + info.getPath());
   }
 
+  public void processUnchangedSubtree(FileInfo dir, int entriesCount) {
+    myDetectedUnchanged += entriesCount;
+    myLogger.debug("Detected unchanged subtree of " + dir.getPath() + ", " + entriesCount + " entries");
+  }
+
   public void processModified(FileInfo info1, FileInfo info2) {
     ++myDetectedModified;
     myLogger.warn("Detected modified " + info1.getPath());
@@ -89,12 +157,48 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
   }
 
   public void processAdded(FileInfo info) {
+    final long start = myStatistics == null ? 0 : System.nanoTime();
+    if (mySubtreesProfile != null) {
+      mySubtreesProfile.deletionScheduled();
+    }
+    if (myDeletionBatchEvent == null && SwabraEvents.isAvailable()) {
+      myDeletionBatchEvent = DeletionBatchEvent.start(myDir, myDeletionExecutor == null ? 0 : myDeletionWorkers);
+    }
     final File file = new File(info.getPath());
-    if (!resolveDelete(file)) {
+    final long length = info.isFile() ? info.getLength() : 0;
+    final ThreadPoolExecutor executor = myDeletionExecutor;
+    if (executor == null) {
+      deleteAdded(file, length);
+    } else {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            deleteAdded(file, length);
+          } catch (Throwable e) {
+            myLogger.exception(e);
+            myUnableToDeleteFiles.add(file);
+            myLogger.warn("Detected new, unable to delete " + file.getAbsolutePath());
+          }
+        }
+      });
+    }
+    if (myStatistics != null) {
+      myAddedProcessingTime += System.nanoTime() - start;
+    }
+  }
+
+  private void deleteAdded(@NotNull File file, long length) {
+    final PhaseStatistics statistics = myStatistics;
+    final long start = statistics == null ? 0 : System.nanoTime();
+    final boolean deleted = resolveDelete(file);
+    if (statistics != null) {
+      statistics.add(PhaseStatistics.Phase.DELETION, System.nanoTime() - start, 1, deleted ? length : 0);
+    }
+    if (!deleted) {
       myUnableToDeleteFiles.add(file);
       myLogger.warn("Detected new, unable to delete " + file.getAbsolutePath());
     } else {
-      ++myDetectedNewAndDeleted;
+      myDetectedNewAndDeleted.incrementAndGet();
 
       final String message = "Detected new and deleted " + file.getAbsolutePath();
       if (myVerbose) {
@@ -109,25 +213,101 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
 
   public void comparisonStarted() {
     myResults = null;
+    myAddedProcessingTime = 0;
+    myDeletionBatchEvent = null;
+    if (myDeletionExecutor != null) {
+      // previous comparison failed and its deletions weren't cancelled
+      cancelDeletions();
+    }
+    if (myDeletionWorkers > 0) {
+      myDeletionExecutor = createDeletionExecutor(myDeletionWorkers, TeamCityProperties.getInteger(DELETION_QUEUE_SIZE_PROPERTY, 1024));
+    }
   }
 
   public void comparisonFinished() {
+    awaitDeletions();
 
     myResults = new Results(myDetectedUnchanged,
-      myDetectedNewAndDeleted, myUnableToDeleteFiles.size(),
+      myDetectedNewAndDeleted.get(), myUnableToDeleteFiles.size(),
       myDetectedModified, myDetectedDeleted);
+    if (myDeletionBatchEvent != null) {
+      myDeletionBatchEvent.finish(myResults.detectedNewAndDeleted + myResults.detectedNewAndUnableToDelete, myResults.detectedNewAndUnableToDelete);
+      myDeletionBatchEvent = null;
+    }
 
     myDetectedUnchanged = 0;
-    myDetectedNewAndDeleted = 0;
+    myDetectedNewAndDeleted.set(0);
     myDetectedModified = 0;
     myDetectedDeleted = 0;
     myUnableToDeleteFiles.clear();
   }
 
+  /**
+   * Cancels the pending deletions of the comparison which failed or was interrupted, so no files are deleted after
+   * the failure is reported
+   */
+  public void cancelDeletions() {
+    final ThreadPoolExecutor executor = myDeletionExecutor;
+    myDeletionExecutor = null;
+    if (executor != null) {
+      final int cancelled = executor.shutdownNow().size();
+      try {
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+          myLogger.warn("Deletions in " + myDir + " are still running after cancellation");
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      if (cancelled > 0) {
+        myLogger.debug("Cancelled " + cancelled + " pending deletions in " + myDir);
+      }
+    }
+    if (myDeletionBatchEvent != null) {
+      myDeletionBatchEvent.finish(myDetectedNewAndDeleted.get() + myUnableToDeleteFiles.size(), myUnableToDeleteFiles.size());
+      myDeletionBatchEvent = null;
+    }
+  }
+
   public Results getResults() {
     return myResults;
   }
 
+  @NotNull
+  private static ThreadPoolExecutor createDeletionExecutor(int workers, int queueSize) {
+    final ThreadFactory threadFactory = new ThreadFactory() {
+      private final AtomicInteger myCounter = new AtomicInteger();
+
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread thread = new Thread(r, "Swabra deletion worker " + myCounter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+    final ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 1, TimeUnit.SECONDS,
+                                                               new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+                                                               threadFactory,
+                                                               new ThreadPoolExecutor.CallerRunsPolicy());
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
+  private void awaitDeletions() {
+    final ThreadPoolExecutor executor = myDeletionExecutor;
+    if (executor == null) {
+      return;
+    }
+    myDeletionExecutor = null;
+    executor.shutdown();
+    try {
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        myLogger.debug("Waiting for " + (executor.getQueue().size() + executor.getActiveCount()) + " pending deletions in " + myDir);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      myLogger.warn("Interrupted while waiting for pending deletions in " + myDir);
+    }
+  }
+
 
   private final class DeletionListener implements LockedFileResolver.Listener {
     public void message(String m) {
@@ -148,7 +328,10 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
     if (!f.exists()) {
       return true;
     }
-    if (myFileRemover.doDelete(f, false, true)) {
+    if (myTrashBin != null && f.isDirectory() && myTrashBin.moveToTrash(f)) {
+      return true;
+    }
+    if (myFileRemover.get().doDelete(f, false, true)) {
       return true;
     }
 
@@ -156,10 +339,25 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
       return false;
     }
     if (myLockedFileResolver != null) {
-      if (myStrictDeletion) {
-        return myLockedFileResolver.resolveDelete(f, myDeletionListener);
-      } else {
-        return myLockedFileResolver.resolve(f, false, myDeletionListener);
+      synchronized (myLockedFilesLock) {
+        final long start = System.nanoTime();
+        final LockResolutionEvent event = SwabraEvents.isAvailable() ? LockResolutionEvent.start(f, myStrictDeletion) : null;
+        boolean resolved = false;
+        try {
+          if (myStrictDeletion) {
+            resolved = myLockedFileResolver.resolveDelete(f, myDeletionListener);
+          } else {
+            resolved = myLockedFileResolver.resolve(f, false, myDeletionListener);
+          }
+          return resolved;
+        } finally {
+          if (myStatistics != null) {
+            myStatistics.add(PhaseStatistics.Phase.LOCKED_FILES_RESOLUTION, System.nanoTime() - start, 1, 0);
+          }
+          if (event != null) {
+            event.finish(resolved);
+          }
+        }
       }
     }
     return false;
@@ -167,9 +365,11 @@ public class FilesCollectionProcessor implements FilesTraversal.ComparisonProces
 
   private boolean unableToDeleteDescendant(File file) {
     final String path = file.getAbsolutePath();
-    for (final File f : myUnableToDeleteFiles) {
-      if (f.getAbsolutePath().startsWith(path)) {
-        return true;
+    synchronized (myUnableToDeleteFiles) {
+      for (final File f : myUnableToDeleteFiles) {
+        if (f.getAbsolutePath().startsWith(path)) {
+          return true;
+        }
       }
     }
     return false;
@@ -4,11 +4,17 @@ package jetbrains.buildServer.swabra.snapshots;
 
 import java.io.File;
 import java.util.List;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.swabra.PhaseStatistics;
 import jetbrains.buildServer.swabra.SwabraLogger;
 import jetbrains.buildServer.swabra.SwabraSettings;
 import jetbrains.buildServer.swabra.SwabraUtil;
+import jetbrains.buildServer.swabra.jfr.CollectionEvent;
+import jetbrains.buildServer.swabra.jfr.SwabraEvents;
 import jetbrains.buildServer.swabra.snapshots.iteration.FileSystemFilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
 import jetbrains.buildServer.swabra.snapshots.iteration.FilesTraversal;
+import jetbrains.buildServer.swabra.snapshots.iteration.IncrementalFilesIterator;
 import jetbrains.buildServer.swabra.snapshots.iteration.SnapshotFilesIterator;
 import jetbrains.buildServer.util.FileUtil;
 import org.jetbrains.annotations.NotNull;
@@ -46,6 +52,9 @@ public class FilesCollector {
   @NotNull
   private final SwabraSettings mySettings;
 
+  @Nullable
+  private PhaseStatistics myStatistics;
+
   public FilesCollector(@NotNull FilesCollectionProcessor processor,
                         @NotNull SwabraLogger logger,
                         @NotNull SwabraSettings settings) {
@@ -54,9 +63,68 @@ public class FilesCollector {
     mySettings = settings;
   }
 
+  public void setStatistics(@Nullable PhaseStatistics statistics) {
+    myStatistics = statistics;
+    myProcessor.setStatistics(statistics);
+  }
+
   public void collect(@NotNull File snapshot,
                       @NotNull File dir,
                       @Nullable CollectionResultHandler handler) {
+    collect(snapshot, dir, null, handler);
+  }
+
+  /**
+   * @param currentSummaryProvider if specified, unchanged subtrees are skipped, see FilesTraversal
+   */
+  public void collect(@NotNull File snapshot,
+                      @NotNull File dir,
+                      @Nullable FilesTraversal.CurrentSummaryProvider currentSummaryProvider,
+                      @Nullable final CollectionResultHandler handler) {
+    if (!SwabraEvents.isAvailable()) {
+      doCollect(snapshot, dir, currentSummaryProvider, handler);
+      return;
+    }
+    final CollectionEvent event = CollectionEvent.start(dir);
+    final String[] outcome = {"error"};
+    doCollect(snapshot, dir, currentSummaryProvider, new CollectionResultHandler() {
+      public void success() {
+        outcome[0] = "clean";
+        if (handler != null) handler.success();
+      }
+
+      public void error() {
+        outcome[0] = "error";
+        if (handler != null) handler.error();
+      }
+
+      public void lockedFilesDetected() {
+        outcome[0] = "lockedFiles";
+        if (handler != null) handler.lockedFilesDetected();
+      }
+
+      public void dirtyStateDetected() {
+        outcome[0] = "dirty";
+        if (handler != null) handler.dirtyStateDetected();
+      }
+
+      public void interrupted() {
+        outcome[0] = "interrupted";
+        if (handler != null) handler.interrupted();
+      }
+    });
+    final FilesCollectionProcessor.Results results = myProcessor.getResults();
+    if (results != null) {
+      event.setCounts(results.detectedUnchanged, results.detectedNewAndDeleted, results.detectedNewAndUnableToDelete,
+                      results.detectedModified, results.detectedDeleted);
+    }
+    event.finish(outcome[0]);
+  }
+
+  private void doCollect(@NotNull File snapshot,
+                         @NotNull File dir,
+                         @Nullable FilesTraversal.CurrentSummaryProvider currentSummaryProvider,
+                         @Nullable CollectionResultHandler handler) {
     if (!snapshot.exists() || (snapshot.length() == 0)) {
       logUnableCollect(snapshot, dir, "file doesn't exist", null);
       if (handler != null) handler.error();
@@ -67,13 +135,16 @@ public class FilesCollector {
     myLogger.message("Scanning directory " + dir + " for newly created, modified and deleted files comparing with snapshot " +
       snapshot.getName() + (rules.size() == 1 ? "" : ", paths to monitor are " + SwabraUtil.getRulesStr(rules, true)), true);
 
+    final SubtreesProfile profile;
     try {
-      iterateAndCollect(snapshot, dir);
+      profile = iterateAndCollect(snapshot, dir, currentSummaryProvider);
     } catch (InterruptedException e) {
+      myProcessor.cancelDeletions();
       myLogger.warn("Interrupted while scanning " + dir + ". Gracefully finishing...");
       if (handler != null) handler.interrupted();
       return;
     } catch (Exception e) {
+      myProcessor.cancelDeletions();
       logUnableCollect(snapshot, dir, "Exception occurred: " + e.getMessage(), e);
       if (handler != null) handler.error();
       return;
@@ -89,6 +160,9 @@ public class FilesCollector {
       results.detectedDeleted + " deleted files and directories";
 
     removeSnapshot(snapshot, dir);
+    if (profile != null) {
+      profile.report(dir, "files collection");
+    }
     if (results.detectedNewAndUnableToDelete != 0) {
       myLogger.warn(message);
       if (handler != null) handler.lockedFilesDetected();
@@ -116,11 +190,46 @@ public class FilesCollector {
     }
   }
 
-  private void iterateAndCollect(File snapshot, File dir) throws Exception {
-    final FilesTraversal traversal = new FilesTraversal();
-    traversal.traverseCompare(new SnapshotFilesIterator(snapshot),
-                              new FileSystemFilesIterator(dir, mySettings.getRules()),
-                              myProcessor);
+  /**
+   * @return profile of the scanned subtrees or null if the report is disabled
+   */
+  @Nullable
+  private SubtreesProfile iterateAndCollect(File snapshot, File dir, @Nullable FilesTraversal.CurrentSummaryProvider currentSummaryProvider) throws Exception {
+    final FilesTraversal traversal = new FilesTraversal(currentSummaryProvider);
+    if (myStatistics == null) {
+      final FilesIterator currentIterator = SubtreesProfile.wrap(createCurrentIterator(snapshot, dir), myLogger);
+      traverseCompare(traversal, snapshot, currentIterator);
+      return currentIterator instanceof SubtreesProfile ? (SubtreesProfile)currentIterator : null;
+    }
+    final long start = System.nanoTime();
+    final TimingFilesIterator timingIterator = new TimingFilesIterator(createCurrentIterator(snapshot, dir));
+    final FilesIterator currentIterator = SubtreesProfile.wrap(timingIterator, myLogger);
+    traverseCompare(traversal, snapshot, currentIterator);
+    myStatistics.add(PhaseStatistics.Phase.SCAN, timingIterator.getTime(), timingIterator.getEntries(), 0);
+
+    final FilesCollectionProcessor.Results results = myProcessor.getResults();
+    final long comparedEntries = results == null ? 0 : results.detectedUnchanged + results.detectedModified + results.detectedDeleted +
+                                                       results.detectedNewAndDeleted + results.detectedNewAndUnableToDelete;
+    final long comparisonTime = System.nanoTime() - start - timingIterator.getTime() - myProcessor.getAddedProcessingTime();
+    myStatistics.add(PhaseStatistics.Phase.COMPARISON, Math.max(comparisonTime, 0), comparedEntries, snapshot.length());
+    return currentIterator instanceof SubtreesProfile ? (SubtreesProfile)currentIterator : null;
+  }
+
+  private void traverseCompare(@NotNull FilesTraversal traversal, @NotNull File snapshot, @NotNull FilesIterator currentIterator) throws Exception {
+    myProcessor.setSubtreesProfile(currentIterator instanceof SubtreesProfile ? (SubtreesProfile)currentIterator : null);
+    try {
+      traversal.traverseCompare(new SnapshotFilesIterator(snapshot), currentIterator, myProcessor);
+    } finally {
+      myProcessor.setSubtreesProfile(null);
+    }
+  }
+
+  @NotNull
+  private FilesIterator createCurrentIterator(@NotNull File snapshot, @NotNull File dir) {
+    if (TeamCityProperties.getBoolean(IncrementalFilesIterator.INCREMENTAL_COLLECTION_PROPERTY)) {
+      return new IncrementalFilesIterator(dir, mySettings.getRules(), snapshot);
+    }
+    return new FileSystemFilesIterator(dir, mySettings.getRules());
   }
 
   private void logUnableCollect(File snapshot, File dir, String message, Throwable e) {
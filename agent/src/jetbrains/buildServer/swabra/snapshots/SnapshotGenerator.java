@@ -3,17 +3,21 @@
 package jetbrains.buildServer.swabra.snapshots;
 
 import java.io.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.swabra.PhaseStatistics;
 import jetbrains.buildServer.swabra.SwabraLogger;
 import jetbrains.buildServer.swabra.SwabraUtil;
+import jetbrains.buildServer.swabra.jfr.SnapshotGenerationEvent;
+import jetbrains.buildServer.swabra.jfr.SwabraEvents;
 import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
 import jetbrains.buildServer.swabra.snapshots.iteration.FileSystemFilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
 import jetbrains.buildServer.swabra.snapshots.iteration.FilesTraversal;
+import jetbrains.buildServer.swabra.snapshots.iteration.ParallelFileSystemFilesIterator;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import org.jetbrains.annotations.NotNull;
-
-import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.getSnapshotEntry;
-import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.getSnapshotHeader;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * User: vbedrosova
@@ -21,12 +25,20 @@ import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.getSnapshotHea
  * Time: 14:04:16
  */
 public class SnapshotGenerator {
+  public static final String PARALLEL_SNAPSHOT_PROPERTY = "teamcity.swabra.snapshot.parallel";
+  public static final String PARALLELISM_PROPERTY = "teamcity.swabra.snapshot.parallelism";
+  /**
+   * Write snapshots in the legacy text format instead of the binary one
+   */
+  public static final String TEXT_SNAPSHOT_PROPERTY = "teamcity.swabra.snapshot.text.format";
+
   private final File myRootDir;
   @NotNull private final SwabraRules myRules;
   @NotNull private String myRootDirParent;
   private int mySavedObjects;
 
   private final SwabraLogger myLogger;
+  @Nullable private PhaseStatistics myStatistics;
 
   public SnapshotGenerator(@NotNull File dir,
                            @NotNull final SwabraLogger logger,
@@ -40,7 +52,21 @@ public class SnapshotGenerator {
     myLogger = logger;
   }
 
+  public void setStatistics(@Nullable PhaseStatistics statistics) {
+    myStatistics = statistics;
+  }
+
   public boolean generateSnapshot(@NotNull File snapshot) {
+    if (!SwabraEvents.isAvailable()) {
+      return doGenerateSnapshot(snapshot);
+    }
+    final SnapshotGenerationEvent event = SnapshotGenerationEvent.start(myRootDir);
+    final boolean success = doGenerateSnapshot(snapshot);
+    event.finish(mySavedObjects, snapshot.length(), success);
+    return success;
+  }
+
+  private boolean doGenerateSnapshot(@NotNull File snapshot) {
     if (snapshot.exists()) {
       myLogger.debug("Snapshot file " + snapshot.getName() + " exists, trying to delete");
       if (!FileUtil.delete(snapshot)) {
@@ -52,12 +78,15 @@ public class SnapshotGenerator {
     myLogger.message("Saving " + myRootDir +
       " directory state to snapshot file " + snapshot.getName(), true);
 
-    BufferedWriter writer = null;
+    final long start = System.nanoTime();
+    SnapshotWriter writer = null;
+    FilesIterator iterator = null;
     try {
-      writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(snapshot), "UTF-8"));
-      writer.write(getSnapshotHeader(myRootDirParent));
+      writer = createSnapshotWriter(snapshot);
 
-      iterateAndBuildSnapshot(writer);
+      iterator = SubtreesProfile.wrap(createFilesIterator(), myLogger);
+      iterateAndBuildSnapshot(iterator, writer);
+      writer.finish();
       myLogger.debug("Successfully finished saving " + myRootDir +
         " directory state to snapshot file " + snapshot.getName() + ", saved " + mySavedObjects + " objects (including root dir)");
     } catch (Throwable e) {
@@ -75,6 +104,12 @@ public class SnapshotGenerator {
         return false;
       }
     }
+    if (myStatistics != null) {
+      myStatistics.add(PhaseStatistics.Phase.SNAPSHOT_WRITE, System.nanoTime() - start, mySavedObjects, snapshot.length());
+    }
+    if (iterator instanceof SubtreesProfile) {
+      ((SubtreesProfile)iterator).report(myRootDir, "snapshot generation");
+    }
     return true;
   }
 
@@ -82,13 +117,35 @@ public class SnapshotGenerator {
     return e.getMessage() == null ? "" : ": " + e.getMessage();
   }
 
-  private void iterateAndBuildSnapshot(final BufferedWriter writer) throws Exception {
+  @NotNull
+  private SnapshotWriter createSnapshotWriter(@NotNull File snapshot) throws IOException {
+    if (TeamCityProperties.getBoolean(TEXT_SNAPSHOT_PROPERTY)) {
+      return new TextSnapshotWriter(snapshot, myRootDirParent);
+    }
+    return new BinarySnapshotWriter(snapshot, myRootDirParent, System.currentTimeMillis());
+  }
+
+  private void iterateAndBuildSnapshot(@NotNull FilesIterator iterator, final SnapshotWriter writer) throws Exception {
     final FilesTraversal tr = new FilesTraversal();
-    tr.traverse(new FileSystemFilesIterator(myRootDir, myRules), new FilesTraversal.SimpleProcessor() {
-      public void process(FileInfo file) throws Exception {
-        writer.write(getSnapshotEntry(file, myRootDirParent));
-        ++mySavedObjects;
-      }
-    });
+    try {
+      tr.traverse(iterator, new FilesTraversal.SimpleProcessor() {
+        public void process(FileInfo file) throws Exception {
+          writer.write(file);
+          ++mySavedObjects;
+        }
+      });
+    } finally {
+      iterator.stopIterator();
+    }
+  }
+
+  @NotNull
+  private FilesIterator createFilesIterator() {
+    if (TeamCityProperties.getBoolean(PARALLEL_SNAPSHOT_PROPERTY)) {
+      final int parallelism = TeamCityProperties.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+      myLogger.debug("Using parallel directory listing with parallelism " + parallelism);
+      return new ParallelFileSystemFilesIterator(myRootDir, myRules, parallelism);
+    }
+    return new FileSystemFilesIterator(myRootDir, myRules);
   }
 }
\ No newline at end of file
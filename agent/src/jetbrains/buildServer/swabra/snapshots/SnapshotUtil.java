@@ -17,6 +17,21 @@ public class SnapshotUtil {
   private static final String SEPARATOR = "\t";
   private static final String LINE_SEPARATOR = "\r\n";
 
+  /**
+   * Binary snapshots start with this magic followed by the format version byte.
+   * Text snapshots never start with zero byte, so the formats can't be confused
+   */
+  public static final byte[] BINARY_SNAPSHOT_MAGIC = {0, 'S', 'W', 'S'};
+  public static final int BINARY_SNAPSHOT_VERSION = 2;
+  /**
+   * First binary snapshot version containing directory summaries
+   */
+  public static final int BINARY_SNAPSHOT_SUMMARIES_VERSION = 2;
+
+  public static final byte BINARY_DIRECTORY_RECORD = 'D';
+  public static final byte BINARY_FILE_RECORD = 'F';
+  public static final byte BINARY_END_RECORD = 'E';
+
   private static String encodeDate(long timestamp) {
     return String.valueOf(timestamp);
   }
@@ -26,14 +41,31 @@ public class SnapshotUtil {
   }
 
   public static String getSnapshotHeader(@NotNull String baseDirName) {
-    return (StringUtil.isEmpty(baseDirName) ? StringUtil.EMPTY : SwabraUtil.unifyPath(baseDirName) + File.separator) + LINE_SEPARATOR;
+    return getSnapshotRootFolder(baseDirName) + LINE_SEPARATOR;
+  }
+
+  public static String getSnapshotRootFolder(@NotNull String baseDirName) {
+    return StringUtil.isEmpty(baseDirName) ? StringUtil.EMPTY : SwabraUtil.unifyPath(baseDirName) + File.separator;
   }
 
   public static String getSnapshotEntry(@NotNull FileInfo file, @NotNull String baseDirName) {
-    final boolean isFile = file.isFile();
-    String fPath = file.getPath();
-    fPath = isFile ? fPath.substring(fPath.lastIndexOf(File.separator) + 1) : getDirPath(baseDirName, fPath); //+1 for trailing slash
-    return getSnapshoEntry(fPath, file.getLength(), file.getLastModified());
+    return getSnapshoEntry(getSnapshotEntryPath(file, baseDirName), file.getLength(), file.getLastModified());
+  }
+
+  /**
+   * @return file name for files and directory path relative to the base dir with trailing separator for directories
+   */
+  public static String getSnapshotEntryPath(@NotNull FileInfo file, @NotNull String baseDirName) {
+    final String fPath = file.getPath();
+    return file.isFile() ? fPath.substring(fPath.lastIndexOf(File.separator) + 1) : getDirPath(baseDirName, fPath); //+1 for trailing slash
+  }
+
+  public static boolean isBinarySnapshot(@NotNull byte[] head, int length) {
+    if (length < BINARY_SNAPSHOT_MAGIC.length) return false;
+    for (int i = 0; i < BINARY_SNAPSHOT_MAGIC.length; ++i) {
+      if (head[i] != BINARY_SNAPSHOT_MAGIC[i]) return false;
+    }
+    return true;
   }
 
   private static String getDirPath(String baseDirName, String fPath) {
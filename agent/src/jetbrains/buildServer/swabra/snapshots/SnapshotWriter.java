@@ -0,0 +1,19 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.Closeable;
+import java.io.IOException;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Writes snapshot entries in the order they are produced by files iterators
+ */
+interface SnapshotWriter extends Closeable {
+  void write(@NotNull FileInfo file) throws IOException;
+
+  /**
+   * Is called after all the entries are successfully written, snapshots which are closed
+   * without being finished may be treated as incomplete
+   */
+  void finish() throws IOException;
+}
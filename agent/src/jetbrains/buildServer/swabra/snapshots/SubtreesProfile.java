@@ -0,0 +1,199 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
+import jetbrains.buildServer.util.StringUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Accumulates files, bytes, deletions and elapsed time of the subtrees returned by the decorated file system iterator
+ * and reports the slowest ones.
+ *
+ * Iteration is depth first, so a subtree is finished when the iterator returns the first entry outside of it, and its time
+ * includes the time the consumer spent on its entries (comparison and deletion). Deletions performed by the deletion workers
+ * are counted when they are scheduled. A subtree is not reported if one of its subdirectories took almost all of its time,
+ * the subdirectory is reported instead.
+ */
+public class SubtreesProfile implements FilesIterator {
+  /**
+   * Number of the slowest subtrees to report after snapshot generation and files collection, 0 to disable
+   */
+  public static final String SLOWEST_SUBTREES_PROPERTY = "teamcity.swabra.slowestSubtrees";
+
+  private static final double DOMINATING_CHILD_SHARE = 0.9;
+
+  @NotNull
+  private final FilesIterator myIterator;
+  @NotNull
+  private final SwabraLogger myLogger;
+  private final int myLimit;
+  private final Deque<Frame> myFrames = new ArrayDeque<Frame>();
+  /**
+   * Slowest subtrees, the fastest one is at the head
+   */
+  private final PriorityQueue<Frame> mySlowest = new PriorityQueue<Frame>(11, new Comparator<Frame>() {
+    public int compare(Frame o1, Frame o2) {
+      return o1.time < o2.time ? -1 : (o1.time == o2.time ? 0 : 1);
+    }
+  });
+  private int myRootPrefixLength = -1;
+
+  SubtreesProfile(@NotNull FilesIterator iterator, @NotNull SwabraLogger logger, int limit) {
+    myIterator = iterator;
+    myLogger = logger;
+    myLimit = limit;
+  }
+
+  /**
+   * @return the iterator itself if the report is disabled
+   */
+  @NotNull
+  static FilesIterator wrap(@NotNull FilesIterator iterator, @NotNull SwabraLogger logger) {
+    final int limit = TeamCityProperties.getInteger(SLOWEST_SUBTREES_PROPERTY, 0);
+    return limit > 0 ? new SubtreesProfile(iterator, logger, limit) : iterator;
+  }
+
+  @Nullable
+  public FileInfo getNext() throws Exception {
+    final FileInfo next = myIterator.getNext();
+    final long now = System.nanoTime();
+    if (next == null) {
+      finishFrames(null, now);
+    } else {
+      enter(next, now);
+    }
+    return next;
+  }
+
+  public void skipDirectory(FileInfo dirInfo) {
+    myIterator.skipDirectory(dirInfo);
+  }
+
+  public void stopIterator() {
+    myIterator.stopIterator();
+  }
+
+  public boolean isCurrent() {
+    return myIterator.isCurrent();
+  }
+
+  /**
+   * Counts deletion of the entry returned last
+   */
+  void deletionScheduled() {
+    final Frame frame = myFrames.peek();
+    if (frame != null) {
+      ++frame.deletions;
+    }
+  }
+
+  private void enter(@NotNull FileInfo info, long now) {
+    final String path = info.getPath();
+    finishFrames(path, now);
+    if (info.isFile()) {
+      final Frame parent = myFrames.peek();
+      if (parent != null) {
+        ++parent.files;
+        parent.bytes += info.getLength();
+      }
+      return;
+    }
+    final String prefix = path.endsWith(File.separator) ? path : path + File.separator;
+    if (myRootPrefixLength < 0) {
+      myRootPrefixLength = prefix.length();
+    }
+    myFrames.push(new Frame(prefix, now));
+  }
+
+  /**
+   * Finishes the subtrees which don't contain the path, all the subtrees if the path is null
+   */
+  private void finishFrames(@Nullable String path, long now) {
+    while (!myFrames.isEmpty() && (path == null || !path.startsWith(myFrames.peek().prefix))) {
+      final Frame frame = myFrames.pop();
+      frame.time = now - frame.start;
+      final Frame parent = myFrames.peek();
+      if (parent == null) {
+        // root directory is not reported
+        continue;
+      }
+      parent.files += frame.files;
+      parent.bytes += frame.bytes;
+      parent.deletions += frame.deletions;
+      parent.maxChildTime = Math.max(parent.maxChildTime, frame.time);
+      if (frame.maxChildTime < frame.time * DOMINATING_CHILD_SHARE) {
+        offer(frame);
+      }
+    }
+  }
+
+  private void offer(@NotNull Frame frame) {
+    if (mySlowest.size() < myLimit) {
+      mySlowest.add(frame);
+    } else if (mySlowest.peek().time < frame.time) {
+      mySlowest.poll();
+      mySlowest.add(frame);
+    }
+  }
+
+  /**
+   * @return relative paths of the slowest subtrees, the slowest first
+   */
+  @NotNull
+  List<String> getSlowestSubtrees() {
+    final List<String> result = new ArrayList<String>();
+    for (Frame frame : getSlowest()) {
+      result.add(getRelativePath(frame));
+    }
+    return result;
+  }
+
+  void report(@NotNull File dir, @NotNull String operation) {
+    final List<Frame> slowest = getSlowest();
+    if (slowest.isEmpty()) return;
+
+    final StringBuilder sb = new StringBuilder("Slowest subtrees of ").append(dir).append(" during ").append(operation).append(":");
+    for (Frame frame : slowest) {
+      sb.append("\n  ").append(getRelativePath(frame))
+        .append(": ").append(TimeUnit.NANOSECONDS.toMillis(frame.time)).append("ms, ")
+        .append(frame.files).append(" files, ")
+        .append(StringUtil.formatFileSize(frame.bytes))
+        .append(frame.deletions > 0 ? ", " + frame.deletions + " deletions" : "");
+    }
+    myLogger.message(sb.toString(), true);
+  }
+
+  @NotNull
+  private List<Frame> getSlowest() {
+    final List<Frame> result = new ArrayList<Frame>(mySlowest);
+    Collections.sort(result, Collections.reverseOrder(mySlowest.comparator()));
+    return result;
+  }
+
+  @NotNull
+  private String getRelativePath(@NotNull Frame frame) {
+    return frame.prefix.substring(Math.min(myRootPrefixLength, frame.prefix.length()));
+  }
+
+  private static final class Frame {
+    @NotNull
+    private final String prefix;
+    private final long start;
+    private long time;
+    private long maxChildTime;
+    private long files;
+    private long bytes;
+    private long deletions;
+
+    private Frame(@NotNull String prefix, long start) {
+      this.prefix = prefix;
+      this.start = start;
+    }
+  }
+}
@@ -4,6 +4,8 @@ package jetbrains.buildServer.swabra.snapshots;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.vcs.FileRule;
@@ -17,11 +19,39 @@ import org.jetbrains.annotations.Nullable;
  * Time: 15:16
  */
 public class SwabraRules {
+  /**
+   * Cache rules decisions per directory
+   */
+  public static final String RULES_CACHE_PROPERTY = "teamcity.swabra.rules.cache";
+  private static final int MAX_CACHED_DIRECTORIES = 4096;
+
+  /**
+   * Decision for a directory and all its subtree
+   */
+  public enum SubtreeDecision {
+    /**
+     * Directory and all its subtree are excluded, there is no need to list it
+     */
+    EXCLUDED,
+    /**
+     * Directory and all its subtree are included, there is no need to check the rules inside it
+     */
+    INCLUDED,
+    /**
+     * Subtree entries must be checked one by one
+     */
+    MIXED
+  }
+
   @NotNull
   private final File myBaseDir;
   @NotNull
   private final SwabraRuleSet mySwabraRuleSet;
   private List<File> myRootPaths;
+  @NotNull
+  private final RuleIndex myRuleIndex;
+  @Nullable
+  private final Map<String, DirectoryRules> myDirectoryRules;
 
   public SwabraRules(@NotNull File baseDir, @NotNull Collection<String> body) {
     myBaseDir = baseDir;
@@ -30,6 +60,8 @@ public class SwabraRules {
     addAsRule(myBaseDir, rules);
 
     mySwabraRuleSet = new SwabraRuleSet(rules);
+    myRuleIndex = new RuleIndex(mySwabraRuleSet.getAllRulesSorted());
+    myDirectoryRules = TeamCityProperties.getBooleanOrTrue(RULES_CACHE_PROPERTY) ? new ConcurrentHashMap<String, DirectoryRules>() : null;
   }
 
   private static void addAsRule(@NotNull File baseDir, @NotNull Collection<String> body) {
@@ -49,7 +81,7 @@ public class SwabraRules {
   }
 
   public boolean requiresListingForDir(File dir){
-    List<SwabraFileRule> rulesForPath = mySwabraRuleSet.getRulesForPath(dir.getPath());
+    List<SwabraFileRule> rulesForPath = myRuleIndex.getRulesUnder(dir.getPath());
     for (SwabraFileRule rule : rulesForPath) {
       if (rule.isRequiresFullListing())
         return true;
@@ -58,11 +90,318 @@ public class SwabraRules {
   }
 
   public boolean shouldInclude(@NotNull String path) {
+    if (myDirectoryRules == null) {
+      return mySwabraRuleSet.shouldInclude(path);
+    }
+    final int nameStart = Math.max(path.lastIndexOf('/'), path.lastIndexOf(File.separatorChar)) + 1;
+    if (nameStart <= 1 || nameStart == path.length() || isSpecialName(path, nameStart)) {
+      return mySwabraRuleSet.shouldInclude(path);
+    }
+    return getDirectoryRules(path.substring(0, nameStart - 1)).shouldInclude(path, nameStart);
+  }
+
+  /**
+   * @return decision for the directory and all its subtree, MIXED if it can't be made for the whole subtree
+   */
+  @NotNull
+  public SubtreeDecision getSubtreeDecision(@NotNull String dir) {
+    if (myDirectoryRules == null) {
+      return SubtreeDecision.MIXED;
+    }
+    return getDirectoryRules(dir).getSubtreeDecision(dir);
+  }
+
+  // for tests
+  boolean shouldIncludeNoCache(@NotNull String path) {
     return mySwabraRuleSet.shouldInclude(path);
   }
 
+  // for tests
+  @NotNull
+  List<String> getRulesForPathNoIndex(@NotNull File pathFile) {
+    return mySwabraRuleSet.getRulesForPath(pathFile.getPath());
+  }
+
+  private static boolean isSpecialName(@NotNull String path, int nameStart) {
+    return path.charAt(nameStart) == '.' && (path.length() == nameStart + 1 || path.length() == nameStart + 2 && path.charAt(nameStart + 1) == '.');
+  }
+
+  @NotNull
+  private DirectoryRules getDirectoryRules(@NotNull String dir) {
+    DirectoryRules rules = myDirectoryRules.get(dir);
+    if (rules == null) {
+      if (myDirectoryRules.size() >= MAX_CACHED_DIRECTORIES) {
+        myDirectoryRules.clear();
+      }
+      rules = new DirectoryRules(dir);
+      myDirectoryRules.put(dir, rules);
+    }
+    return rules;
+  }
+
   public List<String> getRulesForPath(@NotNull File pathFile) {
-    return mySwabraRuleSet.getForPath(pathFile.getPath());
+    final List<SwabraFileRule> rulesForPath = myRuleIndex.getRulesUnder(pathFile.getPath());
+    final List<String> rules = new ArrayList<String>(rulesForPath.size());
+    for (SwabraFileRule rule : rulesForPath) {
+      rules.add(rule.toString());
+    }
+    return rules;
+  }
+
+  /**
+   * All the rules sorted by path, built once. Rules which paths lie under a given path are looked up
+   * with a binary search over the rule paths with unified separators, as such paths share the same prefix
+   * and form a contiguous range in the sorted order.
+   */
+  private static final class RuleIndex {
+    @NotNull
+    private final List<SwabraFileRule> myRules;
+    @NotNull
+    private final String[] myKeys;
+    @NotNull
+    private final int[] myPositions;
+
+    private RuleIndex(@NotNull List<SwabraFileRule> sortedRules) {
+      myRules = Collections.unmodifiableList(new ArrayList<SwabraFileRule>(sortedRules));
+      final Integer[] order = new Integer[sortedRules.size()];
+      final String[] keys = new String[sortedRules.size()];
+      for (int i = 0; i < order.length; ++i) {
+        order[i] = i;
+        keys[i] = sortedRules.get(i).getFrom().replace('\\', '/');
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer o1, Integer o2) {
+          return keys[o1].compareTo(keys[o2]);
+        }
+      });
+      myKeys = new String[order.length];
+      myPositions = new int[order.length];
+      for (int i = 0; i < order.length; ++i) {
+        myKeys[i] = keys[order[i]];
+        myPositions[i] = order[i];
+      }
+    }
+
+    /**
+     * @return rules which paths are the path or lie under it, in the rules order
+     */
+    @NotNull
+    private List<SwabraFileRule> getRulesUnder(@NotNull String path) {
+      final String key = preparePath(path).replace('\\', '/');
+      if (key.isEmpty()) {
+        return myRules;
+      }
+      final String dirKey = key.endsWith("/") ? key : key + "/";
+      int low = 0;
+      int high = myKeys.length;
+      while (low < high) {
+        final int mid = (low + high) >>> 1;
+        if (myKeys[mid].compareTo(key) < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      int[] found = null;
+      int foundCount = 0;
+      for (int i = low; i < myKeys.length && myKeys[i].startsWith(key); ++i) {
+        if (myKeys[i].length() == key.length() || myKeys[i].startsWith(dirKey)) {
+          if (found == null) {
+            found = new int[myKeys.length - i];
+          }
+          found[foundCount++] = myPositions[i];
+        }
+      }
+      if (foundCount == 0) {
+        return Collections.emptyList();
+      }
+      Arrays.sort(found, 0, foundCount);
+      final List<SwabraFileRule> rules = new ArrayList<SwabraFileRule>(foundCount);
+      for (int i = 0; i < foundCount; ++i) {
+        rules.add(myRules.get(found[i]));
+      }
+      return rules;
+    }
+  }
+
+  /**
+   * Rules applicable to the entries of a directory.
+   *
+   * A rule may match a path only if the path starts with the rule literal prefix (the part before the first wildcard),
+   * so only the rules which literal prefix is the directory or its ancestor are evaluated for the directory entries.
+   * Entries which are literal prefixes of other rules themselves are evaluated with all the rules.
+   * If all the applicable rules are wildcard-free, they match all the directory entries the same way,
+   * so the decision is computed once per directory.
+   *
+   * Prefixes are compared ignoring case, so the applicable rules may be a superset of the really matching ones,
+   * the decision is made by the FileRuleSet in any case.
+   *
+   * The whole directory subtree has the same decision if no rule prefix lies under the directory and the most specific rule
+   * matching the directory also matches all its subtree (its last path segment has no wildcards), while all the rules of
+   * the opposite kind are wildcard-free and less specific, so they can't win anywhere inside the subtree.
+   */
+  private final class DirectoryRules {
+    @Nullable
+    private final FileRuleSet<SwabraFileRule, SwabraFileRule> myRules;
+    @NotNull
+    private final List<SwabraFileRule> myCandidates;
+    @NotNull
+    private final Set<String> myRulePrefixNames;
+    private final boolean myConstant;
+    private volatile Boolean myDecision;
+    private volatile SubtreeDecision mySubtreeDecision;
+
+    private DirectoryRules(@NotNull String dir) {
+      final String preparedDir = mySwabraRuleSet.preparePath(dir);
+      if (!new File(dir).isAbsolute() || preparedDir.isEmpty()) {
+        myRules = null;
+        myCandidates = Collections.emptyList();
+        myRulePrefixNames = Collections.emptySet();
+        myConstant = false;
+        return;
+      }
+      final String dirKey = toKey(preparedDir);
+      final List<String> lines = new ArrayList<String>();
+      final List<SwabraFileRule> candidates = new ArrayList<SwabraFileRule>();
+      final Set<String> names = new HashSet<String>();
+      boolean constant = true;
+      for (SwabraFileRule rule : mySwabraRuleSet.getAllRules()) {
+        final String prefix = rule.getLiteralPrefixKey();
+        if (isAncestorOrSelf(prefix, dirKey)) {
+          lines.add((rule.isIncludeRule() ? "+:" : "-:") + rule.getFrom());
+          candidates.add(rule);
+          constant &= !rule.hasWildcards();
+        } else if (prefix.startsWith(dirKey) && prefix.length() > dirKey.length() && prefix.charAt(dirKey.length()) == '/') {
+          final int nameEnd = prefix.indexOf('/', dirKey.length() + 1);
+          names.add(nameEnd < 0 ? prefix.substring(dirKey.length() + 1) : prefix.substring(dirKey.length() + 1, nameEnd));
+        }
+      }
+      myRules = new CandidateRuleSet(lines);
+      myCandidates = candidates;
+      myRulePrefixNames = names;
+      myConstant = constant;
+    }
+
+    private boolean shouldInclude(@NotNull String path, int nameStart) {
+      if (myRules == null || (!myRulePrefixNames.isEmpty() && myRulePrefixNames.contains(path.substring(nameStart).toLowerCase(Locale.ENGLISH)))) {
+        return mySwabraRuleSet.shouldInclude(path);
+      }
+      if (!myConstant) {
+        return myRules.shouldInclude(path);
+      }
+      Boolean decision = myDecision;
+      if (decision == null) {
+        decision = myRules.shouldInclude(path);
+        myDecision = decision;
+      }
+      return decision;
+    }
+
+    @NotNull
+    private SubtreeDecision getSubtreeDecision(@NotNull String dir) {
+      SubtreeDecision decision = mySubtreeDecision;
+      if (decision == null) {
+        decision = computeSubtreeDecision(dir);
+        mySubtreeDecision = decision;
+      }
+      return decision;
+    }
+
+    @NotNull
+    private SubtreeDecision computeSubtreeDecision(@NotNull String dir) {
+      if (myRules == null || !myRulePrefixNames.isEmpty()) {
+        return SubtreeDecision.MIXED;
+      }
+      final String preparedDir = mySwabraRuleSet.preparePath(dir);
+      SwabraFileRule winner = null;
+      int winnerHeadLength = -1;
+      for (SwabraFileRule rule : myCandidates) {
+        final String head = rule.getMatchedHead(preparedDir);
+        if (head != null && head.length() > winnerHeadLength) {
+          winner = rule;
+          winnerHeadLength = head.length();
+        }
+      }
+      if (winner == null || !winner.hasLiteralTail()) {
+        return SubtreeDecision.MIXED;
+      }
+      final int winnerFromLength = winner.getPreparedFromLength();
+      for (SwabraFileRule rule : myCandidates) {
+        if (rule.isIncludeRule() == winner.isIncludeRule()) continue;
+        if (rule.hasWildcards() || rule.getPreparedFromLength() >= winnerHeadLength || rule.getPreparedFromLength() >= winnerFromLength) {
+          return SubtreeDecision.MIXED;
+        }
+      }
+      if (mySwabraRuleSet.shouldInclude(dir) != winner.isIncludeRule()) {
+        // the rule set decided differently, don't guess
+        return SubtreeDecision.MIXED;
+      }
+      return winner.isIncludeRule() ? SubtreeDecision.INCLUDED : SubtreeDecision.EXCLUDED;
+    }
+  }
+
+  @NotNull
+  private static String toKey(@NotNull String preparedPath) {
+    String key = preparedPath.replace('\\', '/').toLowerCase(Locale.ENGLISH);
+    while (key.length() > 1 && key.endsWith("/")) {
+      key = key.substring(0, key.length() - 1);
+    }
+    return key;
+  }
+
+  private static boolean isAncestorOrSelf(@NotNull String ancestor, @NotNull String path) {
+    if (ancestor.isEmpty()) return true;
+    if (!path.startsWith(ancestor)) return false;
+    return path.length() == ancestor.length() || ancestor.endsWith("/") || path.charAt(ancestor.length()) == '/';
+  }
+
+  @NotNull
+  private static String preparePath(@Nullable String path) {
+    if (StringUtil.isEmptyOrSpaces(path)) {
+      return StringUtil.EMPTY;
+    }
+    return new File(path).isAbsolute() ? FileUtil.normalizeAbsolutePath(FileUtil.normalizeSeparator(path)).replace("\\", "/") : FileUtil.normalizeRelativePath(path);
+  }
+
+  /**
+   * Subset of the rules, see DirectoryRules
+   */
+  private final class CandidateRuleSet extends FileRuleSet<SwabraFileRule, SwabraFileRule> {
+    private CandidateRuleSet(@NotNull List<String> lines) {
+      super(lines);
+    }
+
+    @Override
+    protected void doPostInitProcess(@NotNull final List<SwabraFileRule> includeRules, final List<SwabraFileRule> excludeRules) {
+      sortByFrom(includeRules, false);
+      sortByFrom(excludeRules, true);
+    }
+
+    @Override
+    protected SwabraFileRule createNewIncludeRule(final String line) {
+      return new SwabraFileRule(line, null, mySwabraRuleSet, true);
+    }
+
+    @Override
+    protected SwabraFileRule createNewExcludeRule(final String line) {
+      return new SwabraFileRule(line, null, mySwabraRuleSet, false);
+    }
+
+    @Override
+    protected SwabraFileRule createNewIncludeRule(final SwabraFileRule includeRule) {
+      return createNewIncludeRule(includeRule.getFrom());
+    }
+
+    @Override
+    protected SwabraFileRule createNewExcludeRule(final SwabraFileRule excludeRule) {
+      return createNewExcludeRule(excludeRule.getFrom());
+    }
+
+    @NotNull
+    @Override
+    public String preparePath(@Nullable final String path) {
+      return SwabraRules.preparePath(path);
+    }
   }
 
   private final class SwabraRuleSet extends FileRuleSet<SwabraFileRule, SwabraFileRule> {
@@ -133,53 +472,62 @@ public class SwabraRules {
       myRootPaths = new ArrayList<File>(rootPaths);
     }
 
-    public List<String> getForPath(@NotNull String path) {
-      path = preparePath(path);
+    @NotNull
+    private List<SwabraFileRule> getAllRules() {
+      final ArrayList<SwabraFileRule> allRules = new ArrayList<SwabraFileRule>(getIncludeRules().size() + getExcludeRules().size());
+      allRules.addAll(getIncludeRules());
+      allRules.addAll(getExcludeRules());
+      return allRules;
+    }
 
-      final ArrayList<String> rules = new ArrayList<String>();
-      for (SwabraFileRule rule : getAllRulesSorted()) {
-        if (isSubDir(rule.getFrom(), path)) {
-          rules.add(rule.toString());
-        }
-      }
-      return rules;
+    private List<SwabraFileRule> getAllRulesSorted() {
+      final ArrayList<SwabraFileRule> allRules = new ArrayList<SwabraFileRule>(getIncludeRules().size() + getExcludeRules().size());
+      allRules.addAll(getIncludeRules());
+      allRules.addAll(getExcludeRules());
+      sortByFrom(allRules, false);
+      return allRules;
     }
 
-    public List<SwabraFileRule> getRulesForPath(@NotNull String path) {
+    /**
+     * Linear scan over all the rules, the index must give the same result
+     */
+    @NotNull
+    private List<String> getRulesForPath(@NotNull String path) {
       path = preparePath(path);
 
-      final ArrayList<SwabraFileRule> rules = new ArrayList<SwabraFileRule>();
+      final ArrayList<String> rules = new ArrayList<String>();
       for (SwabraFileRule rule : getAllRulesSorted()) {
         if (isSubDir(rule.getFrom(), path)) {
-          rules.add(rule);
+          rules.add(rule.toString());
         }
       }
       return rules;
     }
 
-    private List<SwabraFileRule> getAllRulesSorted() {
-      final ArrayList<SwabraFileRule> allRules = new ArrayList<SwabraFileRule>(getIncludeRules().size() + getExcludeRules().size());
-      allRules.addAll(getIncludeRules());
-      allRules.addAll(getExcludeRules());
-      sortByFrom(allRules, false);
-      return allRules;
-    }
-
     @NotNull
     @Override
     public String preparePath(@Nullable final String path) {
-      if (StringUtil.isEmptyOrSpaces(path)) {
-        return StringUtil.EMPTY;
-      }
-      return new File(path).isAbsolute() ? FileUtil.normalizeAbsolutePath(FileUtil.normalizeSeparator(path)).replace("\\", "/") : FileUtil.normalizeRelativePath(path);
+      return SwabraRules.preparePath(path);
     }
   }
 
   private static class SwabraFileRule extends FileRule<SwabraRuleSet>{
     private final boolean requiresFullListing;
+    private final boolean include;
+    private final boolean hasWildcards;
+    private final boolean hasLiteralTail;
+    private final int preparedFromLength;
+    @NotNull
+    private final String literalPrefixKey;
 
     private SwabraFileRule(@NotNull final String fromPath, @Nullable final String additionalProperties, final SwabraRuleSet swabraRuleSet, final boolean isInclude) {
       super(fromPath, additionalProperties, swabraRuleSet, isInclude);
+      include = isInclude;
+      hasWildcards = fromPath.contains("*") || fromPath.contains("?");
+      literalPrefixKey = getLiteralPrefixKey(fromPath, hasWildcards);
+      final String lastSegment = new File(fromPath).getName();
+      hasLiteralTail = !lastSegment.isEmpty() && !lastSegment.contains("*") && !lastSegment.contains("?");
+      preparedFromLength = preparePath(fromPath).length();
       if (!fromPath.contains("*")){
         requiresFullListing = false;
       } else {
@@ -191,6 +539,55 @@ public class SwabraRules {
     public boolean isRequiresFullListing() {
       return requiresFullListing;
     }
+
+    public boolean isIncludeRule() {
+      return include;
+    }
+
+    public boolean hasWildcards() {
+      return hasWildcards;
+    }
+
+    /**
+     * @return true if the last path segment has no wildcards, so the rule matches the subtree of any matched path
+     */
+    public boolean hasLiteralTail() {
+      return !hasWildcards || hasLiteralTail;
+    }
+
+    public int getPreparedFromLength() {
+      return preparedFromLength;
+    }
+
+    /**
+     * @return lower case prepared part of the rule path before the first wildcard
+     */
+    @NotNull
+    public String getLiteralPrefixKey() {
+      return literalPrefixKey;
+    }
+
+    @NotNull
+    private static String getLiteralPrefixKey(@NotNull String fromPath, boolean hasWildcards) {
+      if (!hasWildcards) {
+        return toKey(preparePath(fromPath));
+      }
+      final String[] segments = fromPath.replace('\\', '/').split("/", -1);
+      final StringBuilder prefix = new StringBuilder();
+      boolean wildcardFound = false;
+      for (String segment : segments) {
+        if (segment.contains("*") || segment.contains("?")) {
+          wildcardFound = true;
+        } else if (wildcardFound && "..".equals(segment)) {
+          // path after a wildcard may go up, can't bound it
+          return "";
+        }
+        if (!wildcardFound) {
+          prefix.append(segment).append('/');
+        }
+      }
+      return toKey(preparePath(prefix.toString()));
+    }
   }
 
   @NotNull
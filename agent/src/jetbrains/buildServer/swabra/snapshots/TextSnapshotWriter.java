@@ -0,0 +1,41 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.*;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.getSnapshotEntry;
+import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.getSnapshotHeader;
+
+/**
+ * Writes snapshots in the legacy tab separated text format
+ */
+class TextSnapshotWriter implements SnapshotWriter {
+  @NotNull
+  private final String myRootDirParent;
+  @NotNull
+  private final Writer myWriter;
+
+  TextSnapshotWriter(@NotNull File snapshot, @NotNull String rootDirParent) throws IOException {
+    myRootDirParent = rootDirParent;
+    myWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(snapshot), "UTF-8"));
+    try {
+      myWriter.write(getSnapshotHeader(rootDirParent));
+    } catch (IOException e) {
+      myWriter.close();
+      throw e;
+    }
+  }
+
+  public void write(@NotNull FileInfo file) throws IOException {
+    myWriter.write(getSnapshotEntry(file, myRootDirParent));
+  }
+
+  public void finish() {
+    // nothing to do, text snapshots have no trailer
+  }
+
+  public void close() throws IOException {
+    myWriter.close();
+  }
+}
@@ -0,0 +1,54 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Measures the time spent in the iterator and counts the returned entries
+ */
+class TimingFilesIterator implements FilesIterator {
+  @NotNull
+  private final FilesIterator myIterator;
+  private long myTime;
+  private long myEntries;
+
+  TimingFilesIterator(@NotNull FilesIterator iterator) {
+    myIterator = iterator;
+  }
+
+  @Nullable
+  public FileInfo getNext() throws Exception {
+    final long start = System.nanoTime();
+    try {
+      final FileInfo next = myIterator.getNext();
+      if (next != null) {
+        ++myEntries;
+      }
+      return next;
+    } finally {
+      myTime += System.nanoTime() - start;
+    }
+  }
+
+  public void skipDirectory(FileInfo dirInfo) {
+    myIterator.skipDirectory(dirInfo);
+  }
+
+  public void stopIterator() {
+    myIterator.stopIterator();
+  }
+
+  public boolean isCurrent() {
+    return myIterator.isCurrent();
+  }
+
+  long getTime() {
+    return myTime;
+  }
+
+  long getEntries() {
+    return myEntries;
+  }
+}
@@ -0,0 +1,181 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.processes.LockedFileResolver;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Agent-wide trash for newly created directories: a directory is atomically renamed into the trash directory
+ * and is deleted in background, so its recursive deletion doesn't delay the build.
+ *
+ * Rename is possible only within the same file system, otherwise the caller deletes the directory itself.
+ * Trash directory is outside the monitored directories, so the following Swabra scans don't see the directories
+ * being deleted: the next build doesn't wait for the deletions in progress and ignores them.
+ *
+ * Entries which failed to be deleted (e.g. because of locked files) are retried at the next files collection,
+ * the processes locking them are reported if locking processes detection is enabled. Directories left in the trash
+ * after agent restart or shutdown are deleted when the trash is created.
+ */
+public class TrashBin {
+  /**
+   * Move newly created directories to the trash instead of deleting them during files collection
+   */
+  public static final String TRASH_PROPERTY = "teamcity.swabra.trash";
+
+  @NotNull
+  private final File myTrashDir;
+  @NotNull
+  private final SwabraLogger myLogger;
+  @NotNull
+  private final ExecutorService myExecutor;
+  private final AtomicInteger myCounter = new AtomicInteger();
+  private final AtomicInteger myPendingDeletions = new AtomicInteger();
+  private final Set<File> myFailedDeletions = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+  public TrashBin(@NotNull File trashDir, @NotNull SwabraLogger logger) {
+    myTrashDir = trashDir;
+    myLogger = logger;
+    myExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(@NotNull Runnable r) {
+        final Thread thread = new Thread(r, "Swabra trash cleaner");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    final File[] leftovers = trashDir.listFiles();
+    if (leftovers != null) {
+      for (File leftover : leftovers) {
+        scheduleDelete(leftover, null);
+      }
+    }
+  }
+
+  @NotNull
+  public File getTrashDir() {
+    return myTrashDir;
+  }
+
+  /**
+   * @return true if the directory was moved to the trash, false if it must be deleted in place
+   */
+  public boolean moveToTrash(@NotNull File dir) {
+    if (!myTrashDir.isDirectory() && !myTrashDir.mkdirs()) {
+      myLogger.debug("Failed to create trash directory " + myTrashDir);
+      return false;
+    }
+    final File target = new File(myTrashDir, System.currentTimeMillis() + "_" + myCounter.incrementAndGet() + "_" + dir.getName());
+    try {
+      Files.move(dir.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      // another file system, locked files or no permissions
+      myLogger.debug("Failed to move " + dir + " to trash, will delete it in place: " + e);
+      return false;
+    }
+    myLogger.debug("Moved " + dir + " to trash " + target);
+    scheduleDelete(target, null);
+    return true;
+  }
+
+  /**
+   * Schedules deletion of the entries which failed to be deleted before
+   * @param lockedFileResolver resolver to report the processes locking the entries with, null if detection is disabled
+   */
+  public void retryFailedDeletions(@Nullable LockedFileResolver lockedFileResolver) {
+    final List<File> failed = new ArrayList<File>(myFailedDeletions);
+    for (File file : failed) {
+      if (myFailedDeletions.remove(file)) {
+        scheduleDelete(file, lockedFileResolver);
+      }
+    }
+  }
+
+  /**
+   * @return number of entries scheduled for deletion and not deleted yet
+   */
+  public int getPendingDeletionsCount() {
+    return myPendingDeletions.get();
+  }
+
+  /**
+   * @return number of entries which failed to be deleted and wait for the retry
+   */
+  public int getFailedDeletionsCount() {
+    return myFailedDeletions.size();
+  }
+
+  /**
+   * Stops the deletion thread, entries which are not deleted yet stay in the trash until it's created again
+   */
+  public void shutdown() {
+    myExecutor.shutdownNow();
+  }
+
+  /**
+   * Waits for the trash deletions scheduled so far
+   * @return false if the timeout elapsed
+   */
+  public boolean awaitDeletions(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+    try {
+      myExecutor.submit(new Runnable() {
+        public void run() {
+        }
+      }).get(timeout, unit);
+      return true;
+    } catch (ExecutionException e) {
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (RejectedExecutionException e) {
+      // shut down
+      return myExecutor.awaitTermination(timeout, unit);
+    }
+  }
+
+  private void scheduleDelete(@NotNull final File file, @Nullable final LockedFileResolver lockedFileResolver) {
+    myPendingDeletions.incrementAndGet();
+    try {
+      myExecutor.execute(new Runnable() {
+        public void run() {
+          try {
+            if (delete(file)) return;
+            if (lockedFileResolver != null) {
+              lockedFileResolver.resolve(file, false, new LockedFileResolver.Listener() {
+                public void message(String m) {
+                  myLogger.debug(m);
+                }
+
+                public void warning(String w) {
+                  myLogger.debug(w);
+                }
+              });
+              if (delete(file)) return;
+            }
+            myFailedDeletions.add(file);
+            myLogger.debug("Failed to delete " + file + " from trash, will retry at the next files collection");
+          } finally {
+            myPendingDeletions.decrementAndGet();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // shut down, deleted after restart
+      myPendingDeletions.decrementAndGet();
+    }
+  }
+
+  protected boolean delete(@NotNull File file) {
+    return FileUtil.delete(file) || !file.exists();
+  }
+}
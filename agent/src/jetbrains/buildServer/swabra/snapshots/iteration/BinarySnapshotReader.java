@@ -0,0 +1,231 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.*;
+
+/**
+ * Reads snapshots in the binary format, see BinarySnapshotWriter for the format description.
+ *
+ * Record paths are kept as bytes and are decoded only when requested, prefix checks
+ * are performed on the bytes, so skipped records don't produce any garbage.
+ */
+abstract class BinarySnapshotReader implements SnapshotReader {
+  private long myTimestamp;
+  private String myRootFolder;
+
+  private byte[] myDir = new byte[256];
+  private int myDirLength;
+  private byte[] myFile = new byte[256];
+  private int myFileLength;
+  private int myPathLength;
+  private char[] myChars = new char[512];
+
+  private boolean myIsDirectory;
+  private String myPath;
+  private long myLength;
+  private long myLastModified;
+
+  private String myPrefix;
+  private byte[] myPrefixBytes;
+
+  private boolean myClosed;
+
+  /**
+   * @return next byte or -1 if the end of the snapshot is reached
+   */
+  protected abstract int read() throws IOException;
+
+  protected abstract int read(@NotNull byte[] buffer, int offset, int length) throws IOException;
+
+  protected abstract void doClose() throws IOException;
+
+  /**
+   * Must be called by the implementations once they are ready to read
+   */
+  protected final void readHeader() throws IOException {
+    for (byte b : BINARY_SNAPSHOT_MAGIC) {
+      if (readByte() != (b & 0xFF)) {
+        throw new IOException("Not a binary snapshot");
+      }
+    }
+    final int version = readByte();
+    if (version < 1 || version > BINARY_SNAPSHOT_VERSION) {
+      throw new IOException("Unsupported binary snapshot version " + version);
+    }
+    myTimestamp = readVarLong();
+    final byte[] rootFolder = new byte[readLength()];
+    readFully(rootFolder, 0, rootFolder.length);
+    myRootFolder = new String(rootFolder, StandardCharsets.UTF_8);
+  }
+
+  public long getTimestamp() {
+    return myTimestamp;
+  }
+
+  @NotNull
+  public String getRootFolder() {
+    return myRootFolder;
+  }
+
+  public boolean next() throws IOException {
+    if (myClosed) {
+      return false;
+    }
+    final int tag = readByte();
+    if (tag == BINARY_END_RECORD) {
+      return false;
+    }
+    if (tag == BINARY_DIRECTORY_RECORD) {
+      myIsDirectory = true;
+      myDir = readPath(myDir, myDirLength);
+      myDirLength = myPathLength;
+      myFileLength = 0;
+    } else if (tag == BINARY_FILE_RECORD) {
+      myIsDirectory = false;
+      myFile = readPath(myFile, myFileLength);
+      myFileLength = myPathLength;
+    } else {
+      throw new IOException("Corrupted snapshot: unexpected record tag " + tag);
+    }
+    myPath = null;
+    myLength = readVarLong();
+    myLastModified += unZigZag(readVarLong());
+    return true;
+  }
+
+  /**
+   * Reads shared prefix length and the suffix of the path into the buffer containing the previous path,
+   * sets myPathLength
+   * @return buffer containing the path, may differ from the passed one if it had to be grown
+   */
+  @NotNull
+  private byte[] readPath(@NotNull byte[] buffer, int previousLength) throws IOException {
+    final int shared = readLength();
+    final int suffix = readLength();
+    if (shared > previousLength) {
+      throw new IOException("Corrupted snapshot: shared prefix is longer than the previous path");
+    }
+    myPathLength = shared + suffix;
+    if (myPathLength > buffer.length) {
+      final byte[] newBuffer = new byte[Math.max(myPathLength, buffer.length * 2)];
+      System.arraycopy(buffer, 0, newBuffer, 0, shared);
+      buffer = newBuffer;
+    }
+    readFully(buffer, shared, suffix);
+    return buffer;
+  }
+
+  public boolean isDirectory() {
+    return myIsDirectory;
+  }
+
+  @NotNull
+  public String getPath() {
+    if (myPath == null) {
+      myPath = myIsDirectory
+               ? new String(myDir, 0, myDirLength, StandardCharsets.UTF_8)
+               : new String(myFile, 0, myFileLength, StandardCharsets.UTF_8);
+    }
+    return myPath;
+  }
+
+  public boolean pathStartsWith(@NotNull String prefix) {
+    if (!prefix.equals(myPrefix)) {
+      myPrefix = prefix;
+      myPrefixBytes = prefix.getBytes(StandardCharsets.UTF_8);
+    }
+    final byte[] path = myIsDirectory ? myDir : myFile;
+    final int pathLength = myIsDirectory ? myDirLength : myFileLength;
+    if (pathLength < myPrefixBytes.length) {
+      return false;
+    }
+    for (int i = 0; i < myPrefixBytes.length; ++i) {
+      if (path[i] != myPrefixBytes[i]) return false;
+    }
+    return true;
+  }
+
+  @NotNull
+  public String getFullPath(@NotNull String prefix) {
+    final byte[] path = myIsDirectory ? myDir : myFile;
+    final int pathLength = myIsDirectory ? myDirLength : myFileLength;
+    final int length = prefix.length() + pathLength;
+    if (myChars.length < length) {
+      myChars = new char[Math.max(length, myChars.length * 2)];
+    }
+    prefix.getChars(0, prefix.length(), myChars, 0);
+    int pos = prefix.length();
+    for (int i = 0; i < pathLength; ++i) {
+      final byte b = path[i];
+      if (b < 0) {
+        // non-ASCII name, let the decoder handle it
+        return prefix + getPath();
+      }
+      myChars[pos++] = (char)b;
+    }
+    return new String(myChars, 0, length);
+  }
+
+  public long getLength() {
+    return myLength;
+  }
+
+  public long getLastModified() {
+    return myLastModified;
+  }
+
+  public void close() throws IOException {
+    if (myClosed) {
+      return;
+    }
+    myClosed = true;
+    doClose();
+  }
+
+  private int readByte() throws IOException {
+    final int b = read();
+    if (b < 0) {
+      throw new EOFException("Unexpected end of snapshot");
+    }
+    return b;
+  }
+
+  private void readFully(@NotNull byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      final int read = read(buffer, offset, length);
+      if (read < 0) {
+        throw new EOFException("Unexpected end of snapshot");
+      }
+      offset += read;
+      length -= read;
+    }
+  }
+
+  private int readLength() throws IOException {
+    final long length = readVarLong();
+    if (length < 0 || length > Integer.MAX_VALUE) {
+      throw new IOException("Corrupted snapshot: invalid length " + length);
+    }
+    return (int)length;
+  }
+
+  private long readVarLong() throws IOException {
+    long result = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = readByte();
+      result |= (long)(b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return result;
+      }
+    }
+    throw new IOException("Corrupted snapshot: malformed varint");
+  }
+
+  private static long unZigZag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+}
@@ -0,0 +1,148 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import jetbrains.buildServer.swabra.SwabraMetrics;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * File system entry together with its attributes, which are read only once
+ * and then reused for sorting, rules checks and FileInfo creation.
+ */
+final class FileSystemEntry {
+  static final Comparator<FileSystemEntry> ENTRIES_COMPARATOR = new Comparator<FileSystemEntry>() {
+    public int compare(FileSystemEntry o1, FileSystemEntry o2) {
+      final int res = FilesComparator.compareByType(o1.isFile(), o2.isFile());
+      return res == 0 ? o1.getName().compareTo(o2.getName()) : res;
+    }
+  };
+
+  @NotNull
+  private final Path myPath;
+  @NotNull
+  private final String myName;
+  @Nullable
+  private final BasicFileAttributes myAttributes;
+  private String myPathString;
+  private String myAbsolutePath;
+
+  private FileSystemEntry(@NotNull Path path, @NotNull String name, @Nullable BasicFileAttributes attributes) {
+    myPath = path;
+    myName = name;
+    myAttributes = attributes;
+  }
+
+  /**
+   * Reads entry attributes. Entries which attributes can't be read (e.g. removed or broken links)
+   * are neither files nor directories, the same way as java.io.File reports them
+   */
+  @NotNull
+  static FileSystemEntry read(@NotNull Path path) {
+    SwabraMetrics.getInstance().statCalls(1);
+    return create(path);
+  }
+
+  @NotNull
+  private static FileSystemEntry create(@NotNull Path path) {
+    final Path fileName = path.getFileName();
+    return new FileSystemEntry(path, fileName == null ? path.toString() : fileName.toString(), readAttributes(path));
+  }
+
+  /**
+   * Lists the directory and returns its entries in the order expected by FilesComparator:
+   * files go first, then directories, both sorted by name
+   * @return null if the directory doesn't exist
+   * @throws IOException if the directory can't be read, including errors that happen while its entries are read
+   */
+  @Nullable
+  static List<FileSystemEntry> list(@NotNull Path dir) throws IOException {
+    final List<FileSystemEntry> entries = new ArrayList<FileSystemEntry>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path path : stream) {
+        entries.add(create(path));
+      }
+    } catch (NoSuchFileException e) {
+      return null;
+    } catch (DirectoryIteratorException e) {
+      throw e.getCause();
+    }
+    SwabraMetrics.getInstance().statCalls(entries.size());
+    Collections.sort(entries, ENTRIES_COMPARATOR);
+    return entries;
+  }
+
+  @Nullable
+  private static BasicFileAttributes readAttributes(@NotNull Path path) {
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  @NotNull
+  Path getPath() {
+    return myPath;
+  }
+
+  @NotNull
+  String getName() {
+    return myName;
+  }
+
+  @NotNull
+  String getPathString() {
+    if (myPathString == null) {
+      myPathString = myPath.toString();
+    }
+    return myPathString;
+  }
+
+  @NotNull
+  String getAbsolutePath() {
+    if (myAbsolutePath == null) {
+      myAbsolutePath = myPath.toAbsolutePath().toString();
+    }
+    return myAbsolutePath;
+  }
+
+  boolean exists() {
+    return myAttributes != null;
+  }
+
+  boolean isFile() {
+    return myAttributes != null && myAttributes.isRegularFile();
+  }
+
+  boolean isDirectory() {
+    return myAttributes != null && myAttributes.isDirectory();
+  }
+
+  long getLength() {
+    return myAttributes == null ? 0L : myAttributes.size();
+  }
+
+  long getLastModified() {
+    return myAttributes == null ? 0L : myAttributes.lastModifiedTime().toMillis();
+  }
+
+  @NotNull
+  FileInfo toFileInfo() {
+    return new FileInfo(getAbsolutePath(), getLength(), getLastModified(), isFile());
+  }
+
+  @Override
+  public String toString() {
+    return getPathString();
+  }
+}
@@ -4,7 +4,9 @@ package jetbrains.buildServer.swabra.snapshots.iteration;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Stack;
 import jetbrains.buildServer.serverSide.TeamCityProperties;
 import jetbrains.buildServer.swabra.snapshots.SwabraRules;
 import org.apache.log4j.Logger;
@@ -22,9 +24,13 @@ public class FileSystemFilesIterator implements FilesIterator {
   @NotNull
   private final File myRootFolder;
   @NotNull private final SwabraRules myRules;
-  private Stack<Iterator<File>> myIterators;
+  private Stack<Iterator<FileSystemEntry>> myIterators;
   private final boolean myRequiresListing;
   private final boolean myVerboseLogging;
+  /**
+   * Iterators of this depth and deeper belong to a fully included subtree, rules are not checked there
+   */
+  private int myIncludedSubtreeDepth = Integer.MAX_VALUE;
 
   public FileSystemFilesIterator(@NotNull File rootFolder,@NotNull final SwabraRules rules) {
     myRootFolder = rootFolder;
@@ -38,14 +44,15 @@ public class FileSystemFilesIterator implements FilesIterator {
     boolean postProcess = true;
     while (true) {
       if (myIterators == null) {
-        myIterators = new Stack<Iterator<File>>();
-        return processFolder(myRootFolder, myRules.shouldInclude(myRootFolder.getPath()));
+        myIterators = new Stack<Iterator<FileSystemEntry>>();
+        final SwabraRules.SubtreeDecision decision = myRules.getSubtreeDecision(myRootFolder.getPath());
+        return processFolder(FileSystemEntry.read(myRootFolder.toPath()), myRules.shouldInclude(myRootFolder.getPath()), decision == SwabraRules.SubtreeDecision.INCLUDED);
       }
       if (myIterators.size() > MAX_DEPTH) {
         final StringBuilder builder = new StringBuilder();
         int iteratorsCount = myIterators.size();
         for (int i=0; i<iteratorsCount; i++){
-          final Iterator<File> iterator = myIterators.get(i);
+          final Iterator<FileSystemEntry> iterator = myIterators.get(i);
           if (iterator.hasNext()) {
             builder.append(iterator.next().getAbsolutePath());
           } else {
@@ -59,15 +66,21 @@ public class FileSystemFilesIterator implements FilesIterator {
       if (myIterators.isEmpty()) {
         return null;
       }
-      final Iterator<File> it = myIterators.peek();
+      final Iterator<FileSystemEntry> it = myIterators.peek();
+      final boolean includedSubtree = myIterators.size() >= myIncludedSubtreeDepth;
       while (it.hasNext()) {
-        final File next = it.next();
-        boolean shouldInclude = myRules.shouldInclude(next.getPath());
+        final FileSystemEntry next = it.next();
+        boolean shouldInclude = includedSubtree || myRules.shouldInclude(next.getPathString());
         if ((next.isDirectory() && myRequiresListing) || shouldInclude) {
           if (next.isFile()) {
-            return createFileInfo(next);
+            return next.toFileInfo();
           } else if (next.isDirectory()) {
-            FileInfo processResult = processFolder(next, shouldInclude);
+            final SwabraRules.SubtreeDecision decision = includedSubtree ? SwabraRules.SubtreeDecision.INCLUDED : myRules.getSubtreeDecision(next.getPathString());
+            if (decision == SwabraRules.SubtreeDecision.EXCLUDED) {
+              // nothing can be included there, no need to list it
+              continue;
+            }
+            FileInfo processResult = processFolder(next, shouldInclude, decision == SwabraRules.SubtreeDecision.INCLUDED);
             if (processResult != null)
               return processResult;
             else {
@@ -81,7 +94,7 @@ public class FileSystemFilesIterator implements FilesIterator {
         }
       }
       if (postProcess) {
-        myIterators.pop();
+        popIterator();
         if (myIterators.isEmpty()) {
           return null;
         }
@@ -91,7 +104,14 @@ public class FileSystemFilesIterator implements FilesIterator {
   }
 
   public void skipDirectory(final FileInfo dirInfo) {
+    popIterator();
+  }
+
+  private void popIterator() {
     myIterators.pop();
+    if (myIterators.size() < myIncludedSubtreeDepth) {
+      myIncludedSubtreeDepth = Integer.MAX_VALUE;
+    }
   }
 
   public void stopIterator() {
@@ -103,32 +123,29 @@ public class FileSystemFilesIterator implements FilesIterator {
   }
 
   @Nullable
-  private FileInfo processFolder(File folder, boolean createFileInfo) throws IOException{
+  private FileInfo processFolder(FileSystemEntry folder, boolean createFileInfo, boolean includedSubtree) throws IOException{
     if (!folder.exists()){
       return null;
     }
-    final File[] files = folder.listFiles();
-    if (files == null) {
-      throw new IOException("Failed to get folder content for: " + folder);
+    final List<FileSystemEntry> entries;
+    try {
+      entries = FileSystemEntry.list(folder.getPath());
+    } catch (IOException e) {
+      throw new IOException("Failed to get folder content for: " + folder, e);
+    }
+    if (entries == null) {
+      return null;
+    }
+    myIterators.push(entries.iterator());
+    if (includedSubtree && myIterators.size() < myIncludedSubtreeDepth) {
+      myIncludedSubtreeDepth = myIterators.size();
     }
-    final List<File> filesList = Arrays.asList(files);
-    Collections.sort(filesList, new Comparator<File>() {
-      public int compare(File o1, File o2) {
-        final int res = FilesComparator.compareByType(o1.isFile(), o2.isFile());
-        return res == 0 ? o1.getName().compareTo(o2.getName()) : res;
-      }
-    });
-    myIterators.push(filesList.iterator());
     if (myVerboseLogging){
-      LOG.info(String.format("Processing '%s'. It has %d files and folders", folder.getAbsolutePath(), files.length));
+      LOG.info(String.format("Processing '%s'. It has %d files and folders", folder.getAbsolutePath(), entries.size()));
     }
     if (createFileInfo)
-      return createFileInfo(folder);
+      return folder.toFileInfo();
     else
       return null;
   }
-
-  private static FileInfo createFileInfo(File file) {
-    return new FileInfo(file.getAbsolutePath(), file.length(), file.lastModified(), file.isFile());
-  }
-}
\ No newline at end of file
+}
@@ -10,27 +10,36 @@ import java.io.File;
  * Time: 13:22:24
  */
 class FilesComparator {
-  private static final String SEPARATOR_REGEX = "/".equals(File.separator) ? "/" : "\\\\";
-
   public static int compare(FileInfo o1, FileInfo o2) {
-    return compare(o1.getPath(), o1.isFile(), o2.getPath(), o2.isFile());
+    return compare(o1.getPath(), o1.isFile(), o2.getPath(), o2.isFile(), File.separatorChar);
   }
 
-  private static int compare(String path1, boolean isFile1, String path2, boolean isFile2) {
+  /**
+   * Compares paths segment by segment (segments are compared as strings) without splitting them,
+   * directories go after files and after files and directories with the same name.
+   * Empty segments are treated the same way String.split treats them: trailing ones are ignored.
+   */
+  static int compare(String path1, boolean isFile1, String path2, boolean isFile2, char separator) {
     if (path1.equals(path2)) {
       return compareByType(isFile1, isFile2);
     }
 
-    final String[] path1Parts = path1.split(SEPARATOR_REGEX);
-    final String[] path2Parts = path2.split(SEPARATOR_REGEX);
+    final int end1 = trimTrailingSeparators(path1, separator);
+    final int end2 = trimTrailingSeparators(path2, separator);
+
+    // path consisting of separators only has no segments, empty path has one empty segment
+    boolean finished1 = end1 == 0 && !path1.isEmpty();
+    boolean finished2 = end2 == 0 && !path2.isEmpty();
+    int start1 = 0;
+    int start2 = 0;
 
-    final int len1 = path1Parts.length;
-    final int len2 = path2Parts.length;
+    while (!finished1 && !finished2) {
+      final int segmentEnd1 = segmentEnd(path1, start1, end1, separator);
+      final int segmentEnd2 = segmentEnd(path2, start2, end2, separator);
 
-    for (int i = 0; i < Math.min(len1, len2); ++i) {
-      final int comparisonResult = path1Parts[i].compareTo(path2Parts[i]);
+      final int comparisonResult = compareSegments(path1, start1, segmentEnd1, path2, start2, segmentEnd2);
       if (comparisonResult != 0) {
-        if (i == (len1 - 1) && len1 == len2) {
+        if (segmentEnd1 == end1 && segmentEnd2 == end2) {
           final int comparisonByTypeResult = compareByType(isFile1, isFile2);
           if (comparisonByTypeResult != 0) {
             return comparisonByTypeResult;
@@ -38,16 +47,51 @@ class FilesComparator {
         }
         return comparisonResult;
       }
+
+      finished1 = segmentEnd1 == end1;
+      finished2 = segmentEnd2 == end2;
+      start1 = segmentEnd1 + 1;
+      start2 = segmentEnd2 + 1;
     }
 
-    if (len1 < len2) {
+    if (finished1 && !finished2) {
       return -1;
-    } else if (len2 < len1) {
+    } else if (finished2 && !finished1) {
       return 1;
     }
     return compareByType(isFile1, isFile2);
   }
 
+  private static int trimTrailingSeparators(String path, char separator) {
+    int end = path.length();
+    while (end > 0 && path.charAt(end - 1) == separator) {
+      --end;
+    }
+    return end;
+  }
+
+  private static int segmentEnd(String path, int start, int end, char separator) {
+    final int index = path.indexOf(separator, start);
+    return index < 0 || index > end ? end : index;
+  }
+
+  /**
+   * Same as path1.substring(start1, end1).compareTo(path2.substring(start2, end2))
+   */
+  private static int compareSegments(String path1, int start1, int end1, String path2, int start2, int end2) {
+    final int len1 = end1 - start1;
+    final int len2 = end2 - start2;
+    final int len = Math.min(len1, len2);
+    for (int i = 0; i < len; ++i) {
+      final char c1 = path1.charAt(start1 + i);
+      final char c2 = path2.charAt(start2 + i);
+      if (c1 != c2) {
+        return c1 - c2;
+      }
+    }
+    return len1 - len2;
+  }
+
   public static int compareByType(boolean isFile1, boolean isFile2) {
     if (isFile1) {
       if (!isFile2) {
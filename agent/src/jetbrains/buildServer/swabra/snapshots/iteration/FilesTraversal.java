@@ -3,6 +3,7 @@
 package jetbrains.buildServer.swabra.snapshots.iteration;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * User: vbedrosova
@@ -10,8 +11,20 @@ import org.jetbrains.annotations.NotNull;
  * Time: 17:22:24
  */
 public class FilesTraversal {
+  @Nullable
+  private final CurrentSummaryProvider myCurrentSummaryProvider;
 
-  public FilesTraversal() {}
+  public FilesTraversal() {
+    this(null);
+  }
+
+  /**
+   * @param currentSummaryProvider if specified, subtrees which current summaries match the ones stored in the snapshot
+   *                               are skipped during comparison
+   */
+  public FilesTraversal(@Nullable CurrentSummaryProvider currentSummaryProvider) {
+    myCurrentSummaryProvider = currentSummaryProvider;
+  }
 
   public static interface SimpleProcessor {
     void process(FileInfo file) throws Exception;
@@ -31,6 +44,21 @@ public class FilesTraversal {
     void processAdded(FileInfo info);
 
     void processUnchanged(FileInfo info);
+
+    /**
+     * Called after processUnchanged for the directory which subtree is skipped as unchanged
+     * @param entriesCount number of the skipped entries
+     */
+    void processUnchangedSubtree(FileInfo dir, int entriesCount);
+  }
+
+  public static interface CurrentSummaryProvider {
+    /**
+     * @param snapshotSummary summary of the directory subtree stored in the snapshot
+     * @return summary of the current state of the directory subtree or null if it can't be obtained cheaply
+     */
+    @Nullable
+    SubtreeSummary getCurrentSummary(@NotNull FileInfo dir, @NotNull SubtreeSummary snapshotSummary);
   }
 
   public void traverse(@NotNull FilesIterator it, @NotNull SimpleProcessor simpleProcessor) throws Exception {
@@ -60,7 +88,13 @@ public class FilesTraversal {
           processDeleted(snapshotInfo, processor, snapshotIterator);
           snapshotInfo = snapshotIterator.getNext();
         } else {
-          if (fileModified(snapshotInfo, currentInfo)) {
+          final SubtreeSummary unchangedSubtree = getUnchangedSubtree(snapshotIterator, snapshotInfo, currentInfo);
+          if (unchangedSubtree != null) {
+            processUnchanged(snapshotInfo, processor);
+            processor.processUnchangedSubtree(snapshotInfo, unchangedSubtree.getEntriesCount());
+            snapshotIterator.skipDirectory(snapshotInfo);
+            currentIterator.skipDirectory(currentInfo);
+          } else if (fileModified(snapshotInfo, currentInfo)) {
             processModified(snapshotInfo, currentInfo, processor);
           } else {
             processUnchanged(snapshotInfo, processor);
@@ -85,6 +119,20 @@ public class FilesTraversal {
     }
   }
 
+  @Nullable
+  private SubtreeSummary getUnchangedSubtree(@NotNull FilesIterator snapshotIterator,
+                                             @NotNull FileInfo snapshotInfo,
+                                             @NotNull FileInfo currentInfo) {
+    if (myCurrentSummaryProvider == null || snapshotInfo.isFile() || currentInfo.isFile() || !(snapshotIterator instanceof SnapshotFilesIterator)) {
+      return null;
+    }
+    final SubtreeSummary snapshotSummary = ((SnapshotFilesIterator)snapshotIterator).getSubtreeSummary();
+    if (snapshotSummary == null) {
+      return null;
+    }
+    return snapshotSummary.equals(myCurrentSummaryProvider.getCurrentSummary(currentInfo, snapshotSummary)) ? snapshotSummary : null;
+  }
+
   private boolean fileAdded(int comparisonResult) {
     return comparisonResult > 0;
   }
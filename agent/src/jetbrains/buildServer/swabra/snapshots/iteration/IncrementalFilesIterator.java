@@ -0,0 +1,398 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * File system iterator which uses the snapshot to avoid listing directories which weren't changed.
+ *
+ * Directory modification time changes when an entry is created, deleted or renamed in it, so if a directory has
+ * the same modification time as in the snapshot, its entries are the same as in the snapshot and are taken
+ * from it instead of listing the directory. Entries are still read from the file system to detect modified files
+ * and subdirectories are still visited, as a change deeper in the tree doesn't change the directory modification time.
+ *
+ * Snapshot directory modification times are trusted only if:
+ * <ul>
+ *   <li>the snapshot is a binary one and has the creation time</li>
+ *   <li>the directory modification time is older than the snapshot creation time minus the file system timestamp granularity,
+ *   otherwise the directory could have been changed after the snapshot within the same timestamp tick</li>
+ *   <li>the file system is not known for unreliable directory modification times (FAT, network file systems)</li>
+ *   <li>rules don't require listing of directories, as in this case directory entries are filtered differently</li>
+ * </ul>
+ * Otherwise the directory is listed the same way FileSystemFilesIterator does. The produced entries are exactly
+ * the same as FileSystemFilesIterator would produce for directories with unchanged entries.
+ *
+ * Limitation: tools which restore directory modification times (tar or rsync with times preserved, VCS checkouts
+ * preserving timestamps) make the entries created in such a directory invisible, without any warning, so they are
+ * not deleted. Deleted entries are still noticed, as the snapshot entries are read from the file system and
+ * a missing one makes the directory listed. Don't enable incremental collection on agents where builds do this.
+ */
+public class IncrementalFilesIterator implements FilesIterator {
+  private static final Logger LOG = Logger.getLogger(IncrementalFilesIterator.class);
+  private static final int MAX_DEPTH = 130;
+
+  /**
+   * Enables incremental collection, false by default. Entries created in a directory which modification time
+   * is restored afterwards are not noticed, see the class comment
+   */
+  public static final String INCREMENTAL_COLLECTION_PROPERTY = "teamcity.swabra.incremental.collection";
+  public static final String TIMESTAMP_GRANULARITY_PROPERTY = "teamcity.swabra.incremental.collection.timestampGranularity";
+
+  private static final Set<String> UNRELIABLE_FILE_STORES = new HashSet<String>(Arrays.asList(
+    "vfat", "msdos", "fat", "fat32", "exfat",
+    "cifs", "smb", "smbfs", "smb2", "smb3", "nfs", "nfs4", "9p", "fuse.sshfs", "davfs"));
+
+  @NotNull
+  private final File myRootFolder;
+  @NotNull
+  private final SwabraRules myRules;
+  @NotNull
+  private final File mySnapshot;
+  private final boolean myRequiresListing;
+  private final boolean myVerboseLogging;
+
+  private Stack<Frame> myFrames;
+  /**
+   * Frames of this depth and deeper belong to a fully included subtree, rules are not checked there
+   */
+  private int myIncludedSubtreeDepth = Integer.MAX_VALUE;
+  @Nullable
+  private SnapshotCursor myCursor;
+  private String mySnapshotRootFolder;
+  private long myTrustedBefore;
+
+  private int myListedDirs;
+  private int myReusedDirs;
+
+  public IncrementalFilesIterator(@NotNull File rootFolder, @NotNull SwabraRules rules, @NotNull File snapshot) {
+    myRootFolder = rootFolder;
+    myRules = rules;
+    mySnapshot = snapshot;
+    myRequiresListing = myRules.requiresListingForDir(rootFolder);
+    myVerboseLogging = TeamCityProperties.getBoolean("teamcity.swabra.snapshot.verbose.logging");
+  }
+
+  @Nullable
+  public FileInfo getNext() throws IOException {
+    if (myFrames == null) {
+      myFrames = new Stack<Frame>();
+      initCursor();
+      final SwabraRules.SubtreeDecision decision = myRules.getSubtreeDecision(myRootFolder.getPath());
+      return processFolder(FileSystemEntry.read(myRootFolder.toPath()), myRules.shouldInclude(myRootFolder.getPath()), decision == SwabraRules.SubtreeDecision.INCLUDED);
+    }
+    while (!myFrames.isEmpty()) {
+      // checked on every step, directories which are listed but not returned push frames too
+      if (myFrames.size() > MAX_DEPTH) {
+        LOG.warn("Too many entries in depth (" + myFrames.size() + "), last folder is " + myFrames.peek().getFolder().getAbsolutePath());
+        throw new IOException("Too many entries in depth. Is there a loop. Current folder depth is more than " + MAX_DEPTH);
+      }
+      final FileSystemEntry next = myFrames.peek().next();
+      if (next == null) {
+        popFrame();
+        continue;
+      }
+      final boolean includedSubtree = myFrames.size() >= myIncludedSubtreeDepth;
+      final boolean shouldInclude = includedSubtree || myRules.shouldInclude(next.getPathString());
+      if ((next.isDirectory() && myRequiresListing) || shouldInclude) {
+        if (next.isFile()) {
+          return next.toFileInfo();
+        } else if (next.isDirectory()) {
+          final SwabraRules.SubtreeDecision decision = includedSubtree ? SwabraRules.SubtreeDecision.INCLUDED : myRules.getSubtreeDecision(next.getPathString());
+          if (decision == SwabraRules.SubtreeDecision.EXCLUDED) {
+            // nothing can be included there, no need to list it
+            continue;
+          }
+          final FileInfo processResult = processFolder(next, shouldInclude, decision == SwabraRules.SubtreeDecision.INCLUDED);
+          if (processResult != null) {
+            return processResult;
+          }
+        } else {
+          throw new IOException("Failed to read " + next);
+        }
+      }
+    }
+    return null;
+  }
+
+  public void skipDirectory(final FileInfo dirInfo) {
+    popFrame();
+  }
+
+  private void popFrame() {
+    myFrames.pop();
+    if (myFrames.size() < myIncludedSubtreeDepth) {
+      myIncludedSubtreeDepth = Integer.MAX_VALUE;
+    }
+  }
+
+  public void stopIterator() {
+    if (myListedDirs + myReusedDirs > 0) {
+      LOG.debug("Listed " + myListedDirs + " directories, reused snapshot entries of " + myReusedDirs + " unchanged directories under " + myRootFolder);
+    }
+    closeCursor();
+  }
+
+  public boolean isCurrent() {
+    return true;
+  }
+
+  int getListedDirectoriesCount() {
+    return myListedDirs;
+  }
+
+  int getReusedDirectoriesCount() {
+    return myReusedDirs;
+  }
+
+  private void initCursor() {
+    if (myRequiresListing) {
+      LOG.debug("Directory modification times are not used for " + myRootFolder + ", rules require listing of directories");
+      return;
+    }
+    if (!isReliableFileStore(myRootFolder)) {
+      return;
+    }
+    try {
+      final SnapshotCursor cursor = new SnapshotCursor(SnapshotFilesIterator.openReader(mySnapshot));
+      final String rootFolder = cursor.getRootFolder();
+      final long granularity = TeamCityProperties.getLong(TIMESTAMP_GRANULARITY_PROPERTY, 2000L);
+      if (cursor.getTimestamp() <= 0 || rootFolder.isEmpty() || !myRootFolder.getAbsolutePath().startsWith(rootFolder)) {
+        LOG.debug("Directory modification times are not used for " + myRootFolder + ", snapshot " + mySnapshot.getName() + " doesn't support it");
+        cursor.close();
+        return;
+      }
+      myCursor = cursor;
+      mySnapshotRootFolder = rootFolder;
+      myTrustedBefore = cursor.getTimestamp() - granularity;
+    } catch (IOException e) {
+      LOG.warn("Failed to read snapshot " + mySnapshot.getName() + ", directory modification times will not be used", e);
+    }
+  }
+
+  private static boolean isReliableFileStore(@NotNull File dir) {
+    try {
+      final String type = Files.getFileStore(dir.toPath()).type().toLowerCase(Locale.ENGLISH);
+      if (UNRELIABLE_FILE_STORES.contains(type)) {
+        LOG.debug("Directory modification times are not used for " + dir + ", file system type is " + type);
+        return false;
+      }
+      return true;
+    } catch (IOException e) {
+      LOG.debug("Failed to detect file system type for " + dir + ", directory modification times will not be used", e);
+      return false;
+    }
+  }
+
+  private void closeCursor() {
+    if (myCursor == null) {
+      return;
+    }
+    try {
+      myCursor.close();
+    } catch (IOException e) {
+      LOG.warn("Error occurred when closing snapshot " + mySnapshot.getName(), e);
+    }
+    myCursor = null;
+  }
+
+  private void disableCursor(@NotNull IOException e) {
+    LOG.warn("Failed to read snapshot " + mySnapshot.getName() + ", directory modification times will not be used any more", e);
+    closeCursor();
+  }
+
+  @Nullable
+  private FileInfo processFolder(@NotNull FileSystemEntry folder, boolean createFileInfo, boolean includedSubtree) throws IOException {
+    if (!folder.exists()) {
+      return null;
+    }
+    Frame frame = createReusedFrame(folder);
+    if (frame == null) {
+      final List<FileSystemEntry> entries = list(folder);
+      if (entries == null) {
+        return null;
+      }
+      frame = new ListedFrame(folder, entries.iterator());
+      ++myListedDirs;
+    } else {
+      ++myReusedDirs;
+    }
+    myFrames.push(frame);
+    if (includedSubtree && myFrames.size() < myIncludedSubtreeDepth) {
+      myIncludedSubtreeDepth = myFrames.size();
+    }
+    if (myVerboseLogging) {
+      LOG.info(String.format("Processing '%s'. Its entries are %s", folder.getAbsolutePath(), frame instanceof ListedFrame ? "listed" : "taken from the snapshot"));
+    }
+    return createFileInfo ? folder.toFileInfo() : null;
+  }
+
+  @Nullable
+  private static List<FileSystemEntry> list(@NotNull FileSystemEntry folder) throws IOException {
+    try {
+      return FileSystemEntry.list(folder.getPath());
+    } catch (IOException e) {
+      throw new IOException("Failed to get folder content for: " + folder, e);
+    }
+  }
+
+  /**
+   * @return frame with entries taken from the snapshot or null if the folder must be listed
+   */
+  @Nullable
+  private Frame createReusedFrame(@NotNull FileSystemEntry folder) {
+    if (myCursor == null) {
+      return null;
+    }
+    final String absolutePath = folder.getAbsolutePath();
+    if (!absolutePath.startsWith(mySnapshotRootFolder)) {
+      return null;
+    }
+    final String dir = absolutePath.substring(mySnapshotRootFolder.length()) + File.separator;
+    try {
+      if (!myCursor.seekDirectory(dir)) {
+        return null;
+      }
+      final long lastModified = folder.getLastModified();
+      if (lastModified <= 0 || lastModified >= myTrustedBefore || lastModified != myCursor.getLastModified()) {
+        return null;
+      }
+      final List<String> names = myCursor.readFiles();
+      final List<FileSystemEntry> files = new ArrayList<FileSystemEntry>(names.size());
+      for (String name : names) {
+        final FileSystemEntry file = FileSystemEntry.read(folder.getPath().resolve(name));
+        if (!file.isFile()) {
+          // the directory was changed without changing its modification time, don't trust it
+          LOG.debug("Directory " + absolutePath + " has the same modification time as in the snapshot, but " + name + " is not a file any more");
+          return null;
+        }
+        files.add(file);
+      }
+      return new ReusedFrame(folder, dir, files.iterator());
+    } catch (IOException e) {
+      disableCursor(e);
+      return null;
+    }
+  }
+
+  private static abstract class Frame {
+    @NotNull
+    private final FileSystemEntry myFolder;
+
+    Frame(@NotNull FileSystemEntry folder) {
+      myFolder = folder;
+    }
+
+    @NotNull
+    FileSystemEntry getFolder() {
+      return myFolder;
+    }
+
+    /**
+     * @return next entry in the FileSystemFilesIterator order or null if there are no more entries
+     */
+    @Nullable
+    abstract FileSystemEntry next() throws IOException;
+  }
+
+  private static final class ListedFrame extends Frame {
+    @NotNull
+    private final Iterator<FileSystemEntry> myEntries;
+
+    ListedFrame(@NotNull FileSystemEntry folder, @NotNull Iterator<FileSystemEntry> entries) {
+      super(folder);
+      myEntries = entries;
+    }
+
+    @Nullable
+    @Override
+    FileSystemEntry next() {
+      return myEntries.hasNext() ? myEntries.next() : null;
+    }
+  }
+
+  private final class ReusedFrame extends Frame {
+    @NotNull
+    private final String myDir;
+    @NotNull
+    private final Iterator<FileSystemEntry> myFiles;
+    @Nullable
+    private String myPreviousSubdirectory;
+    @Nullable
+    private FileSystemEntry myPreviousEntry;
+    @Nullable
+    private Iterator<FileSystemEntry> myListedRest;
+
+    ReusedFrame(@NotNull FileSystemEntry folder, @NotNull String dir, @NotNull Iterator<FileSystemEntry> files) {
+      super(folder);
+      myDir = dir;
+      myFiles = files;
+    }
+
+    @Nullable
+    @Override
+    FileSystemEntry next() throws IOException {
+      final FileSystemEntry next = doNext();
+      if (next != null) {
+        myPreviousEntry = next;
+      }
+      return next;
+    }
+
+    @Nullable
+    private FileSystemEntry doNext() throws IOException {
+      if (myFiles.hasNext()) {
+        return myFiles.next();
+      }
+      if (myListedRest != null) {
+        return myListedRest.hasNext() ? myListedRest.next() : null;
+      }
+      if (myCursor == null) {
+        return listRest();
+      }
+      try {
+        while (true) {
+          final String subdirectory = myCursor.nextSubdirectory(myDir, myPreviousSubdirectory);
+          if (subdirectory == null) {
+            return null;
+          }
+          myPreviousSubdirectory = subdirectory;
+          final String name = subdirectory.substring(myDir.length(), subdirectory.length() - 1);
+          final FileSystemEntry entry = FileSystemEntry.read(getFolder().getPath().resolve(name));
+          if (entry.isDirectory()) {
+            return entry;
+          }
+          LOG.debug("Directory " + getFolder().getAbsolutePath() + " has the same modification time as in the snapshot, but " + name + " is not a directory any more");
+        }
+      } catch (IOException e) {
+        disableCursor(e);
+        return listRest();
+      }
+    }
+
+    /**
+     * Snapshot can't be read any more, the rest of the entries is taken from the file system
+     */
+    @Nullable
+    private FileSystemEntry listRest() throws IOException {
+      final List<FileSystemEntry> entries = list(getFolder());
+      final List<FileSystemEntry> rest = new ArrayList<FileSystemEntry>();
+      if (entries != null) {
+        for (FileSystemEntry entry : entries) {
+          if (myPreviousEntry == null || FileSystemEntry.ENTRIES_COMPARATOR.compare(entry, myPreviousEntry) > 0) {
+            rest.add(entry);
+          }
+        }
+      }
+      myListedRest = rest.iterator();
+      return myListedRest.hasNext() ? myListedRest.next() : null;
+    }
+  }
+}
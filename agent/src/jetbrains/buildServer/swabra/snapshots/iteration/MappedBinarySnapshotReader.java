@@ -0,0 +1,98 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads binary snapshots mapped into memory, records are parsed in place from the mapped buffer.
+ *
+ * The buffer is unmapped on close, otherwise the snapshot file couldn't be deleted on Windows
+ * until the buffer is garbage collected.
+ */
+class MappedBinarySnapshotReader extends BinarySnapshotReader {
+  private static final Logger LOG = Logger.getLogger(MappedBinarySnapshotReader.class);
+
+  private MappedByteBuffer myBuffer;
+
+  MappedBinarySnapshotReader(@NotNull File snapshot) throws IOException {
+    final FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ);
+    try {
+      myBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      channel.close();
+    }
+    try {
+      readHeader();
+    } catch (IOException e) {
+      close();
+      throw e;
+    }
+  }
+
+  static boolean canMap(@NotNull File snapshot) {
+    return snapshot.length() <= Integer.MAX_VALUE;
+  }
+
+  @Override
+  protected int read() {
+    return myBuffer.hasRemaining() ? myBuffer.get() & 0xFF : -1;
+  }
+
+  @Override
+  protected int read(@NotNull byte[] buffer, int offset, int length) {
+    if (length == 0) {
+      return 0;
+    }
+    final int remaining = myBuffer.remaining();
+    if (remaining == 0) {
+      return -1;
+    }
+    final int count = Math.min(length, remaining);
+    myBuffer.get(buffer, offset, count);
+    return count;
+  }
+
+  @Override
+  protected void doClose() {
+    final MappedByteBuffer buffer = myBuffer;
+    myBuffer = null;
+    if (buffer != null) {
+      unmap(buffer);
+    }
+  }
+
+  private static void unmap(@NotNull MappedByteBuffer buffer) {
+    try {
+      final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner;
+      try {
+        invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      } catch (NoSuchMethodException e) {
+        invokeCleaner = null;
+      }
+      if (invokeCleaner != null) {
+        final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+        theUnsafe.setAccessible(true);
+        invokeCleaner.invoke(theUnsafe.get(null), buffer);
+      } else {
+        // Java 8
+        final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+        cleanerMethod.setAccessible(true);
+        final Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+      }
+    } catch (Throwable e) {
+      LOG.debug("Failed to unmap snapshot buffer, it will be unmapped on garbage collection", e);
+    }
+  }
+}
@@ -0,0 +1,345 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Stack;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import org.apache.log4j.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * File system iterator which lists directories on a ForkJoinPool.
+ *
+ * Each directory is listed by a separate task. Tasks are scheduled ahead of the iterator cursor: the subdirectories
+ * the iterator will visit next are listed in background, but no more than a fixed number of listings per pool thread
+ * may be scheduled and not consumed yet, so memory stays proportional to depth and fan-out as for the sequential iterator.
+ * The iterator itself walks the tree in the same depth-first order as FileSystemFilesIterator does (files first,
+ * then directories, both sorted by name), waiting for the tasks it needs, so the output is exactly the same
+ * as the sequential one regardless of the tasks completion order.
+ *
+ * Listing errors are reported at the point where FileSystemFilesIterator would report them.
+ */
+public class ParallelFileSystemFilesIterator implements FilesIterator {
+  private static final Logger LOG = Logger.getLogger(ParallelFileSystemFilesIterator.class);
+  private static final int MAX_DEPTH = 130;
+  private static final int LOOKAHEAD_PER_THREAD = 8;
+
+  @NotNull
+  private final File myRootFolder;
+  @NotNull
+  private final SwabraRules myRules;
+  private final boolean myRequiresListing;
+  private final boolean myVerboseLogging;
+  @NotNull
+  private final ForkJoinPool myPool;
+  /**
+   * Maximum number of scheduled listings not consumed by the iterator yet
+   */
+  private final int myLookahead;
+  private int myOutstanding;
+  private int myMaxOutstanding;
+  private Stack<Cursor> myCursors;
+
+  public ParallelFileSystemFilesIterator(@NotNull File rootFolder, @NotNull final SwabraRules rules, int parallelism) {
+    this(rootFolder, rules, parallelism, Math.max(1, parallelism) * LOOKAHEAD_PER_THREAD);
+  }
+
+  ParallelFileSystemFilesIterator(@NotNull File rootFolder, @NotNull final SwabraRules rules, int parallelism, int lookahead) {
+    myRootFolder = rootFolder;
+    myLookahead = Math.max(1, lookahead);
+    myRules = rules;
+    myRequiresListing = myRules.requiresListingForDir(rootFolder);
+    myVerboseLogging = TeamCityProperties.getBoolean("teamcity.swabra.snapshot.verbose.logging");
+    myPool = new ForkJoinPool(Math.max(1, parallelism));
+  }
+
+  @Nullable
+  public FileInfo getNext() throws IOException {
+    if (myCursors == null) {
+      myCursors = new Stack<Cursor>();
+      final boolean includedSubtree = myRules.getSubtreeDecision(myRootFolder.getPath()) == SwabraRules.SubtreeDecision.INCLUDED;
+      final DirectoryTask root = new DirectoryTask(FileSystemEntry.read(myRootFolder.toPath()), 1, includedSubtree);
+      return processFolder(root, myRules.shouldInclude(myRootFolder.getPath()));
+    }
+    scheduleAhead();
+    while (true) {
+      if (myCursors.size() > MAX_DEPTH) {
+        final StringBuilder builder = new StringBuilder();
+        for (Cursor cursor : myCursors) {
+          builder.append(cursor.hasNext() ? cursor.peek().getEntry().getAbsolutePath() : "<Empty iterator>").append("\n");
+        }
+        LOG.warn("Too many entries in depth (" + myCursors.size() + "). Printing the list: \n" + builder.toString());
+        throw new IOException("Too many entries in depth. Is there a loop. Current folder depth is more than " + MAX_DEPTH);
+      }
+      if (myCursors.isEmpty()) {
+        return null;
+      }
+      final Cursor cursor = myCursors.peek();
+      if (!cursor.hasNext()) {
+        myCursors.pop();
+        continue;
+      }
+      final Child next = cursor.next();
+      if (next.getTask() == null) {
+        return next.getEntry().toFileInfo();
+      }
+      final FileInfo processResult = processFolder(next.getTask(), next.isIncluded());
+      if (processResult != null) {
+        return processResult;
+      }
+    }
+  }
+
+  public void skipDirectory(final FileInfo dirInfo) {
+    final Cursor cursor = myCursors.pop();
+    cursor.cancel();
+  }
+
+  public void stopIterator() {
+    myPool.shutdownNow();
+  }
+
+  public boolean isCurrent() {
+    return true;
+  }
+
+  @Nullable
+  private FileInfo processFolder(@NotNull DirectoryTask task, boolean createFileInfo) throws IOException {
+    if (!task.isScheduled()) {
+      schedule(task);
+    }
+    final List<Child> children;
+    try {
+      children = task.getChildren();
+    } finally {
+      --myOutstanding;
+    }
+    if (children == null) {
+      return null;
+    }
+    // the cursor is the only holder of the children now, they are released when it's popped
+    task.release();
+    myCursors.push(new Cursor(children));
+    scheduleAhead();
+    if (myVerboseLogging) {
+      LOG.info(String.format("Processing '%s'. It has %d files and folders", task.getFolder().getAbsolutePath(), task.getEntriesCount()));
+    }
+    return createFileInfo ? task.getFolder().toFileInfo() : null;
+  }
+
+  private void schedule(@NotNull DirectoryTask task) {
+    task.setScheduled();
+    myPool.execute(task);
+    ++myOutstanding;
+    myMaxOutstanding = Math.max(myMaxOutstanding, myOutstanding);
+  }
+
+  /**
+   * Schedules listings of the directories the iterator visits next, from the innermost cursor outwards
+   */
+  private void scheduleAhead() {
+    for (int i = myCursors.size() - 1; i >= 0 && myOutstanding < myLookahead; --i) {
+      myCursors.get(i).scheduleAhead();
+    }
+  }
+
+  /**
+   * @return maximum number of scheduled and not consumed listings so far
+   */
+  int getMaxOutstanding() {
+    return myMaxOutstanding;
+  }
+
+  private final class DirectoryTask extends RecursiveAction {
+    @NotNull
+    private final FileSystemEntry myFolder;
+    private final int myDepth;
+    private final boolean myIncludedSubtree;
+    @Nullable
+    private List<Child> myChildren;
+    private int myEntriesCount;
+    @Nullable
+    private IOException myError;
+    private boolean myScheduled;
+
+    /**
+     * @param includedSubtree the folder subtree is fully included, so rules are not checked for its entries
+     */
+    private DirectoryTask(@NotNull FileSystemEntry folder, int depth, boolean includedSubtree) {
+      myFolder = folder;
+      myDepth = depth;
+      myIncludedSubtree = includedSubtree;
+    }
+
+    @Override
+    protected void compute() {
+      if (!myFolder.exists()) {
+        return;
+      }
+      final List<FileSystemEntry> entries;
+      try {
+        entries = FileSystemEntry.list(myFolder.getPath());
+      } catch (IOException e) {
+        myError = new IOException("Failed to get folder content for: " + myFolder, e);
+        return;
+      }
+      if (entries == null) {
+        return;
+      }
+      myEntriesCount = entries.size();
+      if (myDepth > MAX_DEPTH) {
+        // the iterator fails as soon as it gets here, so there is no sense in going deeper (possibly forever)
+        myChildren = Collections.emptyList();
+        return;
+      }
+      final List<Child> children = new ArrayList<Child>(entries.size());
+      for (FileSystemEntry entry : entries) {
+        final boolean shouldInclude = myIncludedSubtree || myRules.shouldInclude(entry.getPathString());
+        if ((entry.isDirectory() && myRequiresListing) || shouldInclude) {
+          if (entry.isFile()) {
+            children.add(new Child(entry, null, true));
+          } else if (entry.isDirectory()) {
+            final SwabraRules.SubtreeDecision decision = myIncludedSubtree ? SwabraRules.SubtreeDecision.INCLUDED : myRules.getSubtreeDecision(entry.getPathString());
+            if (decision == SwabraRules.SubtreeDecision.EXCLUDED) {
+              // nothing can be included there, no need to list it
+              continue;
+            }
+            children.add(new Child(entry, new DirectoryTask(entry, myDepth + 1, decision == SwabraRules.SubtreeDecision.INCLUDED), shouldInclude));
+          } else {
+            children.add(new Child(entry, null, false));
+          }
+        }
+      }
+      myChildren = children;
+    }
+
+    @NotNull
+    FileSystemEntry getFolder() {
+      return myFolder;
+    }
+
+    int getEntriesCount() {
+      return myEntriesCount;
+    }
+
+    /**
+     * Waits for the task to complete
+     * @return directory children or null if the directory doesn't exist
+     */
+    @Nullable
+    List<Child> getChildren() throws IOException {
+      try {
+        join();
+      } catch (CancellationException e) {
+        throw new IOException("Listing of " + myFolder + " was cancelled", e);
+      }
+      if (myError != null) {
+        throw myError;
+      }
+      return myChildren;
+    }
+
+    boolean isScheduled() {
+      return myScheduled;
+    }
+
+    void setScheduled() {
+      myScheduled = true;
+    }
+
+    void release() {
+      myChildren = null;
+    }
+  }
+
+  private static final class Child {
+    @NotNull
+    private final FileSystemEntry myEntry;
+    @Nullable
+    private final DirectoryTask myTask;
+    private final boolean myIncluded;
+
+    private Child(@NotNull FileSystemEntry entry, @Nullable DirectoryTask task, boolean included) {
+      myEntry = entry;
+      myTask = task;
+      myIncluded = included;
+    }
+
+    @NotNull
+    FileSystemEntry getEntry() {
+      return myEntry;
+    }
+
+    @Nullable
+    DirectoryTask getTask() {
+      return myTask;
+    }
+
+    boolean isIncluded() {
+      return myIncluded;
+    }
+  }
+
+  private final class Cursor {
+    @NotNull
+    private final List<Child> myChildren;
+    private int myIndex;
+    /**
+     * Children before this index are scheduled or consumed
+     */
+    private int myScheduleIndex;
+
+    private Cursor(@NotNull List<Child> children) {
+      myChildren = children;
+    }
+
+    boolean hasNext() {
+      return myIndex < myChildren.size();
+    }
+
+    @NotNull
+    Child peek() {
+      return myChildren.get(myIndex);
+    }
+
+    @NotNull
+    Child next() throws IOException {
+      final Child child = myChildren.get(myIndex++);
+      if (child.getTask() == null && !child.getEntry().isFile()) {
+        throw new IOException("Failed to read " + child.getEntry());
+      }
+      return child;
+    }
+
+    void scheduleAhead() {
+      myScheduleIndex = Math.max(myScheduleIndex, myIndex);
+      while (myScheduleIndex < myChildren.size() && myOutstanding < myLookahead) {
+        final DirectoryTask task = myChildren.get(myScheduleIndex++).getTask();
+        if (task != null && !task.isScheduled()) {
+          schedule(task);
+        }
+      }
+    }
+
+    /**
+     * Cancels the scheduled listings of the children not consumed yet, their subdirectories are never scheduled
+     */
+    void cancel() {
+      for (int i = myIndex; i < myScheduleIndex; ++i) {
+        final DirectoryTask task = myChildren.get(i).getTask();
+        if (task != null && task.isScheduled()) {
+          task.cancel(false);
+          --myOutstanding;
+        }
+      }
+    }
+  }
+}
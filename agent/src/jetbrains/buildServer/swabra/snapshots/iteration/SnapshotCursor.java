@@ -0,0 +1,110 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Forward-only cursor over snapshot records which allows to look up directories
+ * in the snapshot while the file system is traversed in the same order.
+ *
+ * Directory paths are relative to the snapshot root folder and end with the separator,
+ * the same way they are stored in the snapshot.
+ */
+class SnapshotCursor {
+  @NotNull
+  private final SnapshotReader myReader;
+  private boolean myHasCurrent;
+
+  SnapshotCursor(@NotNull SnapshotReader reader) throws IOException {
+    myReader = reader;
+    advance();
+  }
+
+  @NotNull
+  String getRootFolder() {
+    return myReader.getRootFolder();
+  }
+
+  long getTimestamp() {
+    return myReader.getTimestamp();
+  }
+
+  private void advance() throws IOException {
+    myHasCurrent = myReader.next();
+  }
+
+  /**
+   * Moves the cursor forward to the record of the directory, records preceding it are skipped.
+   * If the directory is not found, the cursor stops at the first directory record following it
+   * @return true if the cursor is positioned at the directory record
+   */
+  boolean seekDirectory(@NotNull String dir) throws IOException {
+    while (myHasCurrent) {
+      if (myReader.isDirectory()) {
+        final int comparisonResult = FilesComparator.compare(myReader.getPath(), false, dir, false, File.separatorChar);
+        if (comparisonResult == 0) {
+          return true;
+        }
+        if (comparisonResult > 0) {
+          return false;
+        }
+      }
+      advance();
+    }
+    return false;
+  }
+
+  /**
+   * Must be called when the cursor is positioned at the directory record
+   */
+  long getLastModified() {
+    return myReader.getLastModified();
+  }
+
+  /**
+   * Must be called when the cursor is positioned at the directory record,
+   * moves the cursor to the next directory record
+   * @return names of the files of the directory
+   */
+  @NotNull
+  List<String> readFiles() throws IOException {
+    final List<String> files = new ArrayList<String>();
+    advance();
+    while (myHasCurrent && !myReader.isDirectory()) {
+      files.add(myReader.getPath());
+      advance();
+    }
+    return files;
+  }
+
+  /**
+   * Moves the cursor forward to the record of the next immediate subdirectory of the directory,
+   * records of the previous subdirectory and its subtree are skipped
+   * @param previous path of the previously returned subdirectory or null
+   * @return subdirectory path or null if there are no more subdirectories
+   */
+  @Nullable
+  String nextSubdirectory(@NotNull String dir, @Nullable String previous) throws IOException {
+    while (myHasCurrent) {
+      if (myReader.isDirectory()) {
+        if (!myReader.pathStartsWith(dir)) {
+          return null;
+        }
+        final String path = myReader.getPath();
+        if (!path.equals(previous) && path.length() > dir.length() && path.indexOf(File.separatorChar, dir.length()) == path.length() - 1) {
+          return path;
+        }
+      }
+      advance();
+    }
+    return null;
+  }
+
+  void close() throws IOException {
+    myReader.close();
+  }
+}
@@ -3,11 +3,14 @@
 package jetbrains.buildServer.swabra.snapshots.iteration;
 
 import java.io.*;
+import jetbrains.buildServer.serverSide.TeamCityProperties;
+import jetbrains.buildServer.swabra.SwabraUtil;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.*;
+import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.BINARY_SNAPSHOT_MAGIC;
+import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.isBinarySnapshot;
 
 /**
  * User: vbedrosova
@@ -16,14 +19,29 @@ import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.*;
  */
 public class SnapshotFilesIterator implements FilesIterator {
   private static final Logger LOG = Logger.getLogger(SnapshotFilesIterator.class);
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /**
+   * Read binary snapshots mapped into memory
+   */
+  public static final String MAPPED_SNAPSHOT_PROPERTY = "teamcity.swabra.snapshot.mmap";
 
   @NotNull
   private final File mySnapshot;
-  private BufferedReader myReader;
+  private SnapshotReader myReader;
 
   private String myRootFolder;
   private String myCurrentDir;
+  /**
+   * Path of the skipped directory relative to the root folder with trailing separator
+   */
   private String mySkipDir = null;
+  private boolean myCurrentDirSkipped;
+  /**
+   * Position of the last read directory record in the snapshot
+   */
+  private int myDirIndex = -1;
+  private SnapshotSummaries mySummaries;
+  private boolean mySummariesRead;
 
   public SnapshotFilesIterator(@NotNull File snapshot) {
     mySnapshot = snapshot;
@@ -33,8 +51,8 @@ public class SnapshotFilesIterator implements FilesIterator {
   public FileInfo getNext() {
     try {
       if (myReader == null) {
-        myReader = new BufferedReader(new InputStreamReader(new FileInputStream(mySnapshot), "UTF-8"));
-        myRootFolder = myReader.readLine();
+        myReader = openReader(mySnapshot);
+        myRootFolder = myReader.getRootFolder();
         myCurrentDir = "";
       }
       return processNextRecord();
@@ -46,31 +64,74 @@ public class SnapshotFilesIterator implements FilesIterator {
   }
 
   public void skipDirectory(final FileInfo dirInfo) {
-    mySkipDir = dirInfo.getPath() + File.separator;
+    // FileInfo paths are unified, while snapshot may contain paths with another separator
+    final char separator = myCurrentDir.isEmpty() ? File.separatorChar : myCurrentDir.charAt(myCurrentDir.length() - 1);
+    final String skipDir = SwabraUtil.unifyPath(dirInfo.getPath(), separator) + separator;
+    mySkipDir = skipDir.startsWith(myRootFolder) ? skipDir.substring(myRootFolder.length()) : skipDir;
+    myCurrentDirSkipped = !myCurrentDir.isEmpty() && myCurrentDir.startsWith(skipDir);
   }
 
-  private FileInfo processNextRecord() throws IOException {
-    String fileRecord;
-    while ((fileRecord = myReader.readLine()) != null) {
-      final String path = getFilePath(fileRecord);
-      final long length = getFileLength(fileRecord);
-      final long lastModified = getFileLastModified(fileRecord);
+  /**
+   * @return summary of the subtree of the last returned directory or null if the snapshot doesn't contain summaries
+   */
+  @Nullable
+  public SubtreeSummary getSubtreeSummary() {
+    if (!mySummariesRead) {
+      mySummariesRead = true;
+      try {
+        mySummaries = SnapshotSummaries.read(mySnapshot);
+      } catch (IOException e) {
+        LOG.warn("Failed to read directory summaries from snapshot " + mySnapshot.getName(), e);
+      }
+    }
+    return mySummaries == null || myCurrentDirSkipped ? null : mySummaries.get(myDirIndex);
+  }
 
-      final boolean isDirectory = path.endsWith("/") || path.endsWith("\\");
-      final boolean skipCurrentDir = !myCurrentDir.isEmpty() && mySkipDir != null && hasParentOf(myCurrentDir, mySkipDir);
-      if (isDirectory) {
-        final String newDir = myRootFolder + path;
-        if (skipCurrentDir && newDir.startsWith(mySkipDir)) {
-          continue;
+  @NotNull
+  static SnapshotReader openReader(@NotNull File snapshot) throws IOException {
+    final InputStream in = new BufferedInputStream(new FileInputStream(snapshot), BUFFER_SIZE);
+    try {
+      final byte[] head = new byte[BINARY_SNAPSHOT_MAGIC.length];
+      in.mark(head.length);
+      int read = 0;
+      while (read < head.length) {
+        final int count = in.read(head, read, head.length - read);
+        if (count < 0) break;
+        read += count;
+      }
+      in.reset();
+      if (!isBinarySnapshot(head, read)) {
+        return new TextSnapshotReader(in);
+      }
+      if (TeamCityProperties.getBooleanOrTrue(MAPPED_SNAPSHOT_PROPERTY) && MappedBinarySnapshotReader.canMap(snapshot)) {
+        in.close();
+        return new MappedBinarySnapshotReader(snapshot);
+      }
+      return new StreamBinarySnapshotReader(in);
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+  }
+
+  private FileInfo processNextRecord() throws IOException {
+    while (myReader.next()) {
+      if (myReader.isDirectory()) {
+        ++myDirIndex;
+        if (mySkipDir != null) {
+          if (myReader.pathStartsWith(mySkipDir)) {
+            continue;
+          }
+          mySkipDir = null;
+          myCurrentDirSkipped = false;
         }
-        mySkipDir = null;
-        myCurrentDir = newDir;
-        return new FileInfo(myCurrentDir.substring(0, myCurrentDir.length() - 1), length, lastModified, false);
+        myCurrentDir = myReader.getFullPath(myRootFolder);
+        return new FileInfo(myCurrentDir.substring(0, myCurrentDir.length() - 1), myReader.getLength(), myReader.getLastModified(), false);
       } else {
-        if (skipCurrentDir) {
+        if (myCurrentDirSkipped) {
           continue;
         }
-        return new FileInfo(myCurrentDir + path, length, lastModified, true);
+        return new FileInfo(myReader.getFullPath(myCurrentDir), myReader.getLength(), myReader.getLastModified(), true);
       }
     }
     myReader.close();
@@ -88,18 +149,7 @@ public class SnapshotFilesIterator implements FilesIterator {
     }
   }
 
-  private static boolean hasParentOf(String dirPath, String parentDir){
-    File dir = new File(dirPath.replace("/", File.separator).replace("\\", File.separator));
-    File parent = new File(parentDir.replace("/", File.separator).replace("\\", File.separator));
-    while (dir != null){
-      if (dir.getPath().equalsIgnoreCase(parent.getPath()))
-        return true;
-      dir = dir.getParentFile();
-    }
-    return false;
-  }
-
   public boolean isCurrent() {
     return false;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,50 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.Closeable;
+import java.io.IOException;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads snapshot records one by one, the current record is available
+ * through the getters after next() returned true
+ */
+interface SnapshotReader extends Closeable {
+  /**
+   * @return snapshot root folder (parent of the snapshotted directory) with trailing separator
+   */
+  @NotNull
+  String getRootFolder();
+
+  /**
+   * @return time when the snapshot generation was started or 0 if unknown
+   */
+  long getTimestamp();
+
+  /**
+   * @return false if there are no more records
+   */
+  boolean next() throws IOException;
+
+  boolean isDirectory();
+
+  /**
+   * @return directory path relative to the root folder with trailing separator or file name
+   */
+  @NotNull
+  String getPath();
+
+  /**
+   * Same as getPath().startsWith(prefix), but may avoid creating the path string
+   */
+  boolean pathStartsWith(@NotNull String prefix);
+
+  /**
+   * Same as prefix + getPath(), but may avoid creating intermediate strings
+   */
+  @NotNull
+  String getFullPath(@NotNull String prefix);
+
+  long getLength();
+
+  long getLastModified();
+}
@@ -0,0 +1,102 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.*;
+
+/**
+ * Directory summaries stored at the end of binary snapshots, see BinarySnapshotWriter.
+ * Summaries are indexed by the directory record position in the snapshot.
+ */
+class SnapshotSummaries {
+  @NotNull
+  private final long[] myDigests;
+  @NotNull
+  private final int[] myEntriesCounts;
+
+  private SnapshotSummaries(@NotNull long[] digests, @NotNull int[] entriesCounts) {
+    myDigests = digests;
+    myEntriesCounts = entriesCounts;
+  }
+
+  int size() {
+    return myDigests.length;
+  }
+
+  @Nullable
+  SubtreeSummary get(int index) {
+    return index < 0 || index >= myDigests.length ? null : new SubtreeSummary(myDigests[index], myEntriesCounts[index]);
+  }
+
+  /**
+   * @return null if the snapshot doesn't contain summaries
+   */
+  @Nullable
+  static SnapshotSummaries read(@NotNull File snapshot) throws IOException {
+    final RandomAccessFile file = new RandomAccessFile(snapshot, "r");
+    try {
+      final byte[] head = new byte[BINARY_SNAPSHOT_MAGIC.length + 1];
+      if (file.length() < head.length + 8) {
+        return null;
+      }
+      file.readFully(head);
+      if (!isBinarySnapshot(head, head.length) || head[BINARY_SNAPSHOT_MAGIC.length] < BINARY_SNAPSHOT_SUMMARIES_VERSION) {
+        return null;
+      }
+      final long end = file.length() - 8;
+      file.seek(end);
+      final long offset = file.readLong();
+      if (offset == 0) {
+        return null;
+      }
+      if (offset < head.length || offset > end) {
+        throw new IOException("Corrupted snapshot: invalid summaries offset " + offset);
+      }
+      final byte[] data = new byte[(int)(end - offset)];
+      file.seek(offset);
+      file.readFully(data);
+      return parse(data);
+    } finally {
+      file.close();
+    }
+  }
+
+  @NotNull
+  private static SnapshotSummaries parse(@NotNull byte[] data) throws IOException {
+    long[] digests = new long[Math.max(16, data.length / 9)];
+    int[] entriesCounts = new int[digests.length];
+    int count = 0;
+    int pos = 0;
+    while (pos < data.length) {
+      if (pos + 9 > data.length) {
+        throw new IOException("Corrupted snapshot: truncated summaries");
+      }
+      long digest = 0;
+      for (int i = 0; i < 8; ++i) {
+        digest = (digest << 8) | (data[pos++] & 0xFF);
+      }
+      long entries = 0;
+      for (int shift = 0; ; shift += 7) {
+        if (pos >= data.length || shift > 28) {
+          throw new IOException("Corrupted snapshot: malformed summary");
+        }
+        final int b = data[pos++];
+        entries |= (long)(b & 0x7F) << shift;
+        if ((b & 0x80) == 0) break;
+      }
+      if (count == digests.length) {
+        digests = Arrays.copyOf(digests, count * 2);
+        entriesCounts = Arrays.copyOf(entriesCounts, count * 2);
+      }
+      digests[count] = digest;
+      entriesCounts[count] = (int)entries;
+      ++count;
+    }
+    return new SnapshotSummaries(Arrays.copyOf(digests, count), Arrays.copyOf(entriesCounts, count));
+  }
+}
@@ -0,0 +1,33 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.IOException;
+import java.io.InputStream;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Reads binary snapshots from a stream
+ */
+class StreamBinarySnapshotReader extends BinarySnapshotReader {
+  @NotNull
+  private final InputStream myIn;
+
+  StreamBinarySnapshotReader(@NotNull InputStream in) throws IOException {
+    myIn = in;
+    readHeader();
+  }
+
+  @Override
+  protected int read() throws IOException {
+    return myIn.read();
+  }
+
+  @Override
+  protected int read(@NotNull byte[] buffer, int offset, int length) throws IOException {
+    return myIn.read(buffer, offset, length);
+  }
+
+  @Override
+  protected void doClose() throws IOException {
+    myIn.close();
+  }
+}
@@ -0,0 +1,46 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+/**
+ * Summary of a directory subtree: digest over names, lengths and last modified times of all
+ * the entries in the subtree and the number of the entries (excluding the directory itself).
+ *
+ * Equal summaries mean the subtree produces the same entries for the comparison, see SubtreeSummaryBuilder.
+ */
+public final class SubtreeSummary {
+  private final long myDigest;
+  private final int myEntriesCount;
+
+  public SubtreeSummary(long digest, int entriesCount) {
+    myDigest = digest;
+    myEntriesCount = entriesCount;
+  }
+
+  public long getDigest() {
+    return myDigest;
+  }
+
+  public int getEntriesCount() {
+    return myEntriesCount;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null || getClass() != o.getClass()) return false;
+    final SubtreeSummary that = (SubtreeSummary)o;
+    return myDigest == that.myDigest && myEntriesCount == that.myEntriesCount;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (int)(myDigest ^ (myDigest >>> 32)) + myEntriesCount;
+  }
+
+  @Override
+  public String toString() {
+    return "SubtreeSummary{" +
+           "myDigest=" + Long.toHexString(myDigest) +
+           ", myEntriesCount=" + myEntriesCount +
+           '}';
+  }
+}
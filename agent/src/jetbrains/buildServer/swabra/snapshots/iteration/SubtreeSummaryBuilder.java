@@ -0,0 +1,135 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Computes Merkle-style summaries of all the directories of a files sequence in the iteration order.
+ *
+ * Directory digest is computed over the names, lengths and last modified times of its files and the names
+ * and digests of its subdirectories, so a change anywhere in the subtree changes the digests of all the
+ * directories up to the root. Directory own length and last modified time aren't used, as they aren't
+ * compared by FilesTraversal either.
+ *
+ * Files belong to the last added directory, the same way as in the snapshots. Summaries are indexed
+ * by the directory position in the sequence.
+ */
+public class SubtreeSummaryBuilder {
+  private static final long FILE_MARKER = 0x46L;
+  private static final long DIRECTORY_MARKER = 0x44L;
+
+  private final List<Node> myStack = new ArrayList<Node>();
+  private long[] myDigests = new long[256];
+  private int[] myEntriesCounts = new int[256];
+  private int myDirectoriesCount;
+
+  public void add(@NotNull FileInfo info) {
+    if (info.isFile()) {
+      if (myStack.isEmpty()) {
+        return;
+      }
+      final Node dir = myStack.get(myStack.size() - 1);
+      dir.add(entryHash(FILE_MARKER, getName(info.getPath(), dir.myPath), info.getLength(), info.getLastModified()), 1);
+      return;
+    }
+    final String path = info.getPath() + File.separatorChar;
+    while (!myStack.isEmpty() && !path.startsWith(myStack.get(myStack.size() - 1).myPath)) {
+      closeDirectory();
+    }
+    ensureCapacity(myDirectoriesCount + 1);
+    myStack.add(new Node(path, myDirectoriesCount++));
+  }
+
+  /**
+   * Must be called after all the files are added
+   */
+  public void finish() {
+    while (!myStack.isEmpty()) {
+      closeDirectory();
+    }
+  }
+
+  public int getDirectoriesCount() {
+    return myDirectoriesCount;
+  }
+
+  /**
+   * @param index directory position among the added directories
+   */
+  @NotNull
+  public SubtreeSummary getSummary(int index) {
+    return new SubtreeSummary(myDigests[index], myEntriesCounts[index]);
+  }
+
+  private void closeDirectory() {
+    final Node dir = myStack.remove(myStack.size() - 1);
+    final long digest = mix(dir.myHash);
+    myDigests[dir.myIndex] = digest;
+    myEntriesCounts[dir.myIndex] = dir.myEntries;
+    if (!myStack.isEmpty()) {
+      final Node parent = myStack.get(myStack.size() - 1);
+      final String name = getName(dir.myPath.substring(0, dir.myPath.length() - 1), parent.myPath);
+      parent.add(entryHash(DIRECTORY_MARKER, name, digest, 0), dir.myEntries + 1);
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity > myDigests.length) {
+      final int newLength = Math.max(capacity, myDigests.length * 2);
+      myDigests = Arrays.copyOf(myDigests, newLength);
+      myEntriesCounts = Arrays.copyOf(myEntriesCounts, newLength);
+    }
+  }
+
+  @NotNull
+  private static String getName(@NotNull String path, @NotNull String parentPath) {
+    // parent path ends with the separator, nested paths may use another separator in the snapshots
+    final String name = path.startsWith(parentPath) ? path.substring(parentPath.length()) : path.substring(path.lastIndexOf(File.separatorChar) + 1);
+    return name.replace('\\', '/');
+  }
+
+  private static long entryHash(long marker, @NotNull String name, long length, long lastModified) {
+    // FNV-1a over the name chars
+    long hash = 0xcbf29ce484222325L ^ marker;
+    for (int i = 0; i < name.length(); ++i) {
+      hash ^= name.charAt(i);
+      hash *= 0x100000001b3L;
+    }
+    hash = mix(hash ^ length);
+    return mix(hash ^ lastModified);
+  }
+
+  /**
+   * MurmurHash3 64-bit finalizer
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private static final class Node {
+    @NotNull
+    private final String myPath;
+    private final int myIndex;
+    private long myHash = 0x9E3779B97F4A7C15L;
+    private int myEntries;
+
+    private Node(@NotNull String path, int index) {
+      myPath = path;
+      myIndex = index;
+    }
+
+    private void add(long entryHash, int entries) {
+      // order dependent combination, entries come in the iteration order
+      myHash = mix(myHash * 31 + entryHash);
+      myEntries += entries;
+    }
+  }
+}
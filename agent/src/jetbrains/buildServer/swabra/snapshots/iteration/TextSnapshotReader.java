@@ -0,0 +1,78 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.swabra.snapshots.SnapshotUtil.*;
+
+/**
+ * Reads snapshots in the legacy tab separated text format
+ */
+class TextSnapshotReader implements SnapshotReader {
+  @NotNull
+  private final BufferedReader myReader;
+  @NotNull
+  private final String myRootFolder;
+
+  private String myPath;
+  private long myLength;
+  private long myLastModified;
+
+  TextSnapshotReader(@NotNull InputStream in) throws IOException {
+    myReader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    final String rootFolder = myReader.readLine();
+    myRootFolder = rootFolder == null ? "" : rootFolder;
+  }
+
+  @NotNull
+  public String getRootFolder() {
+    return myRootFolder;
+  }
+
+  public long getTimestamp() {
+    // text snapshots don't store it
+    return 0;
+  }
+
+  public boolean next() throws IOException {
+    final String fileRecord = myReader.readLine();
+    if (fileRecord == null) {
+      return false;
+    }
+    myPath = getFilePath(fileRecord);
+    myLength = getFileLength(fileRecord);
+    myLastModified = getFileLastModified(fileRecord);
+    return true;
+  }
+
+  public boolean isDirectory() {
+    return myPath.endsWith("/") || myPath.endsWith("\\");
+  }
+
+  @NotNull
+  public String getPath() {
+    return myPath;
+  }
+
+  public boolean pathStartsWith(@NotNull String prefix) {
+    return myPath.startsWith(prefix);
+  }
+
+  @NotNull
+  public String getFullPath(@NotNull String prefix) {
+    return prefix + myPath;
+  }
+
+  public long getLength() {
+    return myLength;
+  }
+
+  public long getLastModified() {
+    return myLastModified;
+  }
+
+  public void close() throws IOException {
+    myReader.close();
+  }
+}
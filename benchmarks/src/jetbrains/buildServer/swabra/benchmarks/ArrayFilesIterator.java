@@ -0,0 +1,60 @@
+package jetbrains.buildServer.swabra.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * In-memory iterator over entries already sorted in the FilesIterator order
+ */
+public class ArrayFilesIterator implements FilesIterator {
+  @NotNull
+  private final FileInfo[] myEntries;
+  private final boolean myCurrent;
+  private int myPosition;
+
+  public ArrayFilesIterator(@NotNull FileInfo[] entries, boolean current) {
+    myEntries = entries;
+    myCurrent = current;
+  }
+
+  /**
+   * Reads all the entries of the iterator
+   */
+  @NotNull
+  public static FileInfo[] readAll(@NotNull FilesIterator iterator) throws Exception {
+    final List<FileInfo> entries = new ArrayList<FileInfo>();
+    try {
+      FileInfo info;
+      while ((info = iterator.getNext()) != null) {
+        entries.add(info);
+      }
+    } finally {
+      iterator.stopIterator();
+    }
+    return entries.toArray(new FileInfo[entries.size()]);
+  }
+
+  @Nullable
+  public FileInfo getNext() {
+    return myPosition < myEntries.length ? myEntries[myPosition++] : null;
+  }
+
+  public void skipDirectory(FileInfo dirInfo) {
+    final String prefix = dirInfo.getPath() + File.separator;
+    while (myPosition < myEntries.length && myEntries[myPosition].getPath().startsWith(prefix)) {
+      ++myPosition;
+    }
+  }
+
+  public void stopIterator() {
+  }
+
+  public boolean isCurrent() {
+    return myCurrent;
+  }
+}
@@ -0,0 +1,86 @@
+package jetbrains.buildServer.swabra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.util.FileUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Generated directory trees and entries lists used by the benchmarks
+ */
+public final class BenchmarkTrees {
+  private static final long TIMESTAMP = 1500000000000L;
+
+  private BenchmarkTrees() {
+  }
+
+  /**
+   * Creates a tree where each directory down to the given depth has the given number of subdirectories and files
+   * @return number of created files and directories
+   */
+  public static int createTree(@NotNull File root, int depth, int dirsPerDir, int filesPerDir) throws IOException {
+    if (!root.isDirectory() && !root.mkdirs()) {
+      throw new IOException("Failed to create " + root);
+    }
+    int count = 0;
+    for (int i = 0; i < filesPerDir; ++i) {
+      final File file = new File(root, "file" + i + ".txt");
+      FileUtil.writeFileAndReportErrors(file, "content of " + i);
+      ++count;
+    }
+    if (depth > 1) {
+      for (int i = 0; i < dirsPerDir; ++i) {
+        count += 1 + createTree(new File(root, "dir" + i), depth - 1, dirsPerDir, filesPerDir);
+      }
+    }
+    return count;
+  }
+
+  @NotNull
+  public static File createTempDir(@NotNull String prefix) throws IOException {
+    final File dir = FileUtil.createTempDirectory(prefix, "");
+    dir.deleteOnExit();
+    return dir;
+  }
+
+  public static void delete(@NotNull File dir) {
+    FileUtil.delete(dir);
+  }
+
+  /**
+   * @return entries of a virtual tree in the FilesIterator order: directory, its files, its subdirectories
+   */
+  @NotNull
+  public static List<FileInfo> createEntries(@NotNull String root, int depth, int dirsPerDir, int filesPerDir) {
+    final List<FileInfo> entries = new ArrayList<FileInfo>();
+    addEntries(entries, root, depth, dirsPerDir, filesPerDir);
+    return entries;
+  }
+
+  private static void addEntries(@NotNull List<FileInfo> entries, @NotNull String dir, int depth, int dirsPerDir, int filesPerDir) {
+    entries.add(new FileInfo(dir, 0, TIMESTAMP, false));
+    // names of the same directory entries are sorted the same way FilesComparator does it
+    final List<String> files = new ArrayList<String>(filesPerDir);
+    for (int i = 0; i < filesPerDir; ++i) {
+      files.add("file" + i + ".txt");
+    }
+    Collections.sort(files);
+    for (String file : files) {
+      entries.add(new FileInfo(dir + File.separator + file, file.length(), TIMESTAMP + file.hashCode(), true));
+    }
+    if (depth > 1) {
+      final List<String> dirs = new ArrayList<String>(dirsPerDir);
+      for (int i = 0; i < dirsPerDir; ++i) {
+        dirs.add(dir + File.separator + "dir" + i);
+      }
+      Collections.sort(dirs);
+      for (String subdir : dirs) {
+        addEntries(entries, subdir, depth - 1, dirsPerDir, filesPerDir);
+      }
+    }
+  }
+}
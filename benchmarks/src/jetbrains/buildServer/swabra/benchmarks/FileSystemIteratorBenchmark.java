@@ -0,0 +1,67 @@
+package jetbrains.buildServer.swabra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileSystemFilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.ParallelFileSystemFilesIterator;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Listing a generated tree with the file system iterators. The tree is in the OS file cache after the warmup,
+ * so the numbers show the listing overhead rather than the disk speed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileSystemIteratorBenchmark {
+  @Param({"sequential", "parallel"})
+  public String iterator;
+
+  @Param({"none", "excludes"})
+  public String rules;
+
+  private File myTempDir;
+  private File myRoot;
+  private SwabraRules myRules;
+
+  @Setup
+  public void setUp() throws IOException {
+    myTempDir = BenchmarkTrees.createTempDir("fileSystemIterator");
+    myRoot = new File(myTempDir, "checkout");
+    BenchmarkTrees.createTree(myRoot, 5, 6, 10);
+    myRules = new SwabraRules(myRoot, "excludes".equals(rules)
+                                      ? Arrays.asList("-:dir0", "-:**/dir1/*.txt", "+:dir0/dir2")
+                                      : Collections.<String>emptyList());
+  }
+
+  @TearDown
+  public void tearDown() {
+    BenchmarkTrees.delete(myTempDir);
+  }
+
+  @Benchmark
+  public long iterate() throws Exception {
+    final FilesIterator it = "parallel".equals(iterator)
+                             ? new ParallelFileSystemFilesIterator(myRoot, myRules, Runtime.getRuntime().availableProcessors())
+                             : new FileSystemFilesIterator(myRoot, myRules);
+    long result = 0;
+    try {
+      FileInfo info;
+      while ((info = it.getNext()) != null) {
+        result += info.getLength();
+      }
+    } finally {
+      it.stopIterator();
+    }
+    return result;
+  }
+}
@@ -0,0 +1,156 @@
+package jetbrains.buildServer.swabra.benchmarks;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * In-memory iterator over a virtual tree generated lazily in the FilesIterator order, so trees of millions
+ * of entries don't occupy memory.
+ *
+ * Each directory down to the given depth has the given number of subdirectories and files. The current state iterator
+ * changes files with the given probability: a changed file is deleted, modified or followed by an added one
+ * with equal probabilities. Decisions depend only on the file path and the seed, so the same files are changed
+ * regardless of the skipped directories.
+ */
+public class GeneratedFilesIterator implements FilesIterator {
+  private static final long TIMESTAMP = 1500000000000L;
+
+  @NotNull
+  private final String myRoot;
+  private final int myDepth;
+  @NotNull
+  private final String[] myDirNames;
+  @NotNull
+  private final String[] myFileNames;
+  private final boolean myCurrent;
+  private final double myChangeRatio;
+  private final long mySeed;
+
+  private Deque<Frame> myFrames;
+  @Nullable
+  private FileInfo myAdded;
+
+  /**
+   * @param current     whether the iterator represents the current state, only current state entries are changed
+   * @param changeRatio probability of a file change in the current state
+   */
+  public GeneratedFilesIterator(@NotNull String root, int depth, int dirsPerDir, int filesPerDir, boolean current, double changeRatio, long seed) {
+    myRoot = root;
+    myDepth = depth;
+    myDirNames = names("dir", "", dirsPerDir);
+    myFileNames = names("file", ".dat", filesPerDir);
+    myCurrent = current;
+    myChangeRatio = current ? changeRatio : 0;
+    mySeed = seed;
+  }
+
+  /**
+   * @return number of entries in the tree without changes
+   */
+  public static long getEntriesCount(int depth, int dirsPerDir, int filesPerDir) {
+    long dirs = 0;
+    long level = 1;
+    for (int i = 0; i < depth; ++i) {
+      dirs += level;
+      level *= dirsPerDir;
+    }
+    return dirs * (1 + filesPerDir);
+  }
+
+  @NotNull
+  private static String[] names(@NotNull String prefix, @NotNull String suffix, int count) {
+    final String[] names = new String[count];
+    for (int i = 0; i < count; ++i) {
+      names[i] = prefix + i + suffix;
+    }
+    // names of the same directory entries are sorted the same way FilesComparator does it
+    Arrays.sort(names);
+    return names;
+  }
+
+  @Nullable
+  public FileInfo getNext() {
+    if (myAdded != null) {
+      final FileInfo added = myAdded;
+      myAdded = null;
+      return added;
+    }
+    if (myFrames == null) {
+      myFrames = new ArrayDeque<Frame>();
+      myFrames.push(new Frame(myRoot, myDepth));
+      return new FileInfo(myRoot, 0, TIMESTAMP, false);
+    }
+    while (!myFrames.isEmpty()) {
+      final Frame frame = myFrames.peek();
+      if (frame.myNextFile < myFileNames.length) {
+        final String path = frame.myPath + File.separator + myFileNames[frame.myNextFile++];
+        final long length = path.length();
+        if (myChangeRatio <= 0) {
+          return new FileInfo(path, length, TIMESTAMP, true);
+        }
+        final double change = random(path) / myChangeRatio;
+        if (change >= 1) {
+          return new FileInfo(path, length, TIMESTAMP, true);
+        }
+        if (change < 1.0 / 3) {
+          // deleted
+          continue;
+        }
+        if (change < 2.0 / 3) {
+          return new FileInfo(path, length + 1, TIMESTAMP + 1, true);
+        }
+        myAdded = new FileInfo(path + ".new", 1, TIMESTAMP + 1, true);
+        return new FileInfo(path, length, TIMESTAMP, true);
+      }
+      if (frame.myDepth > 1 && frame.myNextDir < myDirNames.length) {
+        final String path = frame.myPath + File.separator + myDirNames[frame.myNextDir++];
+        myFrames.push(new Frame(path, frame.myDepth - 1));
+        return new FileInfo(path, 0, TIMESTAMP, false);
+      }
+      myFrames.pop();
+    }
+    return null;
+  }
+
+  /**
+   * @return pseudo-random number in [0, 1) depending on the path and the seed
+   */
+  private double random(@NotNull String path) {
+    long h = path.hashCode() * 0x9E3779B97F4A7C15L + mySeed;
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (h >>> 11) / (double)(1L << 53);
+  }
+
+  public void skipDirectory(FileInfo dirInfo) {
+    // directory is skipped right after it is returned, so its frame is on the top
+    myFrames.pop();
+  }
+
+  public void stopIterator() {
+  }
+
+  public boolean isCurrent() {
+    return myCurrent;
+  }
+
+  private static final class Frame {
+    @NotNull
+    private final String myPath;
+    private final int myDepth;
+    private int myNextFile;
+    private int myNextDir;
+
+    private Frame(@NotNull String path, int depth) {
+      myPath = path;
+      myDepth = depth;
+    }
+  }
+}
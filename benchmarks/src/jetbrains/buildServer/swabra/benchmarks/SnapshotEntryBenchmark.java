@@ -0,0 +1,51 @@
+package jetbrains.buildServer.swabra.benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.swabra.snapshots.SnapshotUtil;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Text snapshot entries encoding and decoding with SnapshotUtil
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotEntryBenchmark {
+  private static final String PARENT = File.separator + "home" + File.separator + "agent" + File.separator + "work";
+
+  private FileInfo[] myEntries;
+  private String[] myEncoded;
+
+  @Setup
+  public void setUp() {
+    final List<FileInfo> entries = BenchmarkTrees.createEntries(PARENT + File.separator + "checkout", 4, 8, 16);
+    myEntries = entries.toArray(new FileInfo[entries.size()]);
+    myEncoded = new String[myEntries.length];
+    for (int i = 0; i < myEntries.length; ++i) {
+      myEncoded[i] = SnapshotUtil.getSnapshotEntry(myEntries[i], PARENT);
+    }
+  }
+
+  @Benchmark
+  public void encode(Blackhole blackhole) {
+    for (FileInfo entry : myEntries) {
+      blackhole.consume(SnapshotUtil.getSnapshotEntry(entry, PARENT));
+    }
+  }
+
+  @Benchmark
+  public void decode(Blackhole blackhole) {
+    for (String entry : myEncoded) {
+      blackhole.consume(SnapshotUtil.getFilePath(entry));
+      blackhole.consume(SnapshotUtil.getFileLength(entry));
+      blackhole.consume(SnapshotUtil.getFileLastModified(entry));
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package jetbrains.buildServer.swabra.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.SnapshotGenerator;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.SnapshotFilesIterator;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Reading a snapshot of a generated tree with SnapshotFilesIterator in different formats
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotIteratorBenchmark {
+  @Param({"text", "binary", "binary-mmap"})
+  public String format;
+
+  @Param({"5"})
+  public int depth;
+
+  private File myTempDir;
+  private File mySnapshot;
+
+  @Setup
+  public void setUp() throws IOException {
+    myTempDir = BenchmarkTrees.createTempDir("snapshotIterator");
+    final File root = new File(myTempDir, "checkout");
+    BenchmarkTrees.createTree(root, depth, 6, 10);
+    mySnapshot = new File(myTempDir, "checkout.snapshot");
+    System.setProperty(SnapshotGenerator.TEXT_SNAPSHOT_PROPERTY, String.valueOf("text".equals(format)));
+    System.setProperty(SnapshotFilesIterator.MAPPED_SNAPSHOT_PROPERTY, String.valueOf("binary-mmap".equals(format)));
+    final SwabraRules rules = new SwabraRules(root, Collections.<String>emptyList());
+    if (!new SnapshotGenerator(root, new SwabraLogger(), rules).generateSnapshot(mySnapshot)) {
+      throw new IOException("Failed to generate snapshot " + mySnapshot);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.clearProperty(SnapshotGenerator.TEXT_SNAPSHOT_PROPERTY);
+    System.clearProperty(SnapshotFilesIterator.MAPPED_SNAPSHOT_PROPERTY);
+    BenchmarkTrees.delete(myTempDir);
+  }
+
+  @Benchmark
+  public long iterate() {
+    final SnapshotFilesIterator iterator = new SnapshotFilesIterator(mySnapshot);
+    long result = 0;
+    try {
+      FileInfo info;
+      while ((info = iterator.getNext()) != null) {
+        result += info.getLength();
+      }
+    } finally {
+      iterator.stopIterator();
+    }
+    return result;
+  }
+}
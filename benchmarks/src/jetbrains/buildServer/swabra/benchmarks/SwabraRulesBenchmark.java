@@ -0,0 +1,104 @@
+package jetbrains.buildServer.swabra.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * SwabraRules queries with a realistic rule set, optionally extended with many generated literal rules
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SwabraRulesBenchmark {
+  private static final String[] RULES = {
+    "-:**/node_modules", "-:**/.gradle", "-:**/target/classes", "+:build/reports", "-:build", "-:*.log", "-:**/tmp/**",
+    "-:.idea", "+:out/artifacts", "-:out"
+  };
+  private static final String[] SEGMENTS = {
+    "src", "main", "java", "build", "reports", "target", "classes", "node_modules", "lib", "out", "artifacts", "tmp", "module1",
+    "module2", "test", "resources"
+  };
+
+  @Param({"0", "500"})
+  public int generatedRules;
+
+  @Param({"true", "false"})
+  public String cache;
+
+  private File myRoot;
+  private SwabraRules myRules;
+  private String[] myPaths;
+  private File[] myDirs;
+
+  @Setup
+  public void setUp() {
+    System.setProperty(SwabraRules.RULES_CACHE_PROPERTY, cache);
+    myRoot = new File(File.separator + "work" + File.separator + "checkout");
+    final List<String> body = new ArrayList<String>();
+    for (String rule : RULES) {
+      body.add(rule);
+    }
+    for (int i = 0; i < generatedRules; ++i) {
+      body.add((i % 3 == 0 ? "+:" : "-:") + "generated" + i / 10 + "/rule" + i);
+    }
+    myRules = new SwabraRules(myRoot, body);
+
+    final Random random = new Random(239);
+    myPaths = new String[4096];
+    for (int i = 0; i < myPaths.length; ++i) {
+      // neighbour paths share the parent directory, the way iterators query them
+      final String dir = i % 16 == 0 ? randomDir(random) : new File(myPaths[i - 1]).getParent();
+      myPaths[i] = dir + File.separator + "File" + i + (i % 5 == 0 ? ".log" : ".java");
+    }
+    myDirs = new File[64];
+    for (int i = 0; i < myDirs.length; ++i) {
+      // monitored roots, directories with generated rules under them and plain ones
+      myDirs[i] = i % 4 == 0 ? myRoot : i % 4 == 1 ? new File(myRoot, "generated" + i) : new File(randomDir(random));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.clearProperty(SwabraRules.RULES_CACHE_PROPERTY);
+  }
+
+  private String randomDir(Random random) {
+    final StringBuilder dir = new StringBuilder(myRoot.getPath());
+    final int depth = 1 + random.nextInt(6);
+    for (int i = 0; i < depth; ++i) {
+      dir.append(File.separator).append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+    }
+    return dir.toString();
+  }
+
+  @Benchmark
+  public int shouldInclude() {
+    int result = 0;
+    for (String path : myPaths) {
+      if (myRules.shouldInclude(path)) {
+        ++result;
+      }
+    }
+    return result;
+  }
+
+  @Benchmark
+  public int getRulesForPath() {
+    int result = 0;
+    for (File dir : myDirs) {
+      result += myRules.getRulesForPath(dir).size();
+      if (myRules.requiresListingForDir(dir)) {
+        ++result;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,105 @@
+package jetbrains.buildServer.swabra.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesTraversal;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * FilesTraversal.traverseCompare on in-memory iterators without any I/O.
+ *
+ * "array" iterators are read from the pre-built arrays, so the numbers show the comparison and the processor overhead only,
+ * "generated" ones build the entries lazily and also include FileInfo creation, as the real iterators do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TraverseCompareBenchmark {
+  private static final String ROOT = File.separator + "work" + File.separator + "checkout";
+  private static final int DEPTH = 4;
+  private static final int DIRS_PER_DIR = 10;
+  private static final long SEED = 239;
+
+  @Param({"array", "generated"})
+  public String iterators;
+
+  /**
+   * Files per directory of 1111 directories, 100 gives about 110 thousand entries, 1000 - 1.1 million
+   */
+  @Param({"100", "1000"})
+  public int filesPerDir;
+
+  @Param({"0", "0.001", "0.1"})
+  public double changeRatio;
+
+  private FileInfo[] mySnapshot;
+  private FileInfo[] myCurrent;
+
+  @Setup
+  public void setUp() throws Exception {
+    if ("array".equals(iterators)) {
+      mySnapshot = ArrayFilesIterator.readAll(createIterator(false));
+      myCurrent = ArrayFilesIterator.readAll(createIterator(true));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    mySnapshot = null;
+    myCurrent = null;
+  }
+
+  private FilesIterator createIterator(boolean current) {
+    return new GeneratedFilesIterator(ROOT, DEPTH, DIRS_PER_DIR, filesPerDir, current, changeRatio, SEED);
+  }
+
+  @Benchmark
+  public int traverseCompare() throws Exception {
+    final CountingProcessor processor = new CountingProcessor();
+    if (mySnapshot != null) {
+      new FilesTraversal().traverseCompare(new ArrayFilesIterator(mySnapshot, false), new ArrayFilesIterator(myCurrent, true), processor);
+    } else {
+      new FilesTraversal().traverseCompare(createIterator(false), createIterator(true), processor);
+    }
+    return processor.myCount;
+  }
+
+  private static final class CountingProcessor implements FilesTraversal.ComparisonProcessor {
+    private int myCount;
+
+    public void comparisonStarted() {
+    }
+
+    public void comparisonFinished() {
+    }
+
+    public boolean willProcess(FileInfo info) {
+      return true;
+    }
+
+    public void processModified(FileInfo info1, FileInfo info2) {
+      myCount += 2;
+    }
+
+    public void processDeleted(FileInfo info) {
+      myCount += 3;
+    }
+
+    public void processAdded(FileInfo info) {
+      myCount += 5;
+    }
+
+    public void processUnchanged(FileInfo info) {
+      ++myCount;
+    }
+
+    public void processUnchangedSubtree(FileInfo dir, int entriesCount) {
+      myCount += entriesCount;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.swabra.benchmarks.BenchmarkTrees;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * FilesComparator.compare on neighbour entries of a generated tree, the way traverseCompare calls it.
+ * Lives in the FilesComparator package as the comparator is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilesComparatorBenchmark {
+  @Param({"/home/agent/work/5f1b2c3d4e5f6a7b"})
+  public String root;
+
+  private FileInfo[] myEntries;
+
+  @Setup
+  public void setUp() {
+    final List<FileInfo> entries = BenchmarkTrees.createEntries(root.replace('/', File.separatorChar), 4, 8, 16);
+    myEntries = entries.toArray(new FileInfo[entries.size()]);
+  }
+
+  @Benchmark
+  public int compareNeighbours() {
+    int result = 0;
+    for (int i = 1; i < myEntries.length; ++i) {
+      result += FilesComparator.compare(myEntries[i - 1], myEntries[i]);
+    }
+    return result;
+  }
+
+  @Benchmark
+  public int compareEqual() {
+    int result = 0;
+    for (FileInfo entry : myEntries) {
+      result += FilesComparator.compare(entry, entry);
+    }
+    return result;
+  }
+}
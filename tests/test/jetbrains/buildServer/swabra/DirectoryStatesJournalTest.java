@@ -0,0 +1,172 @@
+package jetbrains.buildServer.swabra;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+public class DirectoryStatesJournalTest extends TestCase {
+  private File myTempDir;
+  private File myBaseFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempDir = FileUtil.createTempDirectory("journal", "");
+    myBaseFile = new File(myTempDir, "snapshot.map");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myTempDir);
+    super.tearDown();
+  }
+
+  public void test_replay() throws Exception {
+    final DirectoryStatesJournal journal = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    journal.appendPut("a=clean");
+    journal.appendPut("b=dirty");
+    journal.appendRemove("a");
+    journal.appendPut("b=clean");
+    assertEquals(4, journal.getRecordsCount());
+
+    final Map<String, String> states = new LinkedHashMap<String, String>();
+    final DirectoryStatesJournal reopened = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    assertTrue(reopened.replay(new MapReplayer(states)));
+    assertEquals(Collections.singletonMap("b", "clean"), states);
+    assertEquals(4, reopened.getRecordsCount());
+  }
+
+  public void test_append_after_close() throws Exception {
+    final DirectoryStatesJournal journal = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    journal.appendPut("a=clean");
+    journal.sync();
+    journal.appendPut("b=dirty");
+    journal.close();
+    journal.appendRemove("a");
+    journal.sync();
+
+    final Map<String, String> states = new LinkedHashMap<String, String>();
+    assertTrue(new DirectoryStatesJournal(myBaseFile, new SwabraLogger()).replay(new MapReplayer(states)));
+    assertEquals(Collections.singletonMap("b", "dirty"), states);
+    journal.close();
+  }
+
+  public void test_torn_record_is_ignored() throws Exception {
+    final DirectoryStatesJournal journal = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    journal.appendPut("a=clean");
+    journal.appendPut("b=clean");
+
+    final RandomAccessFile file = new RandomAccessFile(journal.getJournalFile(), "rw");
+    try {
+      file.setLength(file.length() - 3);
+    } finally {
+      file.close();
+    }
+
+    final Map<String, String> states = new LinkedHashMap<String, String>();
+    assertFalse(journal.replay(new MapReplayer(states)));
+    assertEquals(Collections.singletonMap("a", "clean"), states);
+  }
+
+  public void test_damaged_record_is_ignored() throws Exception {
+    final DirectoryStatesJournal journal = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    journal.appendPut("a=clean");
+    final FileOutputStream out = new FileOutputStream(journal.getJournalFile(), true);
+    try {
+      out.write("P 00000000 b=clean\n".getBytes("UTF-8"));
+    } finally {
+      out.close();
+    }
+    journal.appendPut("c=clean");
+
+    final Map<String, String> states = new LinkedHashMap<String, String>();
+    assertFalse(journal.replay(new MapReplayer(states)));
+    assertEquals(Collections.singletonMap("a", "clean"), states);
+  }
+
+  public void test_compact() throws Exception {
+    final DirectoryStatesJournal journal = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    journal.appendPut("a=clean");
+    assertTrue(journal.getJournalFile().isFile());
+
+    final long length = journal.compact(Arrays.asList("a=clean", "b=dirty"));
+    assertEquals(myBaseFile.length(), length);
+    assertEquals("a=clean\nb=dirty\n", FileUtil.readText(myBaseFile).replace("\r\n", "\n"));
+    assertFalse(journal.getJournalFile().exists());
+    assertEquals(0, journal.getRecordsCount());
+    assertFalse(new File(myTempDir, "snapshot.map.tmp").exists());
+
+    journal.appendRemove("a");
+    assertEquals(0, journal.compact(Collections.<String>emptyList()));
+    assertFalse(myBaseFile.exists());
+    assertFalse(journal.getJournalFile().exists());
+  }
+
+  public void test_recover_interrupted_compaction() throws Exception {
+    final DirectoryStatesJournal journal = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    journal.compact(Collections.singletonList("a=clean"));
+    journal.appendPut("b=dirty");
+    journal.close();
+    // crashed after the compacted file had been written, b was removed only in memory
+    FileUtil.writeFileAndReportErrors(new File(myTempDir, "snapshot.map.new"), "a=dirty\n");
+    FileUtil.writeFileAndReportErrors(new File(myTempDir, "snapshot.map.tmp"), "a=cl");
+
+    final DirectoryStatesJournal reopened = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    reopened.recover();
+    assertEquals("a=dirty\n", reopened.readBase());
+    assertFalse(reopened.getJournalFile().exists());
+    assertFalse(new File(myTempDir, "snapshot.map.new").exists());
+    assertFalse(new File(myTempDir, "snapshot.map.tmp").exists());
+
+    final Map<String, String> states = new LinkedHashMap<String, String>();
+    assertTrue(reopened.replay(new MapReplayer(states)));
+    assertTrue(states.isEmpty());
+  }
+
+  public void test_recover_interrupted_empty_compaction() throws Exception {
+    final DirectoryStatesJournal journal = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    journal.compact(Collections.singletonList("a=clean"));
+    journal.appendRemove("a");
+    journal.close();
+    FileUtil.writeFileAndReportErrors(new File(myTempDir, "snapshot.map.new"), "");
+
+    new DirectoryStatesJournal(myBaseFile, new SwabraLogger()).recover();
+    assertFalse(myBaseFile.exists());
+    assertFalse(journal.getJournalFile().exists());
+    assertFalse(new File(myTempDir, "snapshot.map.new").exists());
+  }
+
+  public void test_compact_non_ascii() throws Exception {
+    final DirectoryStatesJournal journal = new DirectoryStatesJournal(myBaseFile, new SwabraLogger());
+    final String record = "/work/\u0441\u0431\u043e\u0440\u043a\u0430/\u00e9t\u00e9=clean";
+    journal.compact(Collections.singletonList(record));
+
+    assertEquals(record + "\n", new String(Files.readAllBytes(myBaseFile.toPath()), "UTF-8").replace("\r\n", "\n"));
+    assertEquals(record + "\n", journal.readBase().replace("\r\n", "\n"));
+  }
+
+  private static final class MapReplayer implements DirectoryStatesJournal.Replayer {
+    private final Map<String, String> myStates;
+
+    private MapReplayer(@NotNull Map<String, String> states) {
+      myStates = states;
+    }
+
+    public void put(@NotNull String record) {
+      final String[] elements = record.split("=");
+      myStates.put(elements[0], elements[1]);
+    }
+
+    public void remove(@NotNull String key) {
+      myStates.remove(key);
+    }
+  }
+}
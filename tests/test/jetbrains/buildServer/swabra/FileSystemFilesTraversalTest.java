@@ -14,7 +14,9 @@ import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.swabra.snapshots.SwabraRules;
 import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
 import jetbrains.buildServer.swabra.snapshots.iteration.FileSystemFilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
 import jetbrains.buildServer.swabra.snapshots.iteration.FilesTraversal;
+import jetbrains.buildServer.swabra.snapshots.iteration.ParallelFileSystemFilesIterator;
 import jetbrains.buildServer.util.FileUtil;
 import jetbrains.buildServer.util.StringUtil;
 import jetbrains.buildServer.util.TestFor;
@@ -29,6 +31,10 @@ import static jetbrains.buildServer.swabra.TestUtil.getTestData;
  */
 public class FileSystemFilesTraversalTest extends TestCase {
   private void runTest(String resultsFileName, boolean fullListing, String... rulesString) throws Exception {
+    runTest(resultsFileName, false, fullListing, rulesString);
+  }
+
+  private void runTest(String resultsFileName, boolean parallel, boolean fullListing, String... rulesString) throws Exception {
     final FilesTraversal traversal = new FilesTraversal();
     final StringBuffer results = new StringBuffer();
 
@@ -39,12 +45,17 @@ public class FileSystemFilesTraversalTest extends TestCase {
       TestUtil.deleteSvnFiles(root);
 
       final SwabraRules rules = new SwabraRules(root, Arrays.asList(rulesString));
-      traversal.traverse(new FileSystemFilesIterator(root, rules),
-        new FilesTraversal.SimpleProcessor() {
-          public void process(FileInfo file) {
-            results.append(file.getPath()).append("\n");
-          }
-        });
+      final FilesIterator iterator = parallel ? new ParallelFileSystemFilesIterator(root, rules, 4) : new FileSystemFilesIterator(root, rules);
+      try {
+        traversal.traverse(iterator,
+          new FilesTraversal.SimpleProcessor() {
+            public void process(FileInfo file) {
+              results.append(file.getPath()).append("\n");
+            }
+          });
+      } finally {
+        iterator.stopIterator();
+      }
 
       final File goldFile = getTestData(resultsFileName + ".gold", null);
       final String resultsFile = goldFile.getAbsolutePath().replace(".gold", ".tmp");
@@ -72,6 +83,14 @@ public class FileSystemFilesTraversalTest extends TestCase {
 
   }
 
+  public void test_all_files_parallel() throws Exception {
+    runTest("fileSystemFilesTraversal", true, false);
+  }
+
+  public void test_filtered_parallel() throws Exception {
+    runTest("fileSystemFilesTraversal_filtered", true, true, "-:**/a*");
+  }
+
   public void test_many_dirs_excluded() throws Exception {
     final TempFiles tempFiles = new TempFiles();
     final File root = tempFiles.createTempDir();
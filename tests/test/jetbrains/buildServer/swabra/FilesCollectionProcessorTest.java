@@ -3,7 +3,11 @@
 package jetbrains.buildServer.swabra;
 
 import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import jetbrains.buildServer.TempFiles;
 import jetbrains.buildServer.swabra.snapshots.FilesCollectionProcessor;
 import jetbrains.buildServer.swabra.snapshots.iteration.FileChangeType;
 import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
@@ -93,6 +97,88 @@ public class FilesCollectionProcessorTest extends TestCase {
     );
   }
 
+  @Test
+  public void test_deletion_workers() throws Exception {
+    final TempFiles tempFiles = new TempFiles();
+    System.setProperty(FilesCollectionProcessor.DELETION_WORKERS_PROPERTY, "4");
+    System.setProperty(FilesCollectionProcessor.DELETION_QUEUE_SIZE_PROPERTY, "2");
+    try {
+      final File dir = tempFiles.createTempDir();
+      final FilesCollectionProcessor processor = new FilesCollectionProcessor(new SwabraLogger(), null, dir, false, false, new AtomicBoolean(false));
+
+      processor.comparisonStarted();
+      for (int i = 0; i < 100; ++i) {
+        final File newDir = new File(dir, "dir" + i);
+        assertTrue(new File(newDir, "subdir").mkdirs());
+        FileUtil.writeFileAndReportErrors(new File(newDir, "subdir/file"), "content");
+        final File newFile = new File(dir, "file" + i);
+        FileUtil.writeFileAndReportErrors(newFile, "content");
+
+        processor.processAdded(new FileInfo(newDir.getPath(), 0, 0, false));
+        processor.processAdded(new FileInfo(newFile.getPath(), 0, 0, true));
+        processor.processUnchanged(new FileInfo(new File(dir, "unchanged" + i).getPath(), 0, 0, true));
+      }
+      processor.comparisonFinished();
+
+      final FilesCollectionProcessor.Results results = processor.getResults();
+      assertEquals(200, results.detectedNewAndDeleted);
+      assertEquals(0, results.detectedNewAndUnableToDelete);
+      assertEquals(100, results.detectedUnchanged);
+      final String[] files = dir.list();
+      assertNotNull(files);
+      assertEquals(0, files.length);
+    } finally {
+      System.clearProperty(FilesCollectionProcessor.DELETION_WORKERS_PROPERTY);
+      System.clearProperty(FilesCollectionProcessor.DELETION_QUEUE_SIZE_PROPERTY);
+      tempFiles.cleanup();
+    }
+  }
+
+  @Test
+  public void test_pending_deletions_cancelled() throws Exception {
+    final TempFiles tempFiles = new TempFiles();
+    System.setProperty(FilesCollectionProcessor.DELETION_WORKERS_PROPERTY, "1");
+    try {
+      final File dir = tempFiles.createTempDir();
+      final CountDownLatch deletionStarted = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final AtomicInteger deletions = new AtomicInteger();
+      final FilesCollectionProcessor processor = new FilesCollectionProcessor(new SwabraLogger(), null, dir, false, false, new AtomicBoolean(false)) {
+        @Override
+        protected boolean resolveDelete(File f) {
+          deletions.incrementAndGet();
+          deletionStarted.countDown();
+          try {
+            release.await();
+          } catch (InterruptedException e) {
+            return false;
+          }
+          return super.resolveDelete(f);
+        }
+      };
+
+      processor.comparisonStarted();
+      for (int i = 0; i < 5; ++i) {
+        final File newFile = new File(dir, "file" + i);
+        FileUtil.writeFileAndReportErrors(newFile, "content");
+        processor.processAdded(new FileInfo(newFile.getPath(), 0, 0, true));
+      }
+      assertTrue(deletionStarted.await(10, TimeUnit.SECONDS));
+
+      // the traversal failed, comparisonFinished is not called
+      processor.cancelDeletions();
+      release.countDown();
+
+      assertEquals(1, deletions.get());
+      for (int i = 1; i < 5; ++i) {
+        assertTrue(new File(dir, "file" + i).exists());
+      }
+    } finally {
+      System.clearProperty(FilesCollectionProcessor.DELETION_WORKERS_PROPERTY);
+      tempFiles.cleanup();
+    }
+  }
+
   @Test
   public void test_interruption() throws Exception {
     FileChangeInfo[] changes = new FileChangeInfo[]{
@@ -63,6 +63,10 @@ public class FilesComparisonTest extends TestCase {
         public void processUnchanged(FileInfo info) {
           results.append("UNCHANGED: ").append(info.getPath()).append("\n");
         }
+
+        public void processUnchangedSubtree(FileInfo dir, int entriesCount) {
+          results.append("UNCHANGED SUBTREE: ").append(dir.getPath()).append("\n");
+        }
       });
 
     final File goldFile = getTestData(testData + ".gold", null);
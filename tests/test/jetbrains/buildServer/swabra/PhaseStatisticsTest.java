@@ -0,0 +1,70 @@
+package jetbrains.buildServer.swabra;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+public class PhaseStatisticsTest extends TestCase {
+  private static final Pattern KEY_PATTERN = Pattern.compile("key='?(swabra\\.[^',} ]+)");
+  private static final Pattern VALUE_PATTERN = Pattern.compile("value='?(\\d+)");
+
+  public void test_directory_id() throws Exception {
+    final File checkoutDir = new File("work", "checkout").getAbsoluteFile();
+
+    assertEquals(".", PhaseStatistics.getDirectoryId(checkoutDir, checkoutDir));
+    assertEquals("a/b", PhaseStatistics.getDirectoryId(new File(checkoutDir, "a" + File.separator + "b"), checkoutDir));
+
+    final File outside = new File("work", "other").getAbsoluteFile();
+    assertEquals(SwabraUtil.unifyPath(outside.getAbsolutePath(), '/'), PhaseStatistics.getDirectoryId(outside, checkoutDir));
+    assertEquals(SwabraUtil.unifyPath(outside.getAbsolutePath(), '/'), PhaseStatistics.getDirectoryId(outside, null));
+  }
+
+  public void test_counters_accumulate() throws Exception {
+    final PhaseStatistics statistics = new PhaseStatistics(".");
+    statistics.add(PhaseStatistics.Phase.DELETION, 10, 1, 100);
+    statistics.add(PhaseStatistics.Phase.DELETION, 20, 1, 0);
+
+    assertEquals(30, statistics.getTime(PhaseStatistics.Phase.DELETION));
+    assertEquals(2, statistics.getEntries(PhaseStatistics.Phase.DELETION));
+    assertEquals(100, statistics.getBytes(PhaseStatistics.Phase.DELETION));
+    assertEquals(0, statistics.getEntries(PhaseStatistics.Phase.SCAN));
+  }
+
+  public void test_publish() throws Exception {
+    final StringBuilder results = new StringBuilder();
+    final SwabraLogger logger = new SwabraLogger();
+    logger.setBuildLogger(new BuildProgressLoggerMock(results));
+
+    final PhaseStatistics statistics = new PhaseStatistics("a/b");
+    statistics.add(PhaseStatistics.Phase.SCAN, TimeUnit.SECONDS.toNanos(2), 1000, 0);
+    statistics.add(PhaseStatistics.Phase.SNAPSHOT_WRITE, TimeUnit.MILLISECONDS.toNanos(500), 10, 4096);
+    statistics.publish(logger);
+
+    final Map<String, Long> values = getStatisticValues(results.toString());
+    assertEquals(Long.valueOf(2000), values.get("swabra.scan.timeMs:a/b"));
+    assertEquals(Long.valueOf(1000), values.get("swabra.scan.entries:a/b"));
+    assertEquals(Long.valueOf(500), values.get("swabra.scan.entriesPerSecond:a/b"));
+    assertFalse(values.containsKey("swabra.scan.bytes:a/b"));
+    assertEquals(Long.valueOf(500), values.get("swabra.snapshotWrite.timeMs:a/b"));
+    assertEquals(Long.valueOf(4096), values.get("swabra.snapshotWrite.bytes:a/b"));
+    assertEquals(Long.valueOf(20), values.get("swabra.snapshotWrite.entriesPerSecond:a/b"));
+    assertEquals(values.toString(), 7, values.size());
+  }
+
+  private static Map<String, Long> getStatisticValues(@NotNull String log) {
+    final Map<String, Long> values = new HashMap<String, Long>();
+    for (String line : log.split("\n")) {
+      if (!line.contains("buildStatisticValue")) continue;
+      final Matcher key = KEY_PATTERN.matcher(line);
+      final Matcher value = VALUE_PATTERN.matcher(line);
+      assertTrue(line, key.find() && value.find());
+      values.put(key.group(1), Long.valueOf(value.group(1)));
+    }
+    return values;
+  }
+}
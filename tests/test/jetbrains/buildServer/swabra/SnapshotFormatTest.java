@@ -0,0 +1,135 @@
+package jetbrains.buildServer.swabra;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.swabra.snapshots.SnapshotGenerator;
+import jetbrains.buildServer.swabra.snapshots.SnapshotUtil;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileSystemFilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.SnapshotFilesIterator;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+import static jetbrains.buildServer.swabra.TestUtil.getTestData;
+
+public class SnapshotFormatTest extends TestCase {
+  private TempFiles myTempFiles;
+  private File myRoot;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    myRoot = new File(myTempFiles.createTempDir(), "root");
+    FileUtil.copyDir(getTestData("filesTraverse", null), myRoot);
+    final File deep = new File(myRoot, "dir with spaces/subdir/nested");
+    assertTrue(deep.mkdirs());
+    for (String name : new String[]{"common_prefix_1.txt", "common_prefix_2.txt", "common_prefix_10.txt", "common.txt"}) {
+      FileUtil.writeFileAndReportErrors(new File(deep, name), name);
+    }
+    assertTrue(new File(deep.getParentFile(), "nested_sibling").mkdir());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    System.clearProperty(SnapshotGenerator.TEXT_SNAPSHOT_PROPERTY);
+    System.clearProperty(SnapshotFilesIterator.MAPPED_SNAPSHOT_PROPERTY);
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_binary_snapshot() throws Exception {
+    final File snapshot = generateSnapshot();
+
+    final byte[] head = new byte[SnapshotUtil.BINARY_SNAPSHOT_MAGIC.length];
+    final RandomAccessFile raf = new RandomAccessFile(snapshot, "r");
+    try {
+      raf.readFully(head);
+    } finally {
+      raf.close();
+    }
+    assertTrue(SnapshotUtil.isBinarySnapshot(head, head.length));
+
+    assertEquals(readFileSystem(), read(new SnapshotFilesIterator(snapshot)));
+  }
+
+  public void test_binary_snapshot_not_mapped() throws Exception {
+    System.setProperty(SnapshotFilesIterator.MAPPED_SNAPSHOT_PROPERTY, "false");
+    final File snapshot = generateSnapshot();
+
+    assertEquals(readFileSystem(), read(new SnapshotFilesIterator(snapshot)));
+  }
+
+  public void test_binary_snapshot_skip_directories() throws Exception {
+    final File snapshot = generateSnapshot();
+    final List<String> expected = read(new FileSystemFilesIterator(myRoot, new SwabraRules(myRoot, Collections.<String>emptyList())), "a", "dir with spaces");
+
+    assertEquals(expected, read(new SnapshotFilesIterator(snapshot), "a", "dir with spaces"));
+    System.setProperty(SnapshotFilesIterator.MAPPED_SNAPSHOT_PROPERTY, "false");
+    assertEquals(expected, read(new SnapshotFilesIterator(snapshot), "a", "dir with spaces"));
+  }
+
+  public void test_text_snapshot() throws Exception {
+    System.setProperty(SnapshotGenerator.TEXT_SNAPSHOT_PROPERTY, "true");
+    final File snapshot = generateSnapshot();
+
+    assertTrue(FileUtil.readText(snapshot, "UTF-8").startsWith(SnapshotUtil.getSnapshotHeader(myRoot.getParent())));
+    assertEquals(readFileSystem(), read(new SnapshotFilesIterator(snapshot)));
+  }
+
+  public void test_truncated_binary_snapshot() throws Exception {
+    final File snapshot = generateSnapshot();
+    final List<String> expected = readFileSystem();
+
+    final RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+    try {
+      raf.setLength(raf.length() / 2);
+    } finally {
+      raf.close();
+    }
+
+    final List<String> actual = read(new SnapshotFilesIterator(snapshot));
+    assertTrue(actual.size() < expected.size());
+    assertEquals(expected.subList(0, actual.size()), actual);
+  }
+
+  @NotNull
+  private File generateSnapshot() throws IOException {
+    final File snapshot = myTempFiles.createTempFile();
+    final SnapshotGenerator generator = new SnapshotGenerator(myRoot, new SwabraLogger(), new SwabraRules(myRoot, Collections.<String>emptyList()));
+    assertTrue(generator.generateSnapshot(snapshot));
+    return snapshot;
+  }
+
+  @NotNull
+  private List<String> readFileSystem() throws Exception {
+    return read(new FileSystemFilesIterator(myRoot, new SwabraRules(myRoot, Collections.<String>emptyList())));
+  }
+
+  @NotNull
+  private static List<String> read(@NotNull FilesIterator iterator, String... skippedDirs) throws Exception {
+    final List<String> skipped = Arrays.asList(skippedDirs);
+    final List<String> result = new ArrayList<String>();
+    try {
+      FileInfo file;
+      while ((file = iterator.getNext()) != null) {
+        result.add(file.getPath() + " " + file.isFile() + " " + file.getLength() + " " + file.getLastModified());
+        if (!file.isFile() && skipped.contains(new File(file.getPath()).getName())) {
+          iterator.skipDirectory(file);
+        }
+      }
+    } finally {
+      iterator.stopIterator();
+    }
+    return result;
+  }
+}
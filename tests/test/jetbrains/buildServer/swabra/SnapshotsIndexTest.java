@@ -0,0 +1,54 @@
+package jetbrains.buildServer.swabra;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+
+public class SnapshotsIndexTest extends TestCase {
+  public void test_least_recently_used_are_evicted() throws Exception {
+    final SnapshotsIndex index = new SnapshotsIndex();
+    index.update("a", "checkout", 100, 1);
+    index.update("b", "checkout", 100, 2);
+    index.update("c", "checkout", 100, 3);
+    index.update("d", "checkout", 100, 4);
+    assertEquals(400, index.getTotalSize());
+
+    assertEquals(Collections.<String>emptyList(), index.selectEvicted(400, null));
+    assertEquals(Arrays.asList("a", "b"), index.selectEvicted(250, null));
+
+    index.touch("a", 5);
+    assertEquals(Arrays.asList("b", "c"), index.selectEvicted(250, null));
+  }
+
+  public void test_kept_checkout_directory_is_not_evicted() throws Exception {
+    final SnapshotsIndex index = new SnapshotsIndex();
+    index.update("a", "checkout1", 300, 1);
+    index.update("b", "checkout2", 100, 2);
+    index.update("c", "checkout1", 100, 3);
+    index.update("d", "checkout2", 100, 4);
+
+    assertEquals(Arrays.asList("b", "d"), index.selectEvicted(350, "checkout1"));
+    assertEquals(Arrays.asList("a"), index.selectEvicted(350, "checkout2"));
+  }
+
+  public void test_directory_without_snapshot_is_not_indexed() throws Exception {
+    final File dir = FileUtil.createTempDirectory("snapshots", "");
+    try {
+      final SnapshotsIndex index = new SnapshotsIndex();
+      final File snapshot = new File(dir, "1.snapshot");
+      index.update("a", "checkout", snapshot, 1);
+      assertEquals(0, index.getSize("a"));
+
+      FileUtil.writeFileAndReportErrors(snapshot, "snapshot");
+      index.update("a", "checkout", snapshot, 1);
+      assertEquals(snapshot.length(), index.getSize("a"));
+
+      index.remove("a");
+      assertEquals(0, index.getTotalSize());
+    } finally {
+      FileUtil.delete(dir);
+    }
+  }
+}
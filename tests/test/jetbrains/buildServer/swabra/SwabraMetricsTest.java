@@ -0,0 +1,95 @@
+package jetbrains.buildServer.swabra;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import junit.framework.TestCase;
+
+public class SwabraMetricsTest extends TestCase {
+  public void test_windowed_counter() throws Exception {
+    final WindowedCounter counter = new WindowedCounter(3);
+    final long start = 100 * WindowedCounter.SLOT_MILLIS;
+
+    counter.add(1, start);
+    counter.add(2, start + WindowedCounter.SLOT_MILLIS);
+    counter.add(4, start + 2 * WindowedCounter.SLOT_MILLIS);
+    assertEquals(7, counter.getRecent(start + 2 * WindowedCounter.SLOT_MILLIS));
+
+    // the first slot is reused
+    counter.add(8, start + 3 * WindowedCounter.SLOT_MILLIS);
+    assertEquals(14, counter.getRecent(start + 3 * WindowedCounter.SLOT_MILLIS));
+    assertEquals(12, counter.getRecent(start + 4 * WindowedCounter.SLOT_MILLIS));
+    assertEquals(0, counter.getRecent(start + 10 * WindowedCounter.SLOT_MILLIS));
+    assertEquals(15, counter.getTotal());
+  }
+
+  public void test_latency_histogram() throws Exception {
+    final PhaseLatencyHistogram histogram = new PhaseLatencyHistogram(PhaseStatistics.Phase.SCAN, 15);
+    histogram.add(TimeUnit.MICROSECONDS.toNanos(10));
+    histogram.add(TimeUnit.MILLISECONDS.toNanos(3));
+    histogram.add(TimeUnit.MILLISECONDS.toNanos(4));
+    histogram.add(TimeUnit.HOURS.toNanos(1));
+
+    assertEquals(1, histogram.getCumulativeCount(0));
+    assertEquals(3, histogram.getCumulativeCount(1));
+    assertEquals(3, histogram.getCumulativeCount(PhaseLatencyHistogram.BOUNDS_MILLIS.length - 1));
+    assertEquals(4, histogram.getCumulativeCount(PhaseLatencyHistogram.BOUNDS_MILLIS.length));
+
+    assertEquals(4L, histogram.getAttribute("Count"));
+    assertEquals(4L, histogram.getAttribute("RecentCount"));
+    assertEquals(3L, histogram.getAttribute("le_4ms"));
+    assertEquals(4L, histogram.getAttribute("le_inf"));
+    assertEquals(histogram.getMBeanInfo().getAttributes().length, histogram.getAttributes(new String[]{
+      "Count", "TotalTimeMs", "RecentCount", "RecentTimeMs", "le_1ms", "le_4ms", "le_16ms", "le_64ms", "le_256ms",
+      "le_1024ms", "le_4096ms", "le_16384ms", "le_65536ms", "le_262144ms", "le_inf"}).size());
+  }
+
+  public void test_record() throws Exception {
+    final SwabraMetrics metrics = new SwabraMetrics();
+
+    final PhaseStatistics snapshot = new PhaseStatistics(".");
+    snapshot.add(PhaseStatistics.Phase.SNAPSHOT_WRITE, TimeUnit.MILLISECONDS.toNanos(10), 100, 4096);
+    snapshot.add(PhaseStatistics.Phase.STATE_PERSISTENCE, TimeUnit.MILLISECONDS.toNanos(1), 1, 50);
+    metrics.record(snapshot);
+
+    final PhaseStatistics collection = new PhaseStatistics(".");
+    collection.add(PhaseStatistics.Phase.SCAN, TimeUnit.MILLISECONDS.toNanos(20), 110, 0);
+    collection.add(PhaseStatistics.Phase.COMPARISON, TimeUnit.MILLISECONDS.toNanos(5), 110, 4096);
+    collection.add(PhaseStatistics.Phase.DELETION, TimeUnit.MILLISECONDS.toNanos(2), 10, 1000);
+    collection.add(PhaseStatistics.Phase.LOCKED_FILES_RESOLUTION, TimeUnit.MILLISECONDS.toNanos(1), 1, 0);
+    metrics.record(collection);
+
+    assertEquals(2, metrics.getScans());
+    assertEquals(2, metrics.getRecentScans());
+    assertEquals(210, metrics.getEntriesVisited());
+    assertEquals(10, metrics.getDeletions());
+    assertEquals(1, metrics.getLockResolutions());
+    assertEquals(4096, metrics.getSnapshotBytesWritten());
+    assertEquals(4096, metrics.getSnapshotBytesRead());
+
+    assertEquals(1L, metrics.getLatency(PhaseStatistics.Phase.SCAN).getAttribute("Count"));
+    assertEquals(20L, metrics.getLatency(PhaseStatistics.Phase.SCAN).getAttribute("TotalTimeMs"));
+    assertEquals(1L, metrics.getLatency(PhaseStatistics.Phase.SNAPSHOT_WRITE).getAttribute("Count"));
+    assertEquals(1L, metrics.getLatency(PhaseStatistics.Phase.STATE_PERSISTENCE).getAttribute("Count"));
+    assertEquals(0L, metrics.getLatency(PhaseStatistics.Phase.DELETION).getAttribute("le_1ms"));
+  }
+
+  public void test_register() throws Exception {
+    final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    final SwabraMetrics metrics = SwabraMetrics.getInstance();
+    metrics.register();
+    try {
+      // registration of the reloaded plugin replaces the previous one
+      metrics.register();
+
+      metrics.processToolStarted();
+      assertEquals(metrics.getProcessToolRuns(), server.getAttribute(SwabraMetrics.getObjectName(), "ProcessToolRuns"));
+      assertTrue(server.isRegistered(SwabraMetrics.getObjectName(PhaseStatistics.Phase.DELETION)));
+      assertNotNull(server.getAttribute(SwabraMetrics.getObjectName(PhaseStatistics.Phase.DELETION), "le_inf"));
+    } finally {
+      metrics.unregister();
+    }
+    assertFalse(server.isRegistered(SwabraMetrics.getObjectName()));
+    assertFalse(server.isRegistered(SwabraMetrics.getObjectName(PhaseStatistics.Phase.DELETION)));
+  }
+}
@@ -0,0 +1,296 @@
+package jetbrains.buildServer.swabra;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.agent.AgentLifeCycleListener;
+import jetbrains.buildServer.agent.BuildAgent;
+import jetbrains.buildServer.agent.BuildAgentConfiguration;
+import jetbrains.buildServer.agent.impl.directories.DirectoryMapPersistance;
+import jetbrains.buildServer.util.EventDispatcher;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+
+public class SwabraPropertiesProcessorTest extends TestCase {
+  private TempFiles myTempFiles;
+  private Mockery myContext;
+  private File myCacheDir;
+  private File myCheckoutDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    myContext = new Mockery();
+    myCacheDir = myTempFiles.createTempDir();
+    myCheckoutDir = myTempFiles.createTempDir();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_concurrent_changes_are_replayed() throws Exception {
+    for (int i = 0; i < 30; ++i) {
+      myCacheDir = myTempFiles.createTempDir();
+      doConcurrentChanges(i);
+    }
+  }
+
+  private void doConcurrentChanges(final int round) throws Exception {
+    final SwabraPropertiesProcessor processor = createProcessor();
+    final int threadsCount = 8;
+    final List<File> sharedDirs = createDirs("shared", 4);
+    final List<List<File>> ownDirs = new ArrayList<List<File>>();
+    for (int i = 0; i < threadsCount; ++i) {
+      ownDirs.add(createDirs("own" + i, 4));
+    }
+
+    final ExecutorService executor = Executors.newFixedThreadPool(threadsCount);
+    try {
+      final CountDownLatch start = new CountDownLatch(1);
+      final List<Future<Map<File, SwabraPropertiesProcessor.DirectoryState>>> results =
+        new ArrayList<Future<Map<File, SwabraPropertiesProcessor.DirectoryState>>>();
+      for (int i = 0; i < threadsCount; ++i) {
+        final int thread = i;
+        results.add(executor.submit(new Callable<Map<File, SwabraPropertiesProcessor.DirectoryState>>() {
+          public Map<File, SwabraPropertiesProcessor.DirectoryState> call() throws Exception {
+            final Random random = new Random(round * threadsCount + thread);
+            final Map<File, SwabraPropertiesProcessor.DirectoryState> expected = new HashMap<File, SwabraPropertiesProcessor.DirectoryState>();
+            start.await();
+            for (int j = 0; j < 100; ++j) {
+              final boolean own = random.nextBoolean();
+              final List<File> dirs = own ? ownDirs.get(thread) : sharedDirs;
+              final File dir = dirs.get(random.nextInt(dirs.size()));
+              final SwabraPropertiesProcessor.DirectoryState state = change(processor, dir, random.nextInt(3), "bt" + thread);
+              if (own) {
+                expected.put(dir, state);
+              }
+            }
+            return expected;
+          }
+        }));
+      }
+      start.countDown();
+      for (int i = 0; i < threadsCount; ++i) {
+        for (Map.Entry<File, SwabraPropertiesProcessor.DirectoryState> entry : results.get(i).get().entrySet()) {
+          assertEquals(entry.getKey().getPath(), entry.getValue(), processor.getState(entry.getKey()));
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    processor.flush();
+
+    final SwabraPropertiesProcessor reloaded = createProcessor();
+    reloaded.startCleanup(Collections.singletonList(myCheckoutDir));
+    waitForInitialization(reloaded);
+
+    final List<File> allDirs = new ArrayList<File>(sharedDirs);
+    for (List<File> dirs : ownDirs) {
+      allDirs.addAll(dirs);
+    }
+    for (File dir : allDirs) {
+      assertEquals(dir.getPath(), processor.getState(dir), reloaded.getState(dir));
+      assertEquals(dir.getPath(), processor.getPreviousBuildTypeId(dir), reloaded.getPreviousBuildTypeId(dir));
+    }
+    processor.agentShutdown();
+    reloaded.agentShutdown();
+  }
+
+  public void test_stale_states_removed() throws Exception {
+    final File removedCheckoutDir = myTempFiles.createTempDir();
+    final File keptDir = new File(myCheckoutDir, "kept");
+    final File removedDir = new File(removedCheckoutDir, "removed");
+
+    final SwabraPropertiesProcessor processor = createProcessor();
+    processor.markDirty(keptDir, myCheckoutDir, "bt1");
+    processor.markPending(removedDir, removedCheckoutDir, false, "bt2");
+    writeSnapshot(processor, keptDir);
+    writeSnapshot(processor, removedDir);
+    final File orphanSnapshot = new File(myCacheDir, "cafebabe.snapshot");
+    FileUtil.writeFileAndReportErrors(orphanSnapshot, "orphan");
+    processor.flush();
+    processor.agentShutdown();
+    FileUtil.delete(removedCheckoutDir);
+
+    final SwabraPropertiesProcessor restarted = createProcessor();
+    restarted.startCleanup(Arrays.asList(myCheckoutDir, removedCheckoutDir));
+    waitForInitialization(restarted);
+    assertEquals(SwabraPropertiesProcessor.DirectoryState.DIRTY, restarted.getState(keptDir));
+    assertEquals(SwabraPropertiesProcessor.DirectoryState.UNKNOWN, restarted.getState(removedDir));
+    assertTrue(restarted.getSnapshotFile(keptDir).isFile());
+    assertFalse(restarted.getSnapshotFile(removedDir).exists());
+    assertFalse(orphanSnapshot.exists());
+    restarted.agentShutdown();
+
+    final SwabraPropertiesProcessor reloaded = createProcessor();
+    reloaded.startCleanup(Collections.singletonList(myCheckoutDir));
+    waitForInitialization(reloaded);
+    assertEquals(SwabraPropertiesProcessor.DirectoryState.DIRTY, reloaded.getState(keptDir));
+    assertEquals(SwabraPropertiesProcessor.DirectoryState.UNKNOWN, reloaded.getState(removedDir));
+    reloaded.agentShutdown();
+  }
+
+  public void test_kept_snapshots_survive() throws Exception {
+    final File removedCheckoutDir = myTempFiles.createTempDir();
+    final List<File> keptDirs = createDirs("kept", 250);
+    final List<File> removedDirs = new ArrayList<File>();
+    for (int i = 0; i < 250; ++i) {
+      removedDirs.add(new File(removedCheckoutDir, "removed_" + i));
+    }
+
+    final SwabraPropertiesProcessor processor = createProcessor();
+    for (int i = 0; i < keptDirs.size(); ++i) {
+      processor.markDirty(keptDirs.get(i), myCheckoutDir, "bt");
+      writeSnapshot(processor, keptDirs.get(i));
+      processor.markDirty(removedDirs.get(i), removedCheckoutDir, "bt");
+      writeSnapshot(processor, removedDirs.get(i));
+    }
+    processor.flush();
+    processor.agentShutdown();
+    FileUtil.delete(removedCheckoutDir);
+
+    final SwabraPropertiesProcessor restarted = createProcessor();
+    restarted.startCleanup(Collections.singletonList(myCheckoutDir));
+    waitForInitialization(restarted);
+    for (File dir : keptDirs) {
+      assertEquals(dir.getPath(), SwabraPropertiesProcessor.DirectoryState.DIRTY, restarted.getState(dir));
+      assertEquals(dir.getPath(), dir.getPath(), FileUtil.readText(restarted.getSnapshotFile(dir)));
+    }
+    for (File dir : removedDirs) {
+      assertFalse(dir.getPath(), restarted.getSnapshotFile(dir).exists());
+    }
+    restarted.agentShutdown();
+  }
+
+  public void test_snapshot_requested_during_stale_snapshots_deletion() throws Exception {
+    final List<File> dirs = createDirs("stale", 500);
+    final SwabraPropertiesProcessor processor = createProcessor();
+    for (File dir : dirs) {
+      writeSnapshot(processor, dir);
+    }
+    processor.agentShutdown();
+
+    final SwabraPropertiesProcessor restarted = createProcessor();
+    restarted.startCleanup(Collections.singletonList(myCheckoutDir));
+    // the background deletion goes through the stale snapshots while the builds generate new ones
+    for (int i = dirs.size() - 1; i >= 0; --i) {
+      FileUtil.writeFileAndReportErrors(restarted.getSnapshotFile(dirs.get(i)), "fresh");
+    }
+    waitForInitialization(restarted);
+    for (File dir : dirs) {
+      final File snapshot = restarted.getSnapshotFile(dir);
+      assertTrue(dir.getPath(), snapshot.isFile());
+      assertEquals(dir.getPath(), "fresh", FileUtil.readText(snapshot));
+    }
+    restarted.agentShutdown();
+  }
+
+  public void test_running_build_snapshots_are_not_evicted() throws Exception {
+    final File otherCheckoutDir = myTempFiles.createTempDir();
+    final File otherDir = new File(otherCheckoutDir, "other");
+    final List<File> buildDirs = createDirs("build", 3);
+
+    System.setProperty(SnapshotsIndex.MAX_SIZE_PROPERTY, "1");
+    try {
+      final SwabraPropertiesProcessor processor = createProcessor();
+      final List<File> evicted = new ArrayList<File>();
+      processor.addSnapshotEvictionListener(new SwabraPropertiesProcessor.SnapshotEvictionListener() {
+        public void snapshotEvicted(@NotNull File dir) {
+          evicted.add(dir);
+        }
+      });
+      makeSnapshot(processor, otherDir, otherCheckoutDir, 400 * 1024);
+      // snapshots of all the build directories together exceed the budget
+      for (File dir : buildDirs) {
+        makeSnapshot(processor, dir, myCheckoutDir, 400 * 1024);
+      }
+
+      assertEquals(Collections.singletonList(otherDir.getAbsoluteFile()), evicted);
+      assertEquals(SwabraPropertiesProcessor.DirectoryState.UNKNOWN, processor.getState(otherDir));
+      assertFalse(processor.getSnapshotFile(otherDir).exists());
+      for (File dir : buildDirs) {
+        assertEquals(dir.getPath(), SwabraPropertiesProcessor.DirectoryState.PENDING, processor.getState(dir));
+        assertTrue(dir.getPath(), processor.getSnapshotFile(dir).isFile());
+      }
+      processor.agentShutdown();
+    } finally {
+      System.clearProperty(SnapshotsIndex.MAX_SIZE_PROPERTY);
+    }
+  }
+
+  @NotNull
+  private static SwabraPropertiesProcessor.DirectoryState change(@NotNull SwabraPropertiesProcessor processor,
+                                                                 @NotNull File dir,
+                                                                 int change,
+                                                                 @NotNull String buildTypeId) {
+    switch (change) {
+      case 0:
+        processor.markDirty(dir, dir.getParentFile(), buildTypeId);
+        return SwabraPropertiesProcessor.DirectoryState.DIRTY;
+      case 1:
+        processor.markClean(dir, dir.getParentFile(), false, buildTypeId);
+        return SwabraPropertiesProcessor.DirectoryState.CLEAN;
+      default:
+        processor.deleteRecord(dir);
+        return SwabraPropertiesProcessor.DirectoryState.UNKNOWN;
+    }
+  }
+
+  private static void makeSnapshot(@NotNull SwabraPropertiesProcessor processor, @NotNull File dir, @NotNull File checkoutDir, int size)
+    throws IOException {
+    final char[] content = new char[size];
+    Arrays.fill(content, 'x');
+    FileUtil.writeFileAndReportErrors(processor.getSnapshotFile(dir), new String(content));
+    processor.markPending(dir, checkoutDir, false, "bt");
+  }
+
+  private static void writeSnapshot(@NotNull SwabraPropertiesProcessor processor, @NotNull File dir) throws IOException {
+    FileUtil.writeFileAndReportErrors(processor.getSnapshotFile(dir), dir.getPath());
+  }
+
+  @NotNull
+  private List<File> createDirs(@NotNull String prefix, int count) {
+    final List<File> dirs = new ArrayList<File>();
+    for (int i = 0; i < count; ++i) {
+      dirs.add(new File(myCheckoutDir, prefix + "_" + i));
+    }
+    return dirs;
+  }
+
+  @NotNull
+  private SwabraPropertiesProcessor createProcessor() {
+    final BuildAgent agent = myContext.mock(BuildAgent.class, "agent" + System.nanoTime());
+    final BuildAgentConfiguration configuration = myContext.mock(BuildAgentConfiguration.class, "configuration" + System.nanoTime());
+    myContext.checking(new Expectations() {{
+      allowing(agent).getConfiguration();
+      will(returnValue(configuration));
+      allowing(configuration).getCacheDirectory(Swabra.CACHE_KEY);
+      will(returnValue(myCacheDir));
+    }});
+    final SwabraPropertiesProcessor processor =
+      new SwabraPropertiesProcessor(EventDispatcher.create(AgentLifeCycleListener.class), new SwabraLogger(),
+                                    myContext.mock(DirectoryMapPersistance.class, "persistance" + System.nanoTime()));
+    processor.afterAgentConfigurationLoaded(agent);
+    return processor;
+  }
+
+  private static void waitForInitialization(@NotNull SwabraPropertiesProcessor processor) throws InterruptedException {
+    final long deadline = System.currentTimeMillis() + 10000;
+    while (!processor.isInitialized()) {
+      assertTrue("Cleanup didn't finish in time", System.currentTimeMillis() < deadline);
+    }
+  }
+}
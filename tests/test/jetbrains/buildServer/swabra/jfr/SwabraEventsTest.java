@@ -0,0 +1,94 @@
+package jetbrains.buildServer.swabra.jfr;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.SnapshotGenerator;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+public class SwabraEventsTest extends TestCase {
+  private TempFiles myTempFiles;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_snapshot_generation_event() throws Exception {
+    assertTrue(SwabraEvents.isAvailable());
+
+    final File root = myTempFiles.createTempDir();
+    FileUtil.writeFileAndReportErrors(new File(root, "f1"), "f1");
+    assertTrue(new File(root, "a").mkdirs());
+    FileUtil.writeFileAndReportErrors(new File(root, "a/f1"), "a/f1");
+    final File snapshot = myTempFiles.createTempFile();
+
+    final List<RecordedEvent> events = record("jetbrains.buildServer.swabra.SnapshotGeneration", new Runnable() {
+      public void run() {
+        assertTrue(new SnapshotGenerator(root, new SwabraLogger(), new SwabraRules(root, Collections.<String>emptyList())).generateSnapshot(snapshot));
+      }
+    });
+
+    assertEquals(1, events.size());
+    final RecordedEvent event = events.get(0);
+    assertEquals(root.getPath(), event.getString("directory"));
+    assertEquals(4, event.getLong("entries"));
+    assertEquals(snapshot.length(), event.getLong("bytes"));
+    assertEquals("saved", event.getString("outcome"));
+  }
+
+  public void test_deletion_batch_event() throws Exception {
+    final List<RecordedEvent> events = record("jetbrains.buildServer.swabra.DeletionBatch", new Runnable() {
+      public void run() {
+        DeletionBatchEvent.start("dir", 4).finish(10, 2);
+      }
+    });
+
+    assertEquals(1, events.size());
+    final RecordedEvent event = events.get(0);
+    assertEquals("dir", event.getString("directory"));
+    assertEquals(4, event.getInt("workers"));
+    assertEquals(10, event.getLong("entries"));
+    assertEquals(2, event.getLong("notDeleted"));
+    assertEquals("lockedFiles", event.getString("outcome"));
+  }
+
+  @NotNull
+  private List<RecordedEvent> record(@NotNull String eventName, @NotNull Runnable action) throws Exception {
+    final Path dump = myTempFiles.createTempFile().toPath();
+    final Recording recording = new Recording();
+    try {
+      recording.enable(eventName);
+      recording.start();
+      action.run();
+      recording.stop();
+      recording.dump(dump);
+    } finally {
+      recording.close();
+    }
+    final List<RecordedEvent> result = new ArrayList<RecordedEvent>();
+    for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+      if (eventName.equals(event.getEventType().getName())) {
+        result.add(event);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,140 @@
+package jetbrains.buildServer.swabra.scale;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.FilesCollectionProcessor;
+import jetbrains.buildServer.swabra.snapshots.SnapshotGenerator;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileSystemFilesIterator;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesTraversal;
+import jetbrains.buildServer.swabra.snapshots.iteration.SnapshotFilesIterator;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Runs the snapshot, mutate, collect cycle on a generated tree and reports wall time and peak heap of each phase.
+ *
+ * Isn't part of the default suite, run it with mvn test -Pscale-tests. By default the tree is small, production scale
+ * trees are generated with system properties, e.g. -Dswabra.scale.depth=5 -Dswabra.scale.dirsPerDir=10
+ * -Dswabra.scale.filesPerDir=100 gives about a million files. Swabra properties (e.g. teamcity.swabra.snapshot.parallel) can be passed the same way.
+ */
+public class SwabraScaleTest extends TestCase {
+  private static final String PREFIX = "swabra.scale.";
+
+  private TempFiles myTempFiles;
+  private final List<String> myReport = new ArrayList<String>();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    for (String line : myReport) {
+      System.out.println(line);
+    }
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_snapshot_mutate_collect() throws Exception {
+    final File tempDir = myTempFiles.createTempDir();
+    final File root = new File(tempDir, "checkout");
+    final File snapshot = new File(tempDir, "checkout.snapshot");
+    final TreeGenerator generator = new TreeGenerator()
+      .depth(Integer.getInteger(PREFIX + "depth", 3))
+      .dirsPerDir(Integer.getInteger(PREFIX + "dirsPerDir", 5))
+      .filesPerDir(Integer.getInteger(PREFIX + "filesPerDir", 20))
+      .maxFiles(Long.getLong(PREFIX + "maxFiles", Long.MAX_VALUE))
+      .sizes(0, Integer.getInteger(PREFIX + "maxSize", 4096))
+      .seed(Long.getLong(PREFIX + "seed", 239L));
+    final double deleteRatio = getRatio("deleteRatio", 0.01);
+    final double modifyRatio = getRatio("modifyRatio", 0.01);
+    final double addRatio = getRatio("addRatio", 0.01);
+
+    final SwabraLogger logger = new SwabraLogger();
+    final SwabraRules rules = new SwabraRules(root, Collections.<String>emptyList());
+
+    Phase phase = Phase.start("generate");
+    final TreeGenerator.Tree tree = generator.generate(root);
+    report(phase.finish(), tree.toString());
+
+    phase = Phase.start("snapshot");
+    assertTrue(new SnapshotGenerator(root, logger, rules).generateSnapshot(snapshot));
+    report(phase.finish(), snapshot.length() + " bytes snapshot");
+
+    phase = Phase.start("mutate");
+    final TreeGenerator.Mutation mutation = generator.mutate(root, deleteRatio, modifyRatio, addRatio);
+    report(phase.finish(), mutation.toString());
+
+    phase = Phase.start("collect");
+    final FilesCollectionProcessor processor = new FilesCollectionProcessor(logger, null, root, false, true, new AtomicBoolean(false));
+    new FilesTraversal().traverseCompare(new SnapshotFilesIterator(snapshot), new FileSystemFilesIterator(root, rules), processor);
+    final FilesCollectionProcessor.Results results = processor.getResults();
+    report(phase.finish(), results.detectedUnchanged + " unchanged, " + results.detectedNewAndDeleted + " deleted new");
+
+    assertEquals(mutation.getAddedCount(), results.detectedNewAndDeleted);
+    assertEquals(0, results.detectedNewAndUnableToDelete);
+    assertEquals(mutation.getModifiedCount(), results.detectedModified);
+    assertEquals(mutation.getDeletedCount(), results.detectedDeleted);
+    assertEquals(tree.getFilesCount() + tree.getDirectoriesCount() - mutation.getDeletedCount() - mutation.getModifiedCount(),
+                 results.detectedUnchanged);
+  }
+
+  private static double getRatio(@NotNull String name, double defaultValue) {
+    final String value = System.getProperty(PREFIX + name);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  private void report(@NotNull Phase phase, @NotNull String details) {
+    myReport.add(String.format("[swabra scale] %-8s %8d ms, peak heap %6d MB: %s", phase.myName, phase.myTime, phase.myPeakHeap >> 20, details));
+  }
+
+  /**
+   * Wall time and peak heap usage of a phase, heap pools peaks are reset when the phase starts
+   */
+  private static final class Phase {
+    @NotNull
+    private final String myName;
+    private final long myStart;
+    private long myTime;
+    private long myPeakHeap;
+
+    private Phase(@NotNull String name) {
+      myName = name;
+      myStart = System.nanoTime();
+    }
+
+    @NotNull
+    static Phase start(@NotNull String name) {
+      System.gc();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+        }
+      }
+      return new Phase(name);
+    }
+
+    @NotNull
+    Phase finish() {
+      myTime = (System.nanoTime() - myStart) / 1000000;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          myPeakHeap += pool.getPeakUsage().getUsed();
+        }
+      }
+      return this;
+    }
+  }
+}
@@ -0,0 +1,209 @@
+package jetbrains.buildServer.swabra.scale;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Generates directory trees of configurable shape and size and applies add/modify/delete patterns to them.
+ *
+ * Each directory down to the given depth has the given number of subdirectories and files, generation stops
+ * when the files limit is reached. File sizes are distributed log-uniformly between the minimum and maximum size,
+ * so most of the files are small as in real checkout directories. Generation is deterministic for the same seed.
+ */
+public class TreeGenerator {
+  public static final String ADDED_SUFFIX = ".added";
+
+  private int myDepth = 3;
+  private int myDirsPerDir = 4;
+  private int myFilesPerDir = 10;
+  private long myMaxFiles = Long.MAX_VALUE;
+  private int myMinSize = 0;
+  private int myMaxSize = 4096;
+  private long mySeed = 239;
+
+  @NotNull
+  public TreeGenerator depth(int depth) {
+    myDepth = depth;
+    return this;
+  }
+
+  @NotNull
+  public TreeGenerator dirsPerDir(int dirsPerDir) {
+    myDirsPerDir = dirsPerDir;
+    return this;
+  }
+
+  @NotNull
+  public TreeGenerator filesPerDir(int filesPerDir) {
+    myFilesPerDir = filesPerDir;
+    return this;
+  }
+
+  @NotNull
+  public TreeGenerator maxFiles(long maxFiles) {
+    myMaxFiles = maxFiles;
+    return this;
+  }
+
+  @NotNull
+  public TreeGenerator sizes(int minSize, int maxSize) {
+    myMinSize = minSize;
+    myMaxSize = maxSize;
+    return this;
+  }
+
+  @NotNull
+  public TreeGenerator seed(long seed) {
+    mySeed = seed;
+    return this;
+  }
+
+  @NotNull
+  public Tree generate(@NotNull File root) throws IOException {
+    final Tree tree = new Tree(root);
+    final Random random = new Random(mySeed);
+    final byte[] buffer = new byte[Math.max(myMaxSize, 1)];
+    random.nextBytes(buffer);
+    generate(root, myDepth, tree, random, buffer);
+    return tree;
+  }
+
+  private void generate(@NotNull File dir, int depth, @NotNull Tree tree, @NotNull Random random, @NotNull byte[] buffer) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Failed to create " + dir);
+    }
+    ++tree.myDirs;
+    for (int i = 0; i < myFilesPerDir && tree.myFiles < myMaxFiles; ++i) {
+      final int size = nextSize(random);
+      write(new File(dir, "file" + i + ".dat"), buffer, size);
+      ++tree.myFiles;
+      tree.myBytes += size;
+    }
+    if (depth <= 1) {
+      return;
+    }
+    for (int i = 0; i < myDirsPerDir && tree.myFiles < myMaxFiles; ++i) {
+      generate(new File(dir, "dir" + i), depth - 1, tree, random, buffer);
+    }
+  }
+
+  private int nextSize(@NotNull Random random) {
+    if (myMaxSize <= myMinSize) {
+      return myMinSize;
+    }
+    final double min = Math.log(myMinSize + 1);
+    final double max = Math.log(myMaxSize + 1);
+    return (int)Math.min(myMaxSize, Math.exp(min + random.nextDouble() * (max - min)) - 1);
+  }
+
+  private static void write(@NotNull File file, @NotNull byte[] buffer, int size) throws IOException {
+    final OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(buffer, 0, size);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Walks the tree and deletes, modifies (changes the size) or adds a sibling to each file with the given probabilities
+   */
+  @NotNull
+  public Mutation mutate(@NotNull File root, final double deleteRatio, final double modifyRatio, final double addRatio) throws IOException {
+    final Mutation mutation = new Mutation();
+    final Random random = new Random(mySeed + 1);
+    Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+        if (file.getFileName().toString().endsWith(ADDED_SUFFIX)) {
+          // created by this mutation
+          return FileVisitResult.CONTINUE;
+        }
+        final double r = random.nextDouble();
+        if (r < deleteRatio) {
+          Files.delete(file);
+          ++mutation.myDeleted;
+        } else if (r < deleteRatio + modifyRatio) {
+          final OutputStream out = new FileOutputStream(file.toFile(), true);
+          try {
+            out.write('m');
+          } finally {
+            out.close();
+          }
+          ++mutation.myModified;
+        } else if (r < deleteRatio + modifyRatio + addRatio) {
+          write(new File(file.toString() + ADDED_SUFFIX), new byte[]{'a'}, 1);
+          ++mutation.myAdded;
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return mutation;
+  }
+
+  public static final class Tree {
+    @NotNull
+    private final File myRoot;
+    private int myDirs;
+    private long myFiles;
+    private long myBytes;
+
+    private Tree(@NotNull File root) {
+      myRoot = root;
+    }
+
+    @NotNull
+    public File getRoot() {
+      return myRoot;
+    }
+
+    public int getDirectoriesCount() {
+      return myDirs;
+    }
+
+    public long getFilesCount() {
+      return myFiles;
+    }
+
+    public long getBytesCount() {
+      return myBytes;
+    }
+
+    @Override
+    public String toString() {
+      return myDirs + " directories, " + myFiles + " files, " + myBytes + " bytes";
+    }
+  }
+
+  public static final class Mutation {
+    private int myDeleted;
+    private int myModified;
+    private int myAdded;
+
+    public int getDeletedCount() {
+      return myDeleted;
+    }
+
+    public int getModifiedCount() {
+      return myModified;
+    }
+
+    public int getAddedCount() {
+      return myAdded;
+    }
+
+    @Override
+    public String toString() {
+      return myDeleted + " deleted, " + myModified + " modified, " + myAdded + " added";
+    }
+  }
+}
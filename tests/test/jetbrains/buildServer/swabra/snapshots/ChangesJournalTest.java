@@ -0,0 +1,226 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.File;
+import java.nio.file.FileSystems;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.iteration.*;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class ChangesJournalTest extends TestCase {
+  private TempFiles myTempFiles;
+  private File myRoot;
+  private File mySyncDirsParent;
+  private File mySnapshot;
+  private ChangesJournal myJournal;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    myRoot = new File(myTempFiles.createTempDir(), "root");
+    for (String dir : new String[]{"a/aa", "a/ab", "b/ba/baa", "c"}) {
+      assertTrue(new File(myRoot, dir).mkdirs());
+    }
+    for (String file : new String[]{"f1", "a/f1", "a/aa/f1", "a/ab/f1", "b/ba/f1", "b/ba/baa/f1", "c/f1"}) {
+      FileUtil.writeFileAndReportErrors(new File(myRoot, file), file);
+    }
+    mySyncDirsParent = new File(myTempFiles.createTempDir(), "journals");
+    myJournal = ChangesJournal.start(myRoot, createRules(), mySyncDirsParent, new SwabraLogger());
+    assertNotNull(myJournal);
+    mySnapshot = myTempFiles.createTempFile();
+    assertTrue(new SnapshotGenerator(myRoot, new SwabraLogger(), createRules()).generateSnapshot(mySnapshot));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    myJournal.close();
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_unchanged() throws Exception {
+    assertTrue(myJournal.sync());
+    final List<String> results = compare(myJournal);
+    assertEquals(Collections.singletonList("UNCHANGED SUBTREE " + myRoot.getPath() + " 14"), results.subList(1, results.size()));
+  }
+
+  public void test_changes() throws Exception {
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "b/ba/baa/f1"), "modified content");
+    FileUtil.delete(new File(myRoot, "c/f1"));
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "a/aa/new"), "new");
+    assertTrue(myJournal.sync());
+
+    final List<String> full = compare(null);
+    final List<String> journaled = compare(myJournal);
+    assertTrue(journaled.contains("UNCHANGED SUBTREE " + new File(myRoot, "a/ab").getPath() + " 1"));
+    assertEquals(filterChanges(full), filterChanges(journaled));
+    assertEquals(3, filterChanges(journaled).size());
+  }
+
+  public void test_new_directory() throws Exception {
+    assertTrue(new File(myRoot, "a/ab/new/newer").mkdirs());
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "a/ab/new/newer/f1"), "new");
+    assertTrue(myJournal.sync());
+
+    assertEquals(filterChanges(compare(null)), filterChanges(compare(myJournal)));
+  }
+
+  public void test_directory_replaced() throws Exception {
+    // the replacement has the same structure, its subdirectories are not renamed themselves
+    for (String file : new String[]{"b/ba.new/f1", "b/ba.new/baa/f1", "b/ba.new/baa/created"}) {
+      final File f = new File(myRoot, file);
+      assertTrue(f.getParentFile().isDirectory() || f.getParentFile().mkdirs());
+      FileUtil.writeFileAndReportErrors(f, file.replace("ba.new", "ba"));
+    }
+    assertTrue(myJournal.sync());
+    assertTrue(new File(myRoot, "b/ba").renameTo(new File(myRoot, "b/ba.bak")));
+    assertTrue(new File(myRoot, "b/ba.new").renameTo(new File(myRoot, "b/ba")));
+    assertTrue(myJournal.sync());
+
+    final List<String> journaled = compare(myJournal);
+    assertEquals(filterChanges(compare(null)), filterChanges(journaled));
+    assertTrue(journaled.toString(), journaled.contains("ADDED " + new File(myRoot, "b/ba/baa/created").getPath()));
+    assertNull(myJournal.getCurrentSummary(new FileInfo(new File(myRoot, "b/ba/baa").getPath(), 0, 0, false), new SubtreeSummary(0, 0)));
+  }
+
+  public void test_changes_in_new_directory() throws Exception {
+    assertTrue(new File(myRoot, "c/new").mkdirs());
+    assertTrue(myJournal.sync());
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "c/new/f1"), "new");
+    assertTrue(myJournal.sync());
+
+    final List<String> journaled = compare(myJournal);
+    assertEquals(filterChanges(compare(null)), filterChanges(journaled));
+    assertTrue(journaled.toString(), journaled.contains("UNCHANGED SUBTREE " + new File(myRoot, "a").getPath() + " 5"));
+  }
+
+  public void test_closed_journal_is_not_used() throws Exception {
+    myJournal.close();
+    assertFalse(myJournal.sync());
+    assertNull(myJournal.getCurrentSummary(new FileInfo(myRoot.getPath(), 0, 0, false), new SubtreeSummary(0, 0)));
+  }
+
+  public void test_rules_changed() throws Exception {
+    assertTrue(myJournal.isApplicable(createRules().getRulesForPath(myRoot)));
+    assertFalse(myJournal.isApplicable(new SwabraRules(myRoot, Collections.singletonList("-:a")).getRulesForPath(myRoot)));
+  }
+
+  public void test_excluded_subtrees_not_watched() throws Exception {
+    assertEquals(8, myJournal.getWatchesCount());
+
+    final SwabraRules rules = new SwabraRules(myRoot, Arrays.asList("-:b", "-:a/aa"));
+    final ChangesJournal journal = ChangesJournal.start(myRoot, rules, mySyncDirsParent, new SwabraLogger());
+    assertNotNull(journal);
+    try {
+      assertEquals(4, journal.getWatchesCount()); // root, a, a/ab and c
+      assertTrue(new File(myRoot, "b/new").mkdirs());
+      assertTrue(new File(myRoot, "c/new").mkdirs());
+      assertTrue(journal.sync());
+      assertEquals(5, journal.getWatchesCount());
+    } finally {
+      journal.close();
+    }
+  }
+
+  public void test_watch_limit() throws Exception {
+    System.setProperty(ChangesJournal.WATCH_LIMIT_PROPERTY, "8");
+    try {
+      final ChangesJournal journal = ChangesJournal.start(myRoot, createRules(), mySyncDirsParent, new SwabraLogger());
+      assertNotNull(journal);
+      try {
+        // new directories over the limit make the journal invalid
+        assertTrue(new File(myRoot, "c/new").mkdirs());
+        assertFalse(journal.sync());
+      } finally {
+        journal.close();
+      }
+      assertNull(ChangesJournal.start(myRoot, createRules(), mySyncDirsParent, new SwabraLogger()));
+    } finally {
+      System.clearProperty(ChangesJournal.WATCH_LIMIT_PROPERTY);
+    }
+  }
+
+  public void test_sync_does_not_touch_monitored_directory() throws Exception {
+    final WatchService watchService = FileSystems.getDefault().newWatchService();
+    try {
+      myRoot.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+      assertTrue(myJournal.sync());
+      assertTrue(myJournal.sync());
+      final WatchKey key = watchService.poll(200, TimeUnit.MILLISECONDS);
+      assertNull(key == null ? null : key.pollEvents().toString(), key);
+    } finally {
+      watchService.close();
+    }
+    final File[] syncDirs = mySyncDirsParent.listFiles();
+    assertNotNull(syncDirs);
+    assertEquals(1, syncDirs.length);
+    myJournal.close();
+    assertFalse(syncDirs[0].exists());
+  }
+
+  @NotNull
+  private List<String> compare(@Nullable FilesTraversal.CurrentSummaryProvider provider) throws Exception {
+    final List<String> result = new ArrayList<String>();
+    new FilesTraversal(provider).traverseCompare(new SnapshotFilesIterator(mySnapshot), new FileSystemFilesIterator(myRoot, createRules()),
+                                                 new FilesTraversal.ComparisonProcessor() {
+      public void comparisonStarted() {
+      }
+
+      public void comparisonFinished() {
+      }
+
+      public boolean willProcess(FileInfo info) {
+        return true;
+      }
+
+      public void processModified(FileInfo info1, FileInfo info2) {
+        result.add("MODIFIED " + info1.getPath());
+      }
+
+      public void processDeleted(FileInfo info) {
+        result.add("DELETED " + info.getPath());
+      }
+
+      public void processAdded(FileInfo info) {
+        result.add("ADDED " + info.getPath());
+      }
+
+      public void processUnchanged(FileInfo info) {
+        result.add("UNCHANGED " + info.getPath());
+      }
+
+      public void processUnchangedSubtree(FileInfo dir, int entriesCount) {
+        result.add("UNCHANGED SUBTREE " + dir.getPath() + " " + entriesCount);
+      }
+    });
+    return result;
+  }
+
+  @NotNull
+  private static List<String> filterChanges(@NotNull List<String> results) {
+    final List<String> changes = new ArrayList<String>();
+    for (String result : results) {
+      if (!result.startsWith("UNCHANGED")) {
+        changes.add(result);
+      }
+    }
+    return changes;
+  }
+
+  @NotNull
+  private SwabraRules createRules() {
+    return new SwabraRules(myRoot, Collections.<String>emptyList());
+  }
+}
@@ -0,0 +1,95 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import jetbrains.buildServer.swabra.BuildProgressLoggerMock;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.swabra.snapshots.iteration.FilesIterator;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Checks the slowest subtrees report
+ */
+public class SubtreesProfileTest extends TestCase {
+  private static final String ROOT = new File("root").getAbsolutePath();
+
+  public void test_dominating_subtree_is_reported_instead_of_parent() throws Exception {
+    final List<FileInfo> entries = Arrays.asList(dir(""), file("f", 10),
+                                                 dir("a"), file("a/f", 1),
+                                                 dir("a/b"), file("a/b/slow", 2), file("a/b/g", 3),
+                                                 dir("ab"), file("ab/f", 4),
+                                                 dir("c"), file("c/slow", 5));
+    final StringBuilder log = new StringBuilder();
+    final SwabraLogger logger = new SwabraLogger();
+    logger.setBuildLogger(new BuildProgressLoggerMock(log));
+
+    final SubtreesProfile profile = new SubtreesProfile(new ListFilesIterator(entries), logger, 2);
+    FileInfo info;
+    while ((info = profile.getNext()) != null) {
+      if (info.getPath().endsWith("slow")) {
+        Thread.sleep(info.getPath().contains("a" + File.separator + "b") ? 200 : 100);
+        profile.deletionScheduled();
+      }
+    }
+
+    // a/ took almost the same time as a/b/, a/ and ab/ are the fastest ones
+    assertEquals(Arrays.asList("a" + File.separator + "b" + File.separator, "c" + File.separator), profile.getSlowestSubtrees());
+
+    profile.report(new File(ROOT), "files collection");
+    final String text = log.toString();
+    assertTrue(text, text.contains("Slowest subtrees of " + ROOT + " during files collection:"));
+    assertTrue(text, text.contains("a" + File.separator + "b" + File.separator + ": "));
+    assertTrue(text, text.contains("2 files, "));
+    assertTrue(text, text.contains(", 1 deletions"));
+  }
+
+  public void test_empty_report() throws Exception {
+    final StringBuilder log = new StringBuilder();
+    final SwabraLogger logger = new SwabraLogger();
+    logger.setBuildLogger(new BuildProgressLoggerMock(log));
+
+    final SubtreesProfile profile = new SubtreesProfile(new ListFilesIterator(Arrays.asList(dir(""), file("f", 1))), logger, 5);
+    while (profile.getNext() != null) {
+    }
+    assertTrue(profile.getSlowestSubtrees().isEmpty());
+    profile.report(new File(ROOT), "snapshot generation");
+    assertEquals("", log.toString());
+  }
+
+  @NotNull
+  private static FileInfo dir(@NotNull String path) {
+    return new FileInfo(path.isEmpty() ? ROOT : ROOT + File.separator + path.replace('/', File.separatorChar), 0, 0, false);
+  }
+
+  @NotNull
+  private static FileInfo file(@NotNull String path, long length) {
+    return new FileInfo(ROOT + File.separator + path.replace('/', File.separatorChar), length, 0, true);
+  }
+
+  private static final class ListFilesIterator implements FilesIterator {
+    private final Iterator<FileInfo> myIterator;
+
+    private ListFilesIterator(@NotNull List<FileInfo> entries) {
+      myIterator = new ArrayList<FileInfo>(entries).iterator();
+    }
+
+    public FileInfo getNext() {
+      return myIterator.hasNext() ? myIterator.next() : null;
+    }
+
+    public void skipDirectory(FileInfo dirInfo) {
+    }
+
+    public void stopIterator() {
+    }
+
+    public boolean isCurrent() {
+      return true;
+    }
+  }
+}
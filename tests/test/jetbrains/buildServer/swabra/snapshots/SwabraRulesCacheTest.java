@@ -0,0 +1,106 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Checks that cached rules decisions and subtree decisions are the same as the decisions made by the rule set
+ */
+public class SwabraRulesCacheTest extends TestCase {
+  private static final String[] RULES = {
+    "-:a", "+:a/b", "-:a/b/c", "-:b/*.log", "+:b/keep.log", "-:**/tmp", "-:**/tmp/**", "+:c/**/out", "-:c/*", "-:d/e/.",
+    "-:d/../f", "+:f/?x", "-:*.txt", "+:**/*.txt", "-:g/**/h/*.bin", "+:g", "-:A/B", "-:x/y/z/w"
+  };
+  private static final String[] SEGMENTS = {"a", "b", "c", "d", "e", "f", "g", "h", "x", "y", "z", "w", "A", "B", "tmp", "out",
+    "keep.log", "other.log", "1x", "ax", "file.txt", "file.bin", "."};
+
+  public void test_random_rules() {
+    final File baseDir = new File("baseDir").getAbsoluteFile();
+    final Random random = new Random(239);
+    for (int i = 0; i < 200; ++i) {
+      final List<String> body = new ArrayList<String>();
+      final int rulesCount = random.nextInt(6);
+      for (int j = 0; j < rulesCount; ++j) {
+        body.add(RULES[random.nextInt(RULES.length)]);
+      }
+      final SwabraRules rules = new SwabraRules(baseDir, body);
+      for (int j = 0; j < 200; ++j) {
+        final String path = randomPath(baseDir, random);
+        assertEquals(body + " " + path, rules.shouldIncludeNoCache(path), rules.shouldInclude(path));
+      }
+    }
+  }
+
+  public void test_random_subtree_decisions() {
+    final File baseDir = new File("baseDir").getAbsoluteFile();
+    final Random random = new Random(239);
+    int decided = 0;
+    for (int i = 0; i < 200; ++i) {
+      final List<String> body = new ArrayList<String>();
+      final int rulesCount = random.nextInt(6);
+      for (int j = 0; j < rulesCount; ++j) {
+        body.add(RULES[random.nextInt(RULES.length)]);
+      }
+      final SwabraRules rules = new SwabraRules(baseDir, body);
+      for (int j = 0; j < 50; ++j) {
+        final String dir = randomPath(baseDir, random);
+        final SwabraRules.SubtreeDecision decision = rules.getSubtreeDecision(dir);
+        if (decision == SwabraRules.SubtreeDecision.MIXED) continue;
+        ++decided;
+        final boolean expected = decision == SwabraRules.SubtreeDecision.INCLUDED;
+        assertEquals(body + " " + dir, expected, rules.shouldIncludeNoCache(dir));
+        for (int k = 0; k < 20; ++k) {
+          final String path = randomDescendant(dir, random);
+          assertEquals(body + " " + dir + " " + path, expected, rules.shouldIncludeNoCache(path));
+        }
+      }
+    }
+    assertTrue(decided > 0);
+  }
+
+  public void test_subtree_decisions() {
+    final File baseDir = new File("baseDir").getAbsoluteFile();
+    final SwabraRules rules = new SwabraRules(baseDir, java.util.Arrays.asList("-:**/node_modules", "-:a", "+:a/b"));
+    assertEquals(SwabraRules.SubtreeDecision.EXCLUDED, rules.getSubtreeDecision(new File(baseDir, "x/node_modules").getPath()));
+    assertEquals(SwabraRules.SubtreeDecision.MIXED, rules.getSubtreeDecision(new File(baseDir, "x").getPath()));
+    assertEquals(SwabraRules.SubtreeDecision.MIXED, rules.getSubtreeDecision(new File(baseDir, "a").getPath()));
+    assertEquals(SwabraRules.SubtreeDecision.MIXED, rules.getSubtreeDecision(new File(baseDir, "a/b").getPath()));
+
+    final SwabraRules literalRules = new SwabraRules(baseDir, java.util.Arrays.asList("-:a", "+:a/b"));
+    assertEquals(SwabraRules.SubtreeDecision.MIXED, literalRules.getSubtreeDecision(new File(baseDir, "a").getPath()));
+    assertEquals(SwabraRules.SubtreeDecision.EXCLUDED, literalRules.getSubtreeDecision(new File(baseDir, "a/c").getPath()));
+    assertEquals(SwabraRules.SubtreeDecision.INCLUDED, literalRules.getSubtreeDecision(new File(baseDir, "a/b").getPath()));
+    assertEquals(SwabraRules.SubtreeDecision.INCLUDED, literalRules.getSubtreeDecision(new File(baseDir, "c").getPath()));
+  }
+
+  public void test_cache_disabled() {
+    System.setProperty(SwabraRules.RULES_CACHE_PROPERTY, "false");
+    try {
+      final SwabraRules rules = new SwabraRules(new File("baseDir").getAbsoluteFile(), java.util.Collections.singletonList("-:a"));
+      assertFalse(rules.shouldInclude(new File("baseDir/a/b").getAbsolutePath()));
+      assertTrue(rules.shouldInclude(new File("baseDir/b/a").getAbsolutePath()));
+      assertEquals(SwabraRules.SubtreeDecision.MIXED, rules.getSubtreeDecision(new File("baseDir/a").getAbsolutePath()));
+    } finally {
+      System.clearProperty(SwabraRules.RULES_CACHE_PROPERTY);
+    }
+  }
+
+  @NotNull
+  private static String randomPath(@NotNull File baseDir, @NotNull Random random) {
+    return randomDescendant(random.nextInt(10) == 0 ? baseDir.getParent() : baseDir.getPath(), random);
+  }
+
+  @NotNull
+  private static String randomDescendant(@NotNull String dir, @NotNull Random random) {
+    final StringBuilder path = new StringBuilder(dir);
+    final int depth = random.nextInt(5);
+    for (int i = 0; i < depth; ++i) {
+      path.append(random.nextBoolean() ? File.separator : "/").append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+    }
+    return path.toString();
+  }
+}
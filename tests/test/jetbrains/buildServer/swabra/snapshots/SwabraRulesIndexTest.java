@@ -0,0 +1,97 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Checks rules lookup by path
+ */
+public class SwabraRulesIndexTest extends TestCase {
+  private static final String[] RULES = {
+    "-:a", "+:a/b", "-:a\\b\\c", "+:ab", "-:a.b", "-:a-b/c", "+:A", "-:A/B", "-:b/*.log", "-:**/tmp", "+:c/**/out",
+    "-:c/*", "-:d/e/.", "-:d/../f", "+:f/?x", "-:*.txt", "-:x/y/z/w", "+:x\\Y/z", "-:x/y/"
+  };
+  private static final String[] SEGMENTS = {"a", "b", "c", "d", "e", "f", "x", "y", "z", "w", "A", "B", "Y", "ab", "a.b", "a-b",
+    "tmp", "out", "*.log", "**", ".", ".."};
+
+  private final File myBaseDir = new File("baseDir").getAbsoluteFile();
+
+  public void test_rules_for_path() {
+    final SwabraRules rules = new SwabraRules(myBaseDir, Arrays.asList("-:a", "+:a/b", "+:ab", "-:c/**/x", "-:a/b/c"));
+
+    final List<String> all = rules.getRulesForPath(myBaseDir);
+    assertEquals(all.toString(), 6, all.size());
+    assertSorted(all);
+
+    final List<String> a = rules.getRulesForPath(new File(myBaseDir, "a"));
+    assertEquals(a.toString(), 3, a.size());
+    assertSorted(a);
+    for (String rule : a) {
+      assertFalse(rule, rule.contains("ab"));
+    }
+
+    assertEquals(1, rules.getRulesForPath(new File(myBaseDir, "a/b/c")).size());
+    assertEquals(0, rules.getRulesForPath(new File(myBaseDir, "a/b/c/d")).size());
+    assertEquals(0, rules.getRulesForPath(new File(myBaseDir, "b")).size());
+    assertEquals(all, rules.getRulesForPath(new File(myBaseDir.getPath() + File.separator)));
+    assertEquals(all.size(), rules.getRulesForPath(myBaseDir.getParentFile()).size());
+  }
+
+  public void test_requires_listing() {
+    final SwabraRules rules = new SwabraRules(myBaseDir, Arrays.asList("-:a", "-:c/**/x"));
+    assertTrue(rules.requiresListingForDir(myBaseDir));
+    assertTrue(rules.requiresListingForDir(new File(myBaseDir, "c")));
+    assertFalse(rules.requiresListingForDir(new File(myBaseDir, "a")));
+    assertFalse(rules.requiresListingForDir(new File(myBaseDir, "d")));
+  }
+
+  public void test_random_rules_same_as_linear_scan() {
+    final Random random = new Random(239);
+    for (int i = 0; i < 200; ++i) {
+      final List<String> body = new ArrayList<String>();
+      final int rulesCount = random.nextInt(8);
+      for (int j = 0; j < rulesCount; ++j) {
+        final String rule = RULES[random.nextInt(RULES.length)];
+        body.add(random.nextInt(4) == 0 ? rule.substring(0, 2) + myBaseDir.getPath() + File.separator + rule.substring(2) : rule);
+      }
+      final SwabraRules rules = new SwabraRules(myBaseDir, body);
+      for (int j = 0; j < 200; ++j) {
+        final File path = new File(randomPath(random));
+        assertEquals(body + " " + path, rules.getRulesForPathNoIndex(path), rules.getRulesForPath(path));
+      }
+    }
+  }
+
+  @NotNull
+  private String randomPath(@NotNull Random random) {
+    final StringBuilder path = new StringBuilder(random.nextInt(10) == 0 ? myBaseDir.getParent() : myBaseDir.getPath());
+    final int depth = random.nextInt(5);
+    for (int i = 0; i < depth; ++i) {
+      path.append(random.nextBoolean() ? File.separator : "/").append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+    }
+    if (random.nextInt(10) == 0) {
+      path.append(random.nextBoolean() ? File.separator : "/");
+    }
+    return path.toString();
+  }
+
+  private static void assertSorted(List<String> rules) {
+    final List<String> sorted = new ArrayList<String>(rules);
+    Collections.sort(sorted, new java.util.Comparator<String>() {
+      public int compare(String o1, String o2) {
+        return path(o1).compareTo(path(o2));
+      }
+    });
+    assertEquals(sorted, rules);
+  }
+
+  private static String path(String rule) {
+    return rule.startsWith("+:") || rule.startsWith("-:") ? rule.substring(2) : rule;
+  }
+}
@@ -0,0 +1,123 @@
+package jetbrains.buildServer.swabra.snapshots;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.iteration.FileInfo;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+public class TrashBinTest extends TestCase {
+  private TempFiles myTempFiles;
+  private File myDir;
+  private File myTrashDir;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    final File root = myTempFiles.createTempDir();
+    myDir = new File(root, "checkout");
+    myTrashDir = new File(root, "cache/trash");
+    assertTrue(myDir.mkdirs());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_move_to_trash() throws Exception {
+    final File newDir = createTree("node_modules");
+    final TrashBin trashBin = new TrashBin(myTrashDir, new SwabraLogger());
+
+    assertTrue(trashBin.moveToTrash(newDir));
+    assertFalse(newDir.exists());
+
+    assertTrue(trashBin.awaitDeletions(10, TimeUnit.SECONDS));
+    assertEquals(0, myTrashDir.list().length);
+  }
+
+  public void test_missing_directory() throws Exception {
+    final TrashBin trashBin = new TrashBin(myTrashDir, new SwabraLogger());
+    assertFalse(trashBin.moveToTrash(new File(myDir, "missing")));
+  }
+
+  public void test_leftovers_deleted() throws Exception {
+    assertTrue(new File(myTrashDir, "leftover").mkdirs());
+    FileUtil.writeFileAndReportErrors(new File(myTrashDir, "leftover/file"), "content");
+
+    final TrashBin trashBin = new TrashBin(myTrashDir, new SwabraLogger());
+    assertTrue(trashBin.awaitDeletions(10, TimeUnit.SECONDS));
+    assertEquals(0, myTrashDir.list().length);
+  }
+
+  public void test_collection_processor_results() throws Exception {
+    final File newDir = createTree("out");
+    final File newFile = new File(myDir, "new.txt");
+    FileUtil.writeFileAndReportErrors(newFile, "content");
+    final TrashBin trashBin = new TrashBin(myTrashDir, new SwabraLogger());
+
+    final FilesCollectionProcessor processor = new FilesCollectionProcessor(new SwabraLogger(), null, myDir, false, false, new AtomicBoolean(false));
+    processor.setTrashBin(trashBin);
+    processor.comparisonStarted();
+    processor.processAdded(new FileInfo(newDir.getPath(), 0, 0, false));
+    processor.processAdded(new FileInfo(newFile.getPath(), 0, 0, true));
+    processor.comparisonFinished();
+
+    assertEquals(2, processor.getResults().detectedNewAndDeleted);
+    assertEquals(0, processor.getResults().detectedNewAndUnableToDelete);
+    assertFalse(newDir.exists());
+    assertFalse(newFile.exists());
+    assertTrue(trashBin.awaitDeletions(10, TimeUnit.SECONDS));
+    assertEquals(0, myTrashDir.list().length);
+  }
+
+  public void test_failed_deletions_retried() throws Exception {
+    final File newDir = createTree("locked");
+    final AtomicBoolean locked = new AtomicBoolean(true);
+    final TrashBin trashBin = new TrashBin(myTrashDir, new SwabraLogger()) {
+      @Override
+      protected boolean delete(@NotNull File file) {
+        return !locked.get() && super.delete(file);
+      }
+    };
+
+    assertTrue(trashBin.moveToTrash(newDir));
+    assertTrue(trashBin.awaitDeletions(10, TimeUnit.SECONDS));
+    assertEquals(1, trashBin.getFailedDeletionsCount());
+    assertEquals(1, myTrashDir.list().length);
+
+    locked.set(false);
+    trashBin.retryFailedDeletions(null);
+    assertTrue(trashBin.awaitDeletions(10, TimeUnit.SECONDS));
+    assertEquals(0, trashBin.getFailedDeletionsCount());
+    assertEquals(0, trashBin.getPendingDeletionsCount());
+    assertEquals(0, myTrashDir.list().length);
+  }
+
+  public void test_shutdown() throws Exception {
+    final TrashBin trashBin = new TrashBin(myTrashDir, new SwabraLogger());
+    trashBin.shutdown();
+    assertTrue(trashBin.moveToTrash(createTree("out")));
+    assertEquals(0, trashBin.getPendingDeletionsCount());
+    assertEquals(1, myTrashDir.list().length);
+
+    // deleted when the trash is created after restart
+    assertTrue(new TrashBin(myTrashDir, new SwabraLogger()).awaitDeletions(10, TimeUnit.SECONDS));
+    assertEquals(0, myTrashDir.list().length);
+  }
+
+  private File createTree(String name) throws Exception {
+    final File dir = new File(myDir, name);
+    for (int i = 0; i < 10; ++i) {
+      assertTrue(new File(dir, "sub" + i + "/nested").mkdirs());
+      FileUtil.writeFileAndReportErrors(new File(dir, "sub" + i + "/nested/file"), "content");
+    }
+    return dir;
+  }
+}
@@ -0,0 +1,102 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+import junit.framework.TestCase;
+
+public class FilesComparatorTest extends TestCase {
+  private static final String[] SEGMENTS = {"", "a", "b", "aa", "ab", "a.txt", "a-b", "A", "B", "a b", "\u0444", "zz"};
+
+  public void test_simple_ordering() {
+    assertTrue(compare("/root", false, "/root/a", true) < 0);
+    assertTrue(compare("/root/a", true, "/root/b", true) < 0);
+    assertTrue(compare("/root/b", true, "/root/a", false) < 0);
+    assertTrue(compare("/root/a", true, "/root/a", false) < 0);
+    assertTrue(compare("/root/a", false, "/root/a/z", true) < 0);
+    assertTrue(compare("/root/a/zz", true, "/root/a/z", false) < 0);
+    assertTrue(compare("/root/a/z", false, "/root/ab", false) < 0);
+    assertTrue(compare("/root/a", false, "/root/a.txt", false) < 0);
+    assertEquals(0, compare("/root/a", false, "/root/a", false));
+    assertEquals(0, compare("/root/a/", false, "/root/a", false));
+  }
+
+  public void test_equivalent_to_split_based_comparison() {
+    final Random random = new Random(239);
+    for (char separator : new char[]{'/', '\\'}) {
+      for (int i = 0; i < 200000; ++i) {
+        final String path1 = randomPath(random, separator);
+        final String path2 = random.nextInt(4) == 0 ? mutate(random, path1, separator) : randomPath(random, separator);
+        final boolean isFile1 = random.nextBoolean();
+        final boolean isFile2 = random.nextBoolean();
+
+        final int expected = Integer.signum(splitCompare(path1, isFile1, path2, isFile2, separator));
+        final int actual = Integer.signum(FilesComparator.compare(path1, isFile1, path2, isFile2, separator));
+        assertEquals("'" + path1 + "' " + isFile1 + " vs '" + path2 + "' " + isFile2, expected, actual);
+      }
+    }
+  }
+
+  private static int compare(String path1, boolean isFile1, String path2, boolean isFile2) {
+    return Integer.signum(FilesComparator.compare(path1, isFile1, path2, isFile2, '/'));
+  }
+
+  private static String randomPath(Random random, char separator) {
+    final StringBuilder sb = new StringBuilder();
+    if (random.nextInt(3) > 0) sb.append(separator);
+    final int segments = random.nextInt(5);
+    for (int i = 0; i < segments; ++i) {
+      if (i > 0) sb.append(separator);
+      sb.append(SEGMENTS[random.nextInt(SEGMENTS.length)]);
+    }
+    if (random.nextInt(8) == 0) sb.append(separator);
+    return sb.toString();
+  }
+
+  private static String mutate(Random random, String path, char separator) {
+    switch (random.nextInt(3)) {
+      case 0:
+        return path + separator + SEGMENTS[random.nextInt(SEGMENTS.length)];
+      case 1:
+        final int index = path.lastIndexOf(separator);
+        return index < 0 ? path : path.substring(0, index);
+      default:
+        return path + SEGMENTS[random.nextInt(SEGMENTS.length)];
+    }
+  }
+
+  /**
+   * The original String.split based implementation
+   */
+  private static int splitCompare(String path1, boolean isFile1, String path2, boolean isFile2, char separator) {
+    if (path1.equals(path2)) {
+      return FilesComparator.compareByType(isFile1, isFile2);
+    }
+
+    final String separatorRegex = Pattern.quote(String.valueOf(separator));
+    final String[] path1Parts = path1.split(separatorRegex);
+    final String[] path2Parts = path2.split(separatorRegex);
+
+    final int len1 = path1Parts.length;
+    final int len2 = path2Parts.length;
+
+    for (int i = 0; i < Math.min(len1, len2); ++i) {
+      final int comparisonResult = path1Parts[i].compareTo(path2Parts[i]);
+      if (comparisonResult != 0) {
+        if (i == (len1 - 1) && len1 == len2) {
+          final int comparisonByTypeResult = FilesComparator.compareByType(isFile1, isFile2);
+          if (comparisonByTypeResult != 0) {
+            return comparisonByTypeResult;
+          }
+        }
+        return comparisonResult;
+      }
+    }
+
+    if (len1 < len2) {
+      return -1;
+    } else if (len2 < len1) {
+      return 1;
+    }
+    return FilesComparator.compareByType(isFile1, isFile2);
+  }
+}
@@ -0,0 +1,190 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Stream;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.SnapshotGenerator;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+public class IncrementalFilesIteratorTest extends TestCase {
+  private TempFiles myTempFiles;
+  private File myRoot;
+  private File mySnapshot;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    myRoot = new File(myTempFiles.createTempDir(), "root");
+    for (String dir : new String[]{"a/aa", "a/ab", "b/ba/baa", "c", "d"}) {
+      assertTrue(new File(myRoot, dir).mkdirs());
+    }
+    for (String file : new String[]{"f1", "a/f1", "a/f2", "a/aa/f1", "a/ab/f1", "b/ba/f1", "b/ba/baa/f1", "c/f1", "c/f2", "d/f1"}) {
+      FileUtil.writeFileAndReportErrors(new File(myRoot, file), file);
+    }
+    setOld(myRoot.toPath());
+    mySnapshot = myTempFiles.createTempFile();
+    final SnapshotGenerator generator = new SnapshotGenerator(myRoot, new SwabraLogger(), createRules());
+    assertTrue(generator.generateSnapshot(mySnapshot));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_nothing_changed() throws Exception {
+    final IncrementalFilesIterator iterator = createIterator();
+    assertEquals(read(new FileSystemFilesIterator(myRoot, createRules())), read(iterator));
+    assertEquals(0, iterator.getListedDirectoriesCount());
+    assertEquals(9, iterator.getReusedDirectoriesCount());
+  }
+
+  public void test_changes() throws Exception {
+    // new entries change directory modification time
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "a/new"), "new");
+    assertTrue(new File(myRoot, "b/ba/baa/new").mkdir());
+    FileUtil.delete(new File(myRoot, "c/f1"));
+    // modifications of the files don't
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "d/f1"), "modified content");
+    Files.setLastModifiedTime(new File(myRoot, "d/f1").toPath(), FileTime.fromMillis(System.currentTimeMillis()));
+
+    final IncrementalFilesIterator iterator = createIterator();
+    assertEquals(read(new FileSystemFilesIterator(myRoot, createRules())), read(iterator));
+    assertEquals(4, iterator.getListedDirectoriesCount()); // a, baa, c and the new directory
+    assertEquals(6, iterator.getReusedDirectoriesCount());
+  }
+
+  public void test_restored_modification_time_hides_changes() throws Exception {
+    // known limitation: the directory looks unchanged if a tool restores its modification time
+    final Path c = new File(myRoot, "c").toPath();
+    final FileTime modificationTime = Files.getLastModifiedTime(c);
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "c/new"), "new");
+    Files.setLastModifiedTime(c, modificationTime);
+
+    final List<String> expected = read(new FileSystemFilesIterator(myRoot, createRules()));
+    final IncrementalFilesIterator iterator = createIterator();
+    final List<String> actual = read(iterator);
+    assertEquals(0, iterator.getListedDirectoriesCount());
+    assertTrue(contains(expected, "c" + File.separator + "new"));
+    assertFalse(contains(actual, "c" + File.separator + "new"));
+  }
+
+  public void test_restored_modification_time_deletion_noticed() throws Exception {
+    final Path c = new File(myRoot, "c").toPath();
+    final FileTime modificationTime = Files.getLastModifiedTime(c);
+    FileUtil.delete(new File(myRoot, "c/f1"));
+    Files.setLastModifiedTime(c, modificationTime);
+
+    final IncrementalFilesIterator iterator = createIterator();
+    assertEquals(read(new FileSystemFilesIterator(myRoot, createRules())), read(iterator));
+    assertEquals(1, iterator.getListedDirectoriesCount());
+  }
+
+  public void test_recent_modification_time_not_trusted() throws Exception {
+    final long now = System.currentTimeMillis();
+    Files.setLastModifiedTime(new File(myRoot, "a").toPath(), FileTime.fromMillis(now));
+    assertTrue(new SnapshotGenerator(myRoot, new SwabraLogger(), createRules()).generateSnapshot(mySnapshot));
+    Files.setLastModifiedTime(new File(myRoot, "a").toPath(), FileTime.fromMillis(now));
+
+    final IncrementalFilesIterator iterator = createIterator();
+    assertEquals(read(new FileSystemFilesIterator(myRoot, createRules())), read(iterator));
+    assertEquals(1, iterator.getListedDirectoriesCount());
+  }
+
+  public void test_skip_directories() throws Exception {
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "b/new"), "new");
+
+    assertEquals(read(new FileSystemFilesIterator(myRoot, createRules()), "a", "ba"), read(createIterator(), "a", "ba"));
+  }
+
+  public void test_text_snapshot_not_used() throws Exception {
+    System.setProperty(SnapshotGenerator.TEXT_SNAPSHOT_PROPERTY, "true");
+    try {
+      assertTrue(new SnapshotGenerator(myRoot, new SwabraLogger(), createRules()).generateSnapshot(mySnapshot));
+    } finally {
+      System.clearProperty(SnapshotGenerator.TEXT_SNAPSHOT_PROPERTY);
+    }
+
+    final IncrementalFilesIterator iterator = createIterator();
+    assertEquals(read(new FileSystemFilesIterator(myRoot, createRules())), read(iterator));
+    assertEquals(0, iterator.getReusedDirectoriesCount());
+  }
+
+  public void test_too_deep_not_included_directories() throws Exception {
+    File dir = new File(myRoot, "deep");
+    for (int i = 0; i < 140; ++i) {
+      dir = new File(dir, "d");
+    }
+    assertTrue(dir.mkdirs());
+    FileUtil.writeFileAndReportErrors(new File(dir, "f.txt"), "f");
+
+    // directories are listed to find the included files, but are not returned themselves
+    final SwabraRules rules = new SwabraRules(myRoot, Arrays.asList("-:**/*", "+:**/*.txt"));
+    assertTrue(rules.requiresListingForDir(myRoot));
+    final IncrementalFilesIterator iterator = new IncrementalFilesIterator(myRoot, rules, mySnapshot);
+    try {
+      read(iterator);
+      fail("Too deep directories must be reported");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("Too many entries in depth"));
+    }
+  }
+
+  private static boolean contains(@NotNull List<String> entries, @NotNull String relativePath) {
+    for (String entry : entries) {
+      if (entry.contains(File.separator + "root" + File.separator + relativePath + " ")) return true;
+    }
+    return false;
+  }
+
+  @NotNull
+  private IncrementalFilesIterator createIterator() {
+    return new IncrementalFilesIterator(myRoot, createRules(), mySnapshot);
+  }
+
+  @NotNull
+  private SwabraRules createRules() {
+    return new SwabraRules(myRoot, Collections.<String>emptyList());
+  }
+
+  private static void setOld(@NotNull Path root) throws IOException {
+    final FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 3600 * 1000L);
+    try (Stream<Path> paths = Files.walk(root)) {
+      for (Path path : (Iterable<Path>)paths::iterator) {
+        Files.setLastModifiedTime(path, old);
+      }
+    }
+  }
+
+  @NotNull
+  private static List<String> read(@NotNull FilesIterator iterator, String... skippedDirs) throws Exception {
+    final List<String> skipped = java.util.Arrays.asList(skippedDirs);
+    final List<String> result = new ArrayList<String>();
+    try {
+      FileInfo file;
+      while ((file = iterator.getNext()) != null) {
+        result.add(file.getPath() + " " + file.isFile() + " " + file.getLength() + " " + file.getLastModified());
+        if (!file.isFile() && skipped.contains(new File(file.getPath()).getName())) {
+          iterator.skipDirectory(file);
+        }
+      }
+    } finally {
+      iterator.stopIterator();
+    }
+    return result;
+  }
+}
@@ -0,0 +1,73 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+
+public class ParallelFileSystemFilesIteratorTest extends TestCase {
+  private TempFiles myTempFiles;
+  private File myRoot;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    myRoot = new File(myTempFiles.createTempDir(), "root");
+    for (int i = 0; i < 30; ++i) {
+      for (int j = 0; j < 3; ++j) {
+        final File dir = new File(myRoot, "d" + i + "/s" + j);
+        assertTrue(dir.mkdirs());
+        FileUtil.writeFileAndReportErrors(new File(dir, "f"), "f");
+      }
+      FileUtil.writeFileAndReportErrors(new File(myRoot, "d" + i + "/f"), "f");
+    }
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_listings_are_bounded() throws Exception {
+    final ParallelFileSystemFilesIterator iterator = new ParallelFileSystemFilesIterator(myRoot, createRules(), 2, 4);
+    assertEquals(read(new FileSystemFilesIterator(myRoot, createRules())), read(iterator));
+    assertTrue(String.valueOf(iterator.getMaxOutstanding()), iterator.getMaxOutstanding() <= 4);
+  }
+
+  public void test_skip_directories() throws Exception {
+    final ParallelFileSystemFilesIterator iterator = new ParallelFileSystemFilesIterator(myRoot, createRules(), 2, 4);
+    assertEquals(read(new FileSystemFilesIterator(myRoot, createRules()), "d3", "s1"), read(iterator, "d3", "s1"));
+    assertTrue(String.valueOf(iterator.getMaxOutstanding()), iterator.getMaxOutstanding() <= 4);
+  }
+
+  @NotNull
+  private SwabraRules createRules() {
+    return new SwabraRules(myRoot, Collections.<String>emptyList());
+  }
+
+  @NotNull
+  private static List<String> read(@NotNull FilesIterator iterator, String... skippedDirs) throws Exception {
+    final List<String> skipped = Arrays.asList(skippedDirs);
+    final List<String> result = new ArrayList<String>();
+    try {
+      FileInfo file;
+      while ((file = iterator.getNext()) != null) {
+        result.add(file.getPath() + " " + file.isFile());
+        if (!file.isFile() && skipped.contains(new File(file.getPath()).getName())) {
+          iterator.skipDirectory(file);
+        }
+      }
+    } finally {
+      iterator.stopIterator();
+    }
+    return result;
+  }
+}
@@ -0,0 +1,192 @@
+package jetbrains.buildServer.swabra.snapshots.iteration;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import jetbrains.buildServer.TempFiles;
+import jetbrains.buildServer.swabra.SwabraLogger;
+import jetbrains.buildServer.swabra.snapshots.SnapshotGenerator;
+import jetbrains.buildServer.swabra.snapshots.SwabraRules;
+import jetbrains.buildServer.util.FileUtil;
+import junit.framework.TestCase;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+public class SubtreeSummaryTest extends TestCase {
+  private TempFiles myTempFiles;
+  private File myRoot;
+  private File mySnapshot;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    myTempFiles = new TempFiles();
+    myRoot = new File(myTempFiles.createTempDir(), "root");
+    for (String dir : new String[]{"a/aa", "a/ab", "b/ba/baa", "c"}) {
+      assertTrue(new File(myRoot, dir).mkdirs());
+    }
+    for (String file : new String[]{"f1", "a/f1", "a/aa/f1", "a/ab/f1", "b/ba/f1", "b/ba/baa/f1", "c/f1", "c/f2"}) {
+      FileUtil.writeFileAndReportErrors(new File(myRoot, file), file);
+    }
+    mySnapshot = myTempFiles.createTempFile();
+    assertTrue(new SnapshotGenerator(myRoot, new SwabraLogger(), createRules()).generateSnapshot(mySnapshot));
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    System.clearProperty(SnapshotGenerator.TEXT_SNAPSHOT_PROPERTY);
+    myTempFiles.cleanup();
+    super.tearDown();
+  }
+
+  public void test_snapshot_summaries() throws Exception {
+    final SnapshotFilesIterator iterator = new SnapshotFilesIterator(mySnapshot);
+    try {
+      FileInfo info;
+      while ((info = iterator.getNext()) != null) {
+        if (!info.isFile()) {
+          assertEquals(info.getPath(), computeSummary(new File(info.getPath())), iterator.getSubtreeSummary());
+        }
+      }
+    } finally {
+      iterator.stopIterator();
+    }
+  }
+
+  public void test_entries_count() throws Exception {
+    final SnapshotFilesIterator iterator = new SnapshotFilesIterator(mySnapshot);
+    try {
+      assertNotNull(iterator.getNext());
+      assertEquals(15, iterator.getSubtreeSummary().getEntriesCount());
+      assertTrue(iterator.getNext().isFile());
+      assertEquals("a", new File(iterator.getNext().getPath()).getName());
+      assertEquals(5, iterator.getSubtreeSummary().getEntriesCount());
+    } finally {
+      iterator.stopIterator();
+    }
+  }
+
+  public void test_change_deep_in_tree() throws Exception {
+    final SubtreeSummary rootBefore = computeSummary(myRoot);
+    final SubtreeSummary aBefore = computeSummary(new File(myRoot, "a"));
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "b/ba/baa/f1"), "modified content");
+
+    assertFalse(rootBefore.equals(computeSummary(myRoot)));
+    assertEquals(aBefore, computeSummary(new File(myRoot, "a")));
+  }
+
+  public void test_text_snapshot_has_no_summaries() throws Exception {
+    System.setProperty(SnapshotGenerator.TEXT_SNAPSHOT_PROPERTY, "true");
+    assertTrue(new SnapshotGenerator(myRoot, new SwabraLogger(), createRules()).generateSnapshot(mySnapshot));
+
+    final SnapshotFilesIterator iterator = new SnapshotFilesIterator(mySnapshot);
+    try {
+      assertNotNull(iterator.getNext());
+      assertNull(iterator.getSubtreeSummary());
+    } finally {
+      iterator.stopIterator();
+    }
+  }
+
+  public void test_compare_skips_unchanged_subtrees() throws Exception {
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "b/ba/baa/f1"), "modified content");
+    FileUtil.writeFileAndReportErrors(new File(myRoot, "c/f3"), "new");
+
+    final List<String> full = compare(null);
+    final List<String> skipping = compare(new FilesTraversal.CurrentSummaryProvider() {
+      public SubtreeSummary getCurrentSummary(@NotNull FileInfo dir, @NotNull SubtreeSummary snapshotSummary) {
+        return computeSummary(new File(dir.getPath()));
+      }
+    });
+
+    assertTrue(skipping.contains("UNCHANGED SUBTREE " + new File(myRoot, "a").getPath() + " 5"));
+    assertFalse(skipping.contains("UNCHANGED " + new File(myRoot, "a/aa/f1").getPath()));
+    assertEquals(filterChanges(full), filterChanges(skipping));
+    assertEquals(countUnchanged(full), countUnchanged(skipping));
+  }
+
+  @NotNull
+  private List<String> compare(@Nullable FilesTraversal.CurrentSummaryProvider provider) throws Exception {
+    final List<String> result = new ArrayList<String>();
+    new FilesTraversal(provider).traverseCompare(new SnapshotFilesIterator(mySnapshot), new FileSystemFilesIterator(myRoot, createRules()),
+                                                 new FilesTraversal.ComparisonProcessor() {
+      public void comparisonStarted() {
+      }
+
+      public void comparisonFinished() {
+      }
+
+      public boolean willProcess(FileInfo info) {
+        return true;
+      }
+
+      public void processModified(FileInfo info1, FileInfo info2) {
+        result.add("MODIFIED " + info1.getPath());
+      }
+
+      public void processDeleted(FileInfo info) {
+        result.add("DELETED " + info.getPath());
+      }
+
+      public void processAdded(FileInfo info) {
+        result.add("ADDED " + info.getPath());
+      }
+
+      public void processUnchanged(FileInfo info) {
+        result.add("UNCHANGED " + info.getPath());
+      }
+
+      public void processUnchangedSubtree(FileInfo dir, int entriesCount) {
+        result.add("UNCHANGED SUBTREE " + dir.getPath() + " " + entriesCount);
+      }
+    });
+    return result;
+  }
+
+  @NotNull
+  private static List<String> filterChanges(@NotNull List<String> results) {
+    final List<String> changes = new ArrayList<String>();
+    for (String result : results) {
+      if (!result.startsWith("UNCHANGED")) {
+        changes.add(result);
+      }
+    }
+    return changes;
+  }
+
+  private static int countUnchanged(@NotNull List<String> results) {
+    int count = 0;
+    for (String result : results) {
+      if (result.startsWith("UNCHANGED SUBTREE")) {
+        count += Integer.parseInt(result.substring(result.lastIndexOf(' ') + 1));
+      } else if (result.startsWith("UNCHANGED")) {
+        ++count;
+      }
+    }
+    return count;
+  }
+
+  @NotNull
+  private SubtreeSummary computeSummary(@NotNull File dir) {
+    final SubtreeSummaryBuilder builder = new SubtreeSummaryBuilder();
+    final FilesIterator iterator = new FileSystemFilesIterator(dir, createRules());
+    try {
+      FileInfo info;
+      while ((info = iterator.getNext()) != null) {
+        builder.add(info);
+      }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    } finally {
+      iterator.stopIterator();
+    }
+    builder.finish();
+    return builder.getSummary(0);
+  }
+
+  @NotNull
+  private SwabraRules createRules() {
+    return new SwabraRules(myRoot, Collections.<String>emptyList());
+  }
+}